@@ -203,16 +203,21 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
         byte[] checksum) throws IOException {
       boolean eof = false;
       if(needChecksum()) {
-        try {
-          long checksumPos = getChecksumFilePos(pos); 
-          if(checksumPos != sums.getPos()) {
-            sums.seek(checksumPos);
-          }
-          sums.readFully(checksum);
-        } catch (EOFException e) {
+        // read the checksums of as many whole chunks as fit in buf
+        int chunks = Math.max(1, Math.min(len / bytesPerSum,
+                                          checksum.length / 4));
+        long checksumPos = getChecksumFilePos(pos); 
+        if(checksumPos != sums.getPos()) {
+          sums.seek(checksumPos);
+        }
+        int sumLen = readFully(sums, checksum, 0, 4 * chunks);
+        if (sumLen <= 0) {
           eof = true;
+        } else if (sumLen % 4 != 0) {
+          throw new ChecksumException("Checksum error: "+file+" at "+pos, pos);
+        } else {
+          len = bytesPerSum * (sumLen / 4);
         }
-        len = bytesPerSum;
       }
       if(pos != datas.getPos()) {
         datas.seek(pos);
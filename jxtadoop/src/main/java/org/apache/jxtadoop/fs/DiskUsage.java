@@ -1,39 +1,79 @@
 package org.apache.jxtadoop.fs;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.jxtadoop.conf.Configuration;
 
+/**
+ * Keeps track of the space used under a directory.
+ * <p>
+ * The value is maintained incrementally by the owner through
+ * {@link #incDfsUsed(long)} and {@link #decDfsUsed(long)}. It is saved
+ * on {@link #shutdown()} and reloaded at startup when recent enough, so
+ * that the whole tree only has to be walked when no saved value is
+ * available. A low priority thread walks the tree every refresh interval
+ * to correct any drift.
+ */
 public class DiskUsage implements FileFilter {
+	/** Name of the file the used space is saved to on shutdown */
+	public static final String DFS_USED_FILE = "dfsUsed";
+
 	private String  dirPath;
     private File dir;
-    private long dirSize = 0;
+    private FileFilter counted;
+    private Set<String> walkedDirs = null; // during a walk, the dirs done
+    private long walkDelta = 0; // changes made to them since
 	private AtomicLong used = new AtomicLong();
 	private volatile boolean shouldRun = true;
 	private long refreshInterval;
-	@SuppressWarnings("unused")
 	private IOException duException = null;
 	private Thread refreshUsed;
 	
 	public static final Log LOG = LogFactory.getLog(DiskUsage.class);
 	
 	public DiskUsage(File path, long interval) throws IOException {
+		this(path, interval, null);
+	}
+	
+	/**
+	 * @param counted the files the walk of the tree counts, all if null
+	 */
+	public DiskUsage(File path, long interval, FileFilter counted)
+			throws IOException {
 		this.refreshInterval=interval;
 		this.dirPath = path.getCanonicalPath();
 		this.dir = new File(this.dirPath);
-		run();
+		this.counted = counted;
+		long saved = loadDfsUsed();
+		if (saved < 0) {
+			run();
+		} else {
+			used.set(saved);
+		}
 	}
 	
 	public DiskUsage(File path, Configuration conf) throws IOException {
-	    this(path, 600000L);
+	    this(path, conf, null);
+	  }
+	
+	public DiskUsage(File path, Configuration conf, FileFilter counted)
+			throws IOException {
+	    this(path, conf.getLong("dfs.datanode.du.refresh.interval", 3600000L),
+	         counted);
 	  }
 	
 	public DiskUsage(File path) throws IOException {
-	    this(path, 600000L);
+	    this(path, 3600000L);
 	  }
 	
 	 public String getDirPath() {
@@ -41,34 +81,172 @@ public class DiskUsage implements FileFilter {
 	 }
 	  	
 	  public void decDfsUsed(long value) {
-		    used.addAndGet(-value);
+		    changed(null, -value);
 		  }
 	  
 	  public void incDfsUsed(long value) {
-		    used.addAndGet(value);
+		    changed(null, value);
+		  }
+	  
+	  /**
+	   * @param dir the directory holding the files that shrank
+	   */
+	  public void decDfsUsed(File dir, long value) {
+		    changed(dir, -value);
+		  }
+	  
+	  /**
+	   * @param dir the directory holding the files that grew
+	   */
+	  public void incDfsUsed(File dir, long value) {
+		    changed(dir, value);
+		  }
+	  
+	  /**
+	   * A change made during a walk is kept on top of the walked size if the
+	   * walk was already done with its directory, or if the directory is
+	   * not known; otherwise the walk sees it.
+	   */
+	  private synchronized void changed(File changedDir, long value) {
+		  used.addAndGet(value);
+		  if (walkedDirs != null &&
+			  (changedDir == null || walkedDirs.contains(getPath(changedDir)))) {
+			  walkDelta += value;
+		  }
+	  }
+	  
+	  private static String getPath(File file) {
+		  try {
+			  return file.getCanonicalPath();
+		  } catch (IOException e) {
+			  return file.getAbsolutePath();
 		  }
+	  }
 	  
+	  /** Whether the walk of the tree counts a file */
 	  public boolean accept(File file) {
-		  if ( file.isFile())
-			  dirSize += file.length();
-		  else
-			  file.listFiles(this);
-		  return false;
+		  return file.isFile() && !file.getName().equals(DFS_USED_FILE) &&
+			  (counted == null || counted.accept(file));
 	  	}
+	  
+	  /**
+	   * Sum the files of a directory, then walk its subdirectories. The
+	   * files are summed under the lock of the changes, so that a change
+	   * is either seen by the walk or made after its directory was done.
+	   */
+	  private long walk(File d) {
+		  File[] files;
+		  long size = 0;
+		  synchronized (this) {
+			  files = d.listFiles();
+			  if (files == null) {
+				  return 0;
+			  }
+			  for (File file : files) {
+				  if (accept(file)) {
+					  size += file.length();
+				  }
+			  }
+			  walkedDirs.add(d.getPath());
+		  }
+		  for (File file : files) {
+			  if (file.isDirectory()) {
+				  size += walk(file);
+			  }
+		  }
+		  return size;
+	  }
 		
 	  public long getUsed() throws IOException {
-		  return dirSize;
+		  synchronized (this) {
+			  if (duException != null) {
+				  IOException tmp = duException;
+				  duException = null;
+				  LOG.warn("Disk usage of " + dirPath + " may be stale", tmp);
+			  }
+		  }
+		  long value = used.get();
+		  return value > 0 ? value : 0;
 	  }
 	  
 	  public void start() {
+		  if (refreshInterval > 0) {
 		      refreshUsed = new Thread(new DURefreshThread(),"refreshUsed-"+dirPath);
 		      refreshUsed.setDaemon(true);
+		      refreshUsed.setPriority(Thread.MIN_PRIORITY);
 		      refreshUsed.start();
+		  }
 	  }
 	  
+	  /**
+	   * Walk the tree and reconcile the used space with it. The updates made
+	   * during the walk that it did not see, as a block finalized into or
+	   * removed from a directory already walked, are kept on top of the
+	   * walked size.
+	   */
 	  protected void run() throws IOException {
-		  this.dirSize = 0;
-		  this.accept(dir);
+		  synchronized (this) {
+			  walkedDirs = new HashSet<String>();
+			  walkDelta = 0;
+		  }
+		  try {
+			  long size = walk(dir);
+			  synchronized (this) {
+				  used.set(size + walkDelta);
+			  }
+		  } finally {
+			  synchronized (this) {
+				  walkedDirs = null;
+			  }
+		  }
+	  }
+	  
+	  /**
+	   * Read the used space saved by the last clean shutdown. The saved
+	   * file is removed so that a crash does not make it look current.
+	   * @return the saved value, or -1 if missing, unreadable or older than
+	   *         the refresh interval
+	   */
+	  private long loadDfsUsed() {
+		  File f = new File(dir, DFS_USED_FILE);
+		  if (!f.exists()) {
+			  return -1;
+		  }
+		  long value = -1;
+		  try {
+			  BufferedReader in = new BufferedReader(new FileReader(f));
+			  try {
+				  String[] fields = in.readLine().trim().split(" ");
+				  long savedValue = Long.parseLong(fields[0]);
+				  long savedTime = Long.parseLong(fields[1]);
+				  if (refreshInterval <= 0 ||
+						  System.currentTimeMillis() - savedTime < refreshInterval) {
+					  value = savedValue;
+				  }
+			  } finally {
+				  in.close();
+			  }
+		  } catch (Exception e) {
+			  LOG.warn("Could not read saved disk usage from " + f + ": " + e);
+		  }
+		  if (!f.delete()) {
+			  LOG.warn("Could not delete " + f);
+		  }
+		  return value;
+	  }
+	  
+	  private void saveDfsUsed() {
+		  File f = new File(dir, DFS_USED_FILE);
+		  try {
+			  PrintWriter out = new PrintWriter(new FileWriter(f));
+			  try {
+				  out.println(used.get() + " " + System.currentTimeMillis());
+			  } finally {
+				  out.close();
+			  }
+		  } catch (IOException e) {
+			  LOG.warn("Could not save disk usage to " + f + ": " + e);
+		  }
 	  }
 	  
 	  public void shutdown() {
@@ -76,13 +254,18 @@ public class DiskUsage implements FileFilter {
 		    
 		    if(this.refreshUsed != null) {
 		      this.refreshUsed.interrupt();
+		      try {
+		        this.refreshUsed.join();
+		      } catch (InterruptedException ignored) {
+		      }
 		    }
+		    saveDfsUsed();
 		  }
 	  
 	  public String toString() {
 		    return
 		      "du -sk " + dirPath +"\n" +
-		      dirSize  / 1024+ "\t" + dirPath;
+		      used.get()  / 1024+ "\t" + dirPath;
 		  }
 	  
 	  class DURefreshThread implements Runnable {
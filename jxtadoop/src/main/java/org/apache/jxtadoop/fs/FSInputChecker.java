@@ -24,6 +24,7 @@ import java.util.zip.Checksum;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.jxtadoop.util.DataChecksum;
 import org.apache.jxtadoop.util.StringUtils;
 
 /**
@@ -35,10 +36,15 @@ abstract public class FSInputChecker extends FSInputStream {
   public static final Log LOG 
   = LogFactory.getLog(FSInputChecker.class);
   
+  /** Maximum number of chunks read and verified by one readChunk() */
+  public static final int CHUNKS_PER_READ = 32;
+  
   /** The file name from which data is read from */
   protected Path file;
   private Checksum sum;
   private boolean verifyChecksum = true;
+  private int maxChunkSize;
+  private int checksumSize;
   private byte[] buf;
   private byte[] checksum;
   private int pos;
@@ -73,14 +79,21 @@ abstract public class FSInputChecker extends FSInputStream {
     set(verifyChecksum, sum, chunkSize, checksumSize);
   }
   
-  /** Reads in next checksum chunk data into <code>buf</code> at <code>offset</code>
-   * and checksum into <code>checksum</code>.
+  /** Reads in checksum chunks into <code>buf</code> at <code>offset</code>
+   * and their checksums into <code>checksum</code>.
    * The method is used for implementing read, therefore, it should be optimized
-   * for sequential reading
+   * for sequential reading.
+   * <p>
+   * When checksums are needed, <code>len</code> is at least the maximum
+   * chunk size and an implementation should read a whole number of chunks,
+   * at most as many as <code>len</code> and <code>checksum</code> hold, so
+   * that they can be verified together. Only the last chunk of the data
+   * may be partial. Returning a single chunk is always allowed.
    * @param pos chunkPos
    * @param buf desitination buffer
    * @param offset offset in buf at which to store data
    * @param len maximun number of bytes to read
+   * @param checksum destination buffer for the checksums of the chunks
    * @return number of bytes read
    */
   abstract protected int readChunk(long pos, byte[] buf, int offset, int len,
@@ -207,7 +220,7 @@ abstract public class FSInputChecker extends FSInputStream {
     return cnt;    
   }
   
-  /* Read up one checksum chunk to array <i>b</i> at pos <i>off</i>
+  /* Read up to CHUNKS_PER_READ checksum chunks to array <i>b</i> at pos <i>off</i>
    * It requires a checksum chunk boundary
    * in between <cur_pos, cur_pos+len> 
    * and it stops reading at the boundary or at the end of the stream;
@@ -238,8 +251,7 @@ abstract public class FSInputChecker extends FSInputStream {
     	  read = readChunk(chunkPos, b, off, len, checksum);
         if( read > 0 ) {
           if( needChecksum() ) {
-            sum.update(b, off, read);
-            verifySum(chunkPos);
+            verifySums(b, off, read);
           }
           chunkPos += read;
         } 
@@ -267,29 +279,42 @@ abstract public class FSInputChecker extends FSInputStream {
     return read;
   }
   
-  /* verify checksum for the chunk.
+  /* verify the checksums of the chunks read at chunkPos.
    * @throws ChecksumException if there is a mismatch
    */
-  private void verifySum(long errPos) throws ChecksumException {
-    long crc = getChecksum();
-    long sumValue = sum.getValue();
-    sum.reset();
-    if (crc != sumValue) {
-      throw new ChecksumException(
-          "Checksum error: "+file+" at "+errPos, errPos);
+  private void verifySums(byte[] b, int off, int read)
+  throws ChecksumException {
+    if (sum instanceof DataChecksum &&
+        ((DataChecksum)sum).getBytesPerChecksum() == maxChunkSize) {
+      ((DataChecksum)sum).verifyChunkedSums(b, off, read, checksum, 0,
+                                            file.toString(), chunkPos);
+      return;
+    }
+    
+    for (int n = 0, sumOff = 0; n < read;
+         n += maxChunkSize, sumOff += checksumSize) {
+      sum.update(b, off + n, Math.min(maxChunkSize, read - n));
+      long crc = checksum2long(checksum, sumOff, checksumSize);
+      long sumValue = sum.getValue();
+      sum.reset();
+      if (crc != sumValue) {
+        long errPos = chunkPos + n;
+        throw new ChecksumException(
+            "Checksum error: "+file+" at "+errPos, errPos);
+      }
     }
-  }
-  
-  /* calculate checksum value */
-  private long getChecksum() {
-    return checksum2long(checksum);
   }
 
   /** Convert a checksum byte array to a long */
   static public long checksum2long(byte[] checksum) {
+    return checksum2long(checksum, 0, checksum.length);
+  }
+  
+  /** Convert <code>len</code> checksum bytes at <code>off</code> to a long */
+  static public long checksum2long(byte[] checksum, int off, int len) {
     long crc = 0L;
-    for(int i=0; i<checksum.length; i++) {
-      crc |= (0xffL&(long)checksum[i])<<((checksum.length-i-1)*8);
+    for(int i=0; i<len; i++) {
+      crc |= (0xffL&(long)checksum[off+i])<<((len-i-1)*8);
     }
     return crc;
   }
@@ -402,8 +427,10 @@ abstract public class FSInputChecker extends FSInputStream {
       Checksum sum, int maxChunkSize, int checksumSize ) {
     this.verifyChecksum = verifyChecksum;
     this.sum = sum;
-    this.buf = new byte[maxChunkSize];
-    this.checksum = new byte[checksumSize];
+    this.maxChunkSize = maxChunkSize;
+    this.checksumSize = checksumSize;
+    this.buf = new byte[maxChunkSize * CHUNKS_PER_READ];
+    this.checksum = new byte[checksumSize * CHUNKS_PER_READ];
     this.count = 0;
     this.pos = 0;
   }
@@ -27,6 +27,7 @@ import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -712,6 +713,70 @@ public abstract class FileSystem extends Configured implements Closeable {
    * @throws IOException
    */
   public abstract FileStatus[] listStatus(Path f) throws IOException;
+
+  /**
+   * Return an iterator over the statuses of the files/directories in the
+   * given path if the path is a directory. File systems that can list a
+   * directory in pages should override this so that large directories
+   * are not held in memory at once.
+   * 
+   * @param f
+   *          given path
+   * @return an iterator over the statuses of the files/directories
+   * @throws FileNotFoundException if the path does not exist
+   * @throws IOException
+   */
+  public RemoteIterator<FileStatus> listStatusIterator(final Path f)
+      throws IOException {
+    final FileStatus[] listing = listStatus(f);
+    if (listing == null) {
+      throw new FileNotFoundException("File " + f + " does not exist.");
+    }
+    return new RemoteIterator<FileStatus>() {
+      private int i = 0;
+
+      public boolean hasNext() {
+        return i < listing.length;
+      }
+
+      public FileStatus next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more entries in " + f);
+        }
+        return listing[i++];
+      }
+    };
+  }
+
+  /**
+   * Return an iterator over the statuses of the files/directories in the
+   * given path, each with the locations of its blocks. Directories have
+   * no block locations. The default implementation asks for the block
+   * locations of each file separately; file systems that can return them
+   * along with the listing should override this.
+   * 
+   * @param f
+   *          given path
+   * @return an iterator over the located statuses
+   * @throws FileNotFoundException if the path does not exist
+   * @throws IOException
+   */
+  public RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path f)
+      throws IOException {
+    final RemoteIterator<FileStatus> statuses = listStatusIterator(f);
+    return new RemoteIterator<LocatedFileStatus>() {
+      public boolean hasNext() throws IOException {
+        return statuses.hasNext();
+      }
+
+      public LocatedFileStatus next() throws IOException {
+        FileStatus stat = statuses.next();
+        BlockLocation[] locations = stat.isDir() ? new BlockLocation[0]
+            : getFileBlockLocations(stat, 0, stat.getLen());
+        return new LocatedFileStatus(stat, locations);
+      }
+    };
+  }
     
   /*
    * Filter files/directories in the given path using the user-supplied path
@@ -1313,7 +1378,8 @@ public abstract class FileSystem extends Configured implements Closeable {
 
   /**
    * Return a list of file status objects that corresponds to the list of paths
-   * excluding those non-existent paths.
+   * excluding those non-existent paths. File systems that can fetch many
+   * statuses in one request should override this.
    * 
    * @param paths
    *          the list of paths we want information from
@@ -1321,7 +1387,7 @@ public abstract class FileSystem extends Configured implements Closeable {
    * @throws IOException
    *           see specific implementation
    */
-  private FileStatus[] getFileStatus(Path[] paths) throws IOException {
+  public FileStatus[] getFileStatus(Path[] paths) throws IOException {
     if (paths == null) {
       return null;
     }
@@ -1355,6 +1421,46 @@ public abstract class FileSystem extends Configured implements Closeable {
       ) throws IOException {
   }
 
+  /**
+   * Set the permissions of many paths. A failure on one path does not
+   * prevent the others from being changed.
+   * @param paths The paths
+   * @param permissions The permission of each path
+   * @return the exception raised for each path, null where it succeeded
+   */
+  public IOException[] setPermission(Path[] paths, FsPermission[] permissions) {
+    IOException[] errors = new IOException[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      try {
+        setPermission(paths[i], permissions[i]);
+      } catch (IOException e) {
+        errors[i] = e;
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * Set the owner of many paths. A failure on one path does not
+   * prevent the others from being changed.
+   * @param paths The paths
+   * @param usernames The new owner of each path, null to leave it unchanged
+   * @param groupnames The new group of each path, null to leave it unchanged
+   * @return the exception raised for each path, null where it succeeded
+   */
+  public IOException[] setOwner(Path[] paths, String[] usernames,
+                                String[] groupnames) {
+    IOException[] errors = new IOException[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      try {
+        setOwner(paths[i], usernames[i], groupnames[i]);
+      } catch (IOException e) {
+        errors[i] = e;
+      }
+    }
+    return errors;
+  }
+
   /**
    * Set access time of a file
    * @param p The path
@@ -1208,6 +1208,13 @@ public class FsShell extends Configured implements Tool {
     }
     
     public abstract void run(FileStatus file, FileSystem fs) throws IOException;
+
+    /**
+     * Apply the changes queued by {@link #run(FileStatus, FileSystem)},
+     * if the handler defers them to send them in batches.
+     */
+    public void flush(FileSystem fs) throws IOException {
+    }
   }
   
   /** helper returns listStatus() */
@@ -1245,6 +1252,8 @@ public class FsShell extends Configured implements Tool {
     int errors = 0;
     handler.run(stat, srcFs);
     if (recursive && stat.isDir() && handler.okToContinue()) {
+      // apply the change to the directory before listing it
+      handler.flush(srcFs);
       FileStatus[] files = shellListStatus(handler.getName(), srcFs, stat);
       if (files == null) {
         return 1;
@@ -1265,10 +1274,14 @@ public class FsShell extends Configured implements Tool {
     for (int i=startIndex; i<args.length; i++) {
       Path srcPath = new Path(args[i]);
       FileSystem srcFs = srcPath.getFileSystem(getConf());
-      Path[] paths = FileUtil.stat2Paths(srcFs.globStatus(srcPath), srcPath);
-      for(Path path : paths) {
+      FileStatus[] stats = srcFs.globStatus(srcPath);
+      Path[] paths = FileUtil.stat2Paths(stats, srcPath);
+      for(int j = 0; j < paths.length; j++) {
+        Path path = paths[j];
         try {
-          FileStatus file = srcFs.getFileStatus(path);
+          // reuse the statuses fetched by the glob
+          FileStatus file = (stats != null) ? stats[j] 
+                                            : srcFs.getFileStatus(path);
           if (file == null) {
             System.err.println(handler.getName() + 
                                ": could not get status for '" + path + "'");
@@ -1284,6 +1297,7 @@ public class FsShell extends Configured implements Tool {
                                         + path + "': " + msg.split("\n")[0]);        
         }
       }
+      handler.flush(srcFs);
     }
     
     return (errors > 0 || handler.getErrorCode() != 0) ? 1 : 0;
@@ -18,6 +18,8 @@
 package org.apache.jxtadoop.fs;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,6 +32,9 @@ import org.apache.jxtadoop.fs.permission.FsPermission;
  * Moved to this seperate class since FsShell is getting too large.
  */
 class FsShellPermissions {
+
+  /** Largest number of changes a handler queues before applying them */
+  private static final int MAX_QUEUED_CHANGES = 1000;
   
   /*========== chmod ==========*/
    
@@ -177,12 +182,31 @@ class FsShellPermissions {
                        applyChmod(othersType, othersMode, existing&7, exeOk) );
 
       if (existing != newperms) {
-        try {
-          srcFs.setPermission(file.getPath(), 
-                                new FsPermission((short)newperms));
-        } catch (IOException e) {
+        paths.add(file.getPath());
+        permissions.add(new FsPermission((short)newperms));
+        if (paths.size() >= MAX_QUEUED_CHANGES) {
+          flush(srcFs);
+        }
+      }
+    }
+
+    private List<Path> paths = new ArrayList<Path>();
+    private List<FsPermission> permissions = new ArrayList<FsPermission>();
+
+    @Override
+    public void flush(FileSystem srcFs) throws IOException {
+      if (paths.isEmpty()) {
+        return;
+      }
+      Path[] p = paths.toArray(new Path[paths.size()]);
+      IOException[] errors = srcFs.setPermission(p,
+          permissions.toArray(new FsPermission[permissions.size()]));
+      paths.clear();
+      permissions.clear();
+      for (int i = 0; i < p.length; i++) {
+        if (errors[i] != null) {
           System.err.println(getName() + ": changing permissions of '" + 
-                             file.getPath() + "':" + e.getMessage());
+                             p[i] + "':" + errors[i].getMessage());
         }
       }
     }
@@ -236,12 +260,35 @@ class FsShellPermissions {
                         null : group;
 
       if (newOwner != null || newGroup != null) {
-        try {
-          srcFs.setOwner(file.getPath(), newOwner, newGroup);
-        } catch (IOException e) {
-          System.err.println(getName() + ": changing ownership of '" + 
-                             file.getPath() + "':" + e.getMessage());
+        paths.add(file.getPath());
+        owners.add(newOwner);
+        groups.add(newGroup);
+        if (paths.size() >= MAX_QUEUED_CHANGES) {
+          flush(srcFs);
+        }
+      }
+    }
 
+    private List<Path> paths = new ArrayList<Path>();
+    private List<String> owners = new ArrayList<String>();
+    private List<String> groups = new ArrayList<String>();
+
+    @Override
+    public void flush(FileSystem srcFs) throws IOException {
+      if (paths.isEmpty()) {
+        return;
+      }
+      Path[] p = paths.toArray(new Path[paths.size()]);
+      IOException[] errors = srcFs.setOwner(p,
+          owners.toArray(new String[owners.size()]),
+          groups.toArray(new String[groups.size()]));
+      paths.clear();
+      owners.clear();
+      groups.clear();
+      for (int i = 0; i < p.length; i++) {
+        if (errors[i] != null) {
+          System.err.println(getName() + ": changing ownership of '" + 
+                             p[i] + "':" + errors[i].getMessage());
         }
       }
     }
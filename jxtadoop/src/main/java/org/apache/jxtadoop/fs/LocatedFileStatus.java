@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.fs;
+
+/**
+ * A {@link FileStatus} that also carries the locations of the blocks
+ * of the file, so that both can be obtained in a single listing.
+ */
+public class LocatedFileStatus extends FileStatus {
+  private BlockLocation[] locations;
+
+  /**
+   * @param stat the file status
+   * @param locations the locations of the blocks of the file,
+   *                  empty for a directory
+   */
+  public LocatedFileStatus(FileStatus stat, BlockLocation[] locations) {
+    super(stat.getLen(), stat.isDir(), stat.getReplication(),
+          stat.getBlockSize(), stat.getModificationTime(),
+          stat.getAccessTime(), stat.getPermission(), stat.getOwner(),
+          stat.getGroup(), stat.getPath());
+    this.locations = locations;
+  }
+
+  /**
+   * Get the locations of the blocks of the file.
+   */
+  public BlockLocation[] getBlockLocations() {
+    return locations;
+  }
+}
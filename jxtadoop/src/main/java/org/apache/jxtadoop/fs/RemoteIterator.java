@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.fs;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over a collection whose elements are fetched lazily
+ * from a remote service, so that advancing it may fail with an
+ * {@link IOException}.
+ */
+public interface RemoteIterator<E> {
+  /**
+   * Returns <tt>true</tt> if the iteration has more elements.
+   *
+   * @return <tt>true</tt> if the iterator has more elements.
+   * @throws IOException if any IO error occurs
+   */
+  boolean hasNext() throws IOException;
+
+  /**
+   * Returns the next element in the iteration.
+   *
+   * @return the next element in the iteration.
+   * @throws NoSuchElementException iteration has no more elements.
+   * @throws IOException if any IO error occurs
+   */
+  E next() throws IOException;
+}
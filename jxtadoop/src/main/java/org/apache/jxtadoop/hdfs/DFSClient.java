@@ -43,6 +43,7 @@ import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.net.NetUtils;
 import org.apache.jxtadoop.net.NodeBase;
 import org.apache.jxtadoop.hdfs.DistributedFileSystem.DiskStatus;
+import org.apache.jxtadoop.hdfs.metrics.DFSClientMetrics;
 import org.apache.jxtadoop.hdfs.p2p.DFSClientPeer;
 import org.apache.jxtadoop.hdfs.p2p.DatanodePeer;
 import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
@@ -54,10 +55,15 @@ import org.apache.jxtadoop.hdfs.protocol.DSQuotaExceededException;
 import org.apache.jxtadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.protocol.LocatedDirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.NSQuotaExceededException;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperation;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperationResult;
+import org.apache.jxtadoop.hdfs.protocol.PacketCompressor;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants;
 import org.apache.jxtadoop.hdfs.server.common.UpgradeStatusReport;
 import org.apache.jxtadoop.hdfs.server.datanode.DataNode;
@@ -81,7 +87,6 @@ import org.apache.commons.logging.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.zip.CRC32;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
 import java.nio.BufferOverflowException;
@@ -120,12 +125,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private int socketTimeout;
   private int datanodeWriteTimeout;
   final int writePacketSize;
+  private boolean transferCompression; // compress block transfers
   private final FileSystem.Statistics stats;
   private int maxBlockAcquireFailures;
+  private int inlineThreshold; // largest file written inline, 0 disables
+  private int checksumType; // of the files written
+  private int maxBatchSize; // namespace operations sent per batch call
   private DFSClientPeer dfspeer;
   private static DFSClient dfsclientObject;
   private String seed = "";
   private String localDatanodePID = "";
+  final DFSClientMetrics metrics;
+  final PeerHealthTracker peerHealth;
  
   public static DFSClient getDfsClient() {
 	    return dfsclientObject;
@@ -232,9 +243,19 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     this.socketFactory = NetUtils.getSocketFactory(conf, ClientProtocol.class);*/
     // dfs.write.packet.size is an internal config variable
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.transferCompression = conf.getBoolean(
+                                  PacketCompressor.COMPRESSION_KEY, false);
     this.maxBlockAcquireFailures = 
                           conf.getInt("dfs.client.max.block.acquire.failures",
                                       MAX_BLOCK_ACQUIRE_FAILURES);
+    this.inlineThreshold = conf.getInt("dfs.client.inline.threshold", 0);
+    String checksumName = conf.get("dfs.checksum.type", "CRC32");
+    this.checksumType = DataChecksum.getChecksumType(checksumName);
+    if (checksumType != DataChecksum.CHECKSUM_CRC32 &&
+        checksumType != DataChecksum.CHECKSUM_CRC32C) {
+      throw new IOException("Unsupported dfs.checksum.type " + checksumName);
+    }
+    this.maxBatchSize = Math.max(1, conf.getInt("dfs.client.batch.size", 1000));
     
     this.dfspeer = new DFSClientPeer("DFS - "+ seed + System.getProperty("jxtadoop.datanode.id"));
     
@@ -274,6 +295,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     } else {
       this.clientName = "DFSClient_" + r.nextInt();
     }
+    this.metrics = new DFSClientMetrics(conf, clientName);
+    this.peerHealth = new PeerHealthTracker(conf);
     defaultBlockSize = conf.getLong("dfs.block.size", P2PConstants.DEFAULT_BLOCK_SIZE);
     defaultReplication = (short) conf.getInt("dfs.replication", P2PConstants.DEFAULT_DFS_REPLICATION);
 
@@ -338,6 +361,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   
       // close connections to the namenode
       RPC.stopProxy(rpcNamenode);
+      metrics.shutdown();
     }
   }
 
@@ -422,6 +446,20 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Same as {@link #callGetBlockLocations(ClientProtocol, String, long, long)}
+   * on this client's namenode, with the RPC latency recorded in the metrics.
+   */
+  private LocatedBlocks callGetBlockLocations(String src, long start,
+      long length) throws IOException {
+    long startTime = System.currentTimeMillis();
+    try {
+      return callGetBlockLocations(namenode, src, start, length);
+    } finally {
+      metrics.getBlockLocations.inc(System.currentTimeMillis() - startTime);
+    }
+  }
+
   /**
    * Get block location info about file
    * 
@@ -436,7 +474,16 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   public BlockLocation[] getBlockLocations(String src, long start, 
     long length) throws IOException {
-    LocatedBlocks blocks = callGetBlockLocations(namenode, src, start, length);
+    LocatedBlocks blocks = callGetBlockLocations(src, start, length);
+    return locatedBlocks2Locations(blocks);
+  }
+
+  /**
+   * Convert the located blocks of a file to block locations.
+   * @param blocks the located blocks, may be null
+   * @return the block locations, empty if blocks is null
+   */
+  static BlockLocation[] locatedBlocks2Locations(LocatedBlocks blocks) {
     if (blocks == null) {
       return new BlockLocation[0];
     }
@@ -479,7 +526,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       ) throws IOException {
     checkOpen();
     //    Get block info from namenode
-    return new DFSInputStream(src, buffersize, verifyChecksum);
+    long startTime = System.currentTimeMillis();
+    DFSInputStream result = new DFSInputStream(src, buffersize, verifyChecksum);
+    metrics.open.inc(System.currentTimeMillis() - startTime);
+    return result;
   }
 
   /**
@@ -598,7 +648,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     LOG.debug(src + ": masked=" + masked);
     OutputStream result = new DFSOutputStream(src, masked,
         overwrite, replication, blockSize, progress, buffersize,
-        conf.getInt("io.bytes.per.checksum", P2PConstants.IO_BYTES_PER_CHECKSUM));
+        DataChecksum.newDataChecksum(checksumType, conf.getInt(
+            "io.bytes.per.checksum", P2PConstants.IO_BYTES_PER_CHECKSUM)));
     leasechecker.put(src, result);
     return result;
   }
@@ -627,8 +678,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                      NSQuotaExceededException.class,
                                      DSQuotaExceededException.class);
     }
+    // the last block is appended to with the checksum it was written with
+    DataChecksum checksum = lastBlock != null ? getBlockChecksum(lastBlock) :
+        DataChecksum.newDataChecksum(checksumType, conf.getInt(
+            "io.bytes.per.checksum", P2PConstants.IO_BYTES_PER_CHECKSUM));
     OutputStream result = new DFSOutputStream(src, buffersize, progress,
-        lastBlock, stat, conf.getInt("io.bytes.per.checksum", P2PConstants.IO_BYTES_PER_CHECKSUM));
+        lastBlock, stat, checksum);
     leasechecker.put(src, result);
     return result;
   }
@@ -720,6 +775,42 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Get a page of a directory listing.
+   * @param src the directory name
+   * @param startAfter the name of the last entry already listed
+   * @return the page, null if src does not exist
+   * @see ClientProtocol#getListing(String, byte[], int)
+   */
+  public DirectoryListing listPaths(String src, byte[] startAfter
+                                    ) throws IOException {
+    checkOpen();
+    try {
+      return namenode.getListing(src, startAfter, 0);
+    } catch(RemoteException re) {
+      throw re.unwrapRemoteException(AccessControlException.class);
+    }
+  }
+
+  /**
+   * Get a page of a directory listing with the block locations of
+   * each file.
+   * @param src the directory name
+   * @param startAfter the name of the last entry already listed
+   * @return the page, null if src does not exist
+   * @see ClientProtocol#getLocatedListing(String, byte[], int)
+   */
+  public LocatedDirectoryListing listLocatedPaths(String src, 
+                                                  byte[] startAfter
+                                                  ) throws IOException {
+    checkOpen();
+    try {
+      return namenode.getLocatedListing(src, startAfter, 0);
+    } catch(RemoteException re) {
+      throw re.unwrapRemoteException(AccessControlException.class);
+    }
+  }
+
   public FileStatus getFileInfo(String src) throws IOException {
     checkOpen();
     try {
@@ -852,6 +943,55 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     return new MD5MD5CRC32FileChecksum(bytesPerCRC, crcPerBlock, fileMD5);
   }
 
+  /**
+   * Get the checksum type and bytes per checksum of a block, from the
+   * header of its meta file on the first datanode that answers.
+   */
+  private DataChecksum getBlockChecksum(LocatedBlock lb) throws IOException {
+    final Block block = lb.getBlock();
+    for (DatanodeInfo datanode : lb.getLocations()) {
+      JxtaSocket jsock = getDfsClientPeer().getInfoSocket(datanode.getPeerId());
+      jsock.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(jsock.getOutputStream()));
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(jsock.getInputStream()));
+      try {
+        out.writeShort(DataTransferProtocol.DATA_TRANSFER_VERSION);
+        out.write(DataTransferProtocol.OP_READ_METADATA);
+        out.writeLong(block.getBlockId());
+        out.writeLong(block.getGenerationStamp());
+        out.flush();
+
+        final byte reply = in.readByte();
+        if (reply != DataTransferProtocol.OP_STATUS_SUCCESS) {
+          throw new IOException("Bad response " + reply + " for block "
+              + block + " from datanode " + datanode.getName());
+        }
+        // the meta file: its version, the checksum header and the checksums
+        final int metaLen = in.readInt();
+        in.readShort();
+        final DataChecksum checksum = DataChecksum.newDataChecksum(in);
+        IOUtils.skipFully(in, metaLen - 2 - DataChecksum.HEADER_LEN);
+        in.readInt(); // end of data
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("block=" + block + " from " + datanode.getName() +
+                    " has checksum " + checksum);
+        }
+        return checksum;
+      } catch (IOException ie) {
+        LOG.warn("Could not read the checksum of block " + block +
+                 " from " + datanode.getName() + ": " + ie);
+      } finally {
+        IOUtils.closeStream(in);
+        IOUtils.closeStream(out);
+        IOUtils.closeSocket(jsock);
+      }
+    }
+    throw new IOException("Could not read the checksum of block " + block +
+                          " from any of its datanodes");
+  }
+
   /**
    * Set permissions to a file or directory.
    * @param src path name.
@@ -887,6 +1027,33 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Run namespace operations in batches of at most dfs.client.batch.size
+   * operations per namenode call.
+   * @param ops the operations to run, in order
+   * @return the result of each operation
+   * @see ClientProtocol#batch(NamespaceOperation[])
+   */
+  public NamespaceOperationResult[] batch(NamespaceOperation[] ops
+                                          ) throws IOException {
+    checkOpen();
+    NamespaceOperationResult[] results = new NamespaceOperationResult[ops.length];
+    for (int start = 0; start < ops.length; start += maxBatchSize) {
+      int n = Math.min(maxBatchSize, ops.length - start);
+      NamespaceOperation[] chunk = ops;
+      if (n != ops.length) {
+        chunk = new NamespaceOperation[n];
+        System.arraycopy(ops, start, chunk, 0, n);
+      }
+      try {
+        System.arraycopy(namenode.batch(chunk), 0, results, start, n);
+      } catch(RemoteException re) {
+        throw re.unwrapRemoteException(AccessControlException.class);
+      }
+    }
+    return results;
+  }
+
   public DiskStatus getDiskStatus() throws IOException {
     long rawNums[] = namenode.getStats();
     return new DiskStatus(rawNums[0], rawNums[1], rawNums[2]);
@@ -1082,17 +1249,28 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
   /**
    * Pick the best node from which to stream the data.
-   * Entries in <i>nodes</i> are already in the priority order
+   * Entries in <i>nodes</i> are already in the priority order.
+   * Nodes penalized client-wide by {@link PeerHealthTracker} are only
+   * used when no other live node is left.
    */
   private DatanodeInfo bestNode(DatanodeInfo nodes[], 
                                 AbstractMap<DatanodeInfo, DatanodeInfo> deadNodes)
                                 throws IOException {
     if (nodes != null) { 
+      DatanodeInfo penalized = null;
       for (int i = 0; i < nodes.length; i++) {
         if (!deadNodes.containsKey(nodes[i])) {
-          return nodes[i];
+          if (!peerHealth.isPenalized(nodes[i])) {
+            return nodes[i];
+          }
+          if (penalized == null) {
+            penalized = nodes[i];
+          }
         }
       }
+      if (penalized != null) {
+        return penalized;
+      }
     }
     throw new IOException("No live nodes contain current block");
   }
@@ -1234,6 +1412,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     ByteBuffer checksumBytes = null;
     int dataLeft = 0;
     boolean isLastPacket = false;
+
+    // data of the current packet when it was compressed, null otherwise
+    private ByteBuffer packetData = null;
+    private PacketCompressor decompressor = null;
+    private byte[] compressedBuf = null;
+    private byte[] unpackedBuf = null;
     
     /* FSInputChecker interface */
     
@@ -1333,12 +1517,43 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
       checksumBytes.limit(requiredSize);
     }
+
+    /**
+     * Reads and decompresses the checksums and data of a compressed
+     * packet. The checksums go to checksumBytes and the data is then
+     * read from packetData.
+     */
+    private void readCompressedPacket(int compressedLen, int dataLen)
+                                      throws IOException {
+      int checksumLen = checksumBytes.limit();
+      if (compressedLen < 0 || compressedLen > DataNode.MAX_PACKET_PAYLOAD ||
+          checksumLen + dataLen > DataNode.MAX_PACKET_PAYLOAD) {
+        throw new IOException("BlockReader: error in compressed packet " +
+                              "length " + compressedLen + " for " +
+                              (checksumLen + dataLen) + " unpacked bytes");
+      }
+      if (compressedBuf == null || compressedBuf.length < compressedLen) {
+        compressedBuf = new byte[compressedLen];
+      }
+      IOUtils.readFully(in, compressedBuf, 0, compressedLen);
+
+      if (unpackedBuf == null || unpackedBuf.length < checksumLen + dataLen) {
+        unpackedBuf = new byte[checksumLen + dataLen];
+      }
+      if (decompressor == null) {
+        decompressor = new PacketCompressor();
+      }
+      decompressor.decompress(compressedBuf, 0, compressedLen,
+                              unpackedBuf, 0, checksumLen + dataLen);
+      System.arraycopy(unpackedBuf, 0, checksumBytes.array(), 0, checksumLen);
+      packetData = ByteBuffer.wrap(unpackedBuf, checksumLen, dataLen);
+    }
     
     @Override
     protected synchronized int readChunk(long pos, byte[] buf, int offset, 
                                          int len, byte[] checksumBuf) 
                                          throws IOException {
-      // Read one chunk.
+      // Read as many chunks of the current packet as fit in buf.
       
       if ( gotEOS ) {
         if ( startOffset < 0 ) {
@@ -1366,19 +1581,22 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         int packetLen = in.readInt();
         long offsetInBlock = in.readLong();
         long seqno = in.readLong();
-        boolean lastPacketInBlock = in.readBoolean();
+        byte flags = in.readByte();
+        boolean lastPacketInBlock = PacketCompressor.isLastPacketInBlock(flags);
+        boolean compressed = PacketCompressor.isCompressed(flags);
       
         if (LOG.isDebugEnabled()) {
           LOG.debug("DFSClient readChunk got seqno " + seqno +
                     " offsetInBlock " + offsetInBlock +
                     " lastPacketInBlock " + lastPacketInBlock +
+                    " compressed " + compressed +
                     " packetLen " + packetLen);
         }
         
         int dataLen = in.readInt();
       
         // Sanity check the lengths
-        if ( dataLen < 0 || 
+        if ( dataLen < 0 || dataLen > DataNode.MAX_PACKET_PAYLOAD ||
              ( (dataLen % bytesPerChecksum) != 0 && !lastPacketInBlock ) ||
              (seqno != (lastSeqNo + 1)) ) {
              throw new IOException("BlockReader: error in packet header" +
@@ -1392,18 +1610,31 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         isLastPacket = lastPacketInBlock;
         dataLeft = dataLen;
         adjustChecksumBytes(dataLen);
-        if (dataLen > 0) {
+        packetData = null;
+        if (compressed && dataLen > 0) {
+          readCompressedPacket(packetLen - SIZE_OF_INTEGER, dataLen);
+        } else if (dataLen > 0) {
           IOUtils.readFully(in, checksumBytes.array(), 0,
                             checksumBytes.limit());
         }
       }
 
-      int chunkLen = Math.min(dataLeft, bytesPerChecksum);
+      int maxChunks = len / bytesPerChecksum;
+      if (checksumSize > 0) {
+        maxChunks = Math.min(maxChunks, checksumBuf.length / checksumSize);
+      }
+      int chunkLen = (int)Math.min(dataLeft,
+                                   (long)Math.max(1, maxChunks) * bytesPerChecksum);
       
       if ( chunkLen > 0 ) {
         // len should be >= chunkLen
-        IOUtils.readFully(in, buf, offset, chunkLen);
-        checksumBytes.get(checksumBuf, 0, checksumSize);
+        if (packetData != null) {
+          packetData.get(buf, offset, chunkLen);
+        } else {
+          IOUtils.readFully(in, buf, offset, chunkLen);
+        }
+        checksumBytes.get(checksumBuf, 0, 
+            ((chunkLen + bytesPerChecksum - 1) / bytesPerChecksum) * checksumSize);
       }
       
       dataLeft -= chunkLen;
@@ -1466,6 +1697,23 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                        int bufferSize, boolean verifyChecksum,
                                        String clientName)
                                        throws IOException {
+      return newBlockReader(sock, file, blockId, genStamp, startOffset,
+                            len, bufferSize, verifyChecksum, clientName,
+                            false);
+    }
+
+    /**
+     * @param acceptCompression whether the datanode may send compressed
+     *        packets, it only does when its dfs.transfer.compression is set
+     */
+    public static BlockReader newBlockReader( JxtaSocket sock, String file,
+                                       long blockId, 
+                                       long genStamp,
+                                       long startOffset, long len,
+                                       int bufferSize, boolean verifyChecksum,
+                                       String clientName,
+                                       boolean acceptCompression)
+                                       throws IOException {
       // in and out will be closed when sock is closed (by the caller)
       //DataOutputStream out = new DataOutputStream(
       //  new BufferedOutputStream(NetUtils.getOutputStream(sock,HdfsConstants.WRITE_TIMEOUT)));
@@ -1479,6 +1727,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       out.writeLong( startOffset );
       out.writeLong( len );
       Text.writeString(out, clientName);
+      out.writeBoolean(acceptCompression);
       out.flush();
       
       //
@@ -1516,6 +1765,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     public synchronized void close() throws IOException {
       startOffset = -1;
       checksum = null;
+      if (decompressor != null) {
+        decompressor.end();
+        decompressor = null;
+      }
       // in will be closed when its Socket is closed.
     }
     
@@ -1564,6 +1817,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private long pos = 0;
     private long blockEnd = -1;
     private int failures = 0;
+    private long blockStartTime = 0; // when the current block reader was set up
+    private long blockBytesRead = 0; // bytes read from the current block reader
+    private boolean awaitingFirstByte = false;
 
     /* XXX Use of CocurrentHashMap is temp fix. Need to fix 
      * parallel accesses to DFSInputStream (through ptreads) properly */
@@ -1574,6 +1830,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private byte[] oneByteBuf = new byte[1]; // used for 'int read()'
     
     void addToDeadNodes(DatanodeInfo dnInfo) {
+      metrics.deadNodeEvents.inc();
       deadNodes.put(dnInfo, dnInfo);
     }
     
@@ -1590,7 +1847,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * Grab the open-file info from namenode
      */
     synchronized void openInfo() throws IOException {
-      LocatedBlocks newInfo = callGetBlockLocations(namenode, src, 0, prefetchSize);
+      LocatedBlocks newInfo = callGetBlockLocations(src, 0, prefetchSize);
       if (newInfo == null) {
         throw new IOException("Cannot open filename " + src);
       }
@@ -1649,7 +1906,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         targetBlockIdx = LocatedBlocks.getInsertIndex(targetBlockIdx);
         // fetch more blocks
         LocatedBlocks newBlocks;
-        newBlocks = callGetBlockLocations(namenode, src, offset, prefetchSize);
+        newBlocks = callGetBlockLocations(src, offset, prefetchSize);
         assert (newBlocks != null) : "Could not find target position " + offset;
         locatedBlocks.insertRange(targetBlockIdx, newBlocks.getLocatedBlocks());
       }
@@ -1688,7 +1945,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           blk = locatedBlocks.get(blockIdx);
         if (blk == null || curOff < blk.getStartOffset()) {
           LocatedBlocks newBlocks;
-          newBlocks = callGetBlockLocations(namenode, src, curOff, remaining);
+          newBlocks = callGetBlockLocations(src, curOff, remaining);
           locatedBlocks.insertRange(blockIdx, newBlocks.getLocatedBlocks());
           continue;
         }
@@ -1744,20 +2001,28 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           // s = socketFactory.createSocket();
           // NetUtils.connect(s, targetAddr, socketTimeout);
           // NetUtils.connect(s, targetAddr, socketTimeout);
+          long startTime = System.currentTimeMillis();
           s = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(chosenNode.getPeerId());
           // s.setSoTimeout(socketTimeout);
           s.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
+          long connectedTime = System.currentTimeMillis();
+          metrics.connect.inc(connectedTime - startTime);
           Block blk = targetBlock.getBlock();
           
           blockReader = BlockReader.newBlockReader(s, src, blk.getBlockId(), 
               blk.getGenerationStamp(),
               offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock,
-              buffersize, verifyChecksum, clientName);
+              buffersize, verifyChecksum, clientName, transferCompression);
+          metrics.readHandshake.inc(System.currentTimeMillis() - connectedTime);
+          blockStartTime = startTime;
+          blockBytesRead = 0;
+          awaitingFirstByte = true;
           return chosenNode;
         } catch (IOException ex) {
           // Put chosen node into dead list, continue
           LOG.debug("Failed to connect to " + targetAddr + ":" 
                     + StringUtils.stringifyException(ex));
+          peerHealth.failed(chosenNode, ex);
           addToDeadNodes(chosenNode);
           if (s != null) {
             try {
@@ -1867,6 +2132,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       if (closed) {
         throw new IOException("Stream closed");
       }
+      if (pos < getFileLength() && locatedBlocks.getInlineData() != null) {
+        int result = readInline(pos, buf, off, len);
+        pos += result;
+        return result;
+      }
       if (pos < getFileLength()) {
         int retries = 2;
         while (retries > 0) {
@@ -1879,6 +2149,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             
             if (result >= 0) {
               pos += result;
+              blockBytesRead += result;
+              incBytesRead(currentNode, result);
+              if (awaitingFirstByte && result > 0) {
+                metrics.firstByte.inc(System.currentTimeMillis() - blockStartTime);
+                awaitingFirstByte = false;
+              }
+              if (pos > blockEnd) {
+                long elapsed = System.currentTimeMillis() - blockStartTime;
+                metrics.blockRead.inc(elapsed);
+                peerHealth.transferred(currentNode, blockBytesRead, elapsed);
+              }
             } else {
               // got a EOS from reader though we expect more data on it.
               throw new IOException("Unexpected EOS from the reader");
@@ -1894,7 +2175,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               LOG.warn("DFS Read: " + StringUtils.stringifyException(e));
             }
             blockEnd = -1;
-            if (currentNode != null) { addToDeadNodes(currentNode); }
+            metrics.readRetries.inc();
+            if (currentNode != null) {
+              peerHealth.failed(currentNode, e);
+              addToDeadNodes(currentNode);
+            }
             if (--retries == 0) {
               throw e;
             }
@@ -1917,6 +2202,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           return new DNAddrPair(chosenNode, targetAddr);
         } catch (IOException ie) {
           String blockInfo = block.getBlock() + " file=" + src;
+          metrics.blockAcquireFailures.inc();
           if (failures >= maxBlockAcquireFailures) {
             throw new IOException("Could not obtain block: " + blockInfo);
           }
@@ -1955,9 +2241,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         try {
           // dn = socketFactory.createSocket();
           // NetUtils.connect(dn, targetAddr, socketTimeout);
+          long startTime = System.currentTimeMillis();
           dn = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(chosenNode.getPeerId());
           // dn.setSoTimeout(socketTimeout);
           dn.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
+          long connectedTime = System.currentTimeMillis();
+          metrics.connect.inc(connectedTime - startTime);
               
           int len = (int) (end - start + 1);
               
@@ -1965,12 +2254,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                               block.getBlock().getBlockId(),
                                               block.getBlock().getGenerationStamp(),
                                               start, len, buffersize, 
-                                              verifyChecksum, clientName);
+                                              verifyChecksum, clientName,
+                                              transferCompression);
+          metrics.readHandshake.inc(System.currentTimeMillis() - connectedTime);
           int nread = reader.readAll(buf, offset, len);
           if (nread != len) {
             throw new IOException("truncated return from reader.read(): " +
                                   "excpected " + len + ", got " + nread);
           }
+          long elapsed = System.currentTimeMillis() - startTime;
+          metrics.blockRead.inc(elapsed);
+          peerHealth.transferred(chosenNode, nread, elapsed);
+          incBytesRead(chosenNode, nread);
           return;
         } catch (ChecksumException e) {
           ioe = e;
@@ -1980,6 +2275,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           reportChecksumFailure(src, block.getBlock(), chosenNode);
         } catch (IOException e) {
           ioe = e;
+          peerHealth.failed(chosenNode, e);
           LOG.warn("Failed to connect to " + targetAddr + 
                    " for file " + src + 
                    " for block " + block.getBlock().getBlockId() + ":"  +
@@ -2021,6 +2317,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       if ((position + length) > filelen) {
         realLen = (int)(filelen - position);
       }
+      if (locatedBlocks.getInlineData() != null) {
+        return readInline(position, buffer, offset, realLen);
+      }
       
       // determine the block and byte range within the block
       // corresponding to position and realLen
@@ -2042,6 +2341,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return realLen;
     }
      
+    /**
+     * Account the bytes read against the local datanode or a remote peer.
+     */
+    private void incBytesRead(DatanodeInfo node, int n) {
+      if (node != null && node.getPeerId().equals(localDatanodePID)) {
+        metrics.bytesReadLocal.inc(n);
+      } else {
+        metrics.bytesReadRemote.inc(n);
+      }
+    }
+
     @Override
     public long skip(long n) throws IOException {
       if ( n > 0 ) {
@@ -2056,6 +2366,22 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return n < 0 ? -1 : 0;
     }
 
+    /**
+     * Serve a read of a file stored inline by the namenode
+     * from the content returned with its block locations.
+     */
+    private int readInline(long position, byte[] buffer, int offset,
+                           int length) {
+      byte[] data = locatedBlocks.getInlineData();
+      int n = Math.min(length, data.length - (int)position);
+      System.arraycopy(data, (int)position, buffer, offset, n);
+      incBytesRead(null, n);
+      if (stats != null) {
+        stats.incrementBytesRead(n);
+      }
+      return n;
+    }
+
     /**
      * Seek to a new arbitrary location
      */
@@ -2242,6 +2568,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private int maxRecoveryErrorCount = 5; // try block recovery 5 times
     private volatile boolean appendChunk = false;   // appending to existing partial block
     private long initialFileSize = 0; // at time of file open
+    // Chunks held back while the file may still be created inline.
+    // Null once the file exists on the namenode.
+    private List<byte[]> inlineChunks = null;
+    private List<byte[]> inlineChecksums = null;
+    private int inlineBytes = 0;
+    private FsPermission masked;
+    private boolean overwrite;
+    private short replication;
 
     private void setLastException(IOException e) {
       if (lastException == null) {
@@ -2261,6 +2595,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       int     dataPos;
       int     checksumStart;
       int     checksumPos;      
+      long    sentTime;            // when the packet was written to the pipeline
   
       // create a new packet
       Packet(int pktSize, int chunksPerPkt, long offsetInBlock) {
@@ -2335,7 +2670,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         buffer.putInt(pktLen);  // pktSize
         buffer.putLong(offsetInBlock); 
         buffer.putLong(seqno);
-        buffer.put((byte) ((lastPacketInBlock) ? 1 : 0));
+        buffer.put(lastPacketInBlock ? PacketCompressor.LAST_PACKET_IN_BLOCK : 0);
         //end of pkt header
         buffer.putInt(dataLen); // actual data length, excluding checksum.
         
@@ -2355,6 +2690,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private class DataStreamer extends Daemon {
 
       private volatile boolean closed = false;
+      // packets stay uncompressed in the queues, as they may be resent
+      private PacketCompressor compressor =
+        transferCompression ? new PacketCompressor() : null;
   
       public void run() {
         while (!closed && clientRunning) {
@@ -2455,7 +2793,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             	  LOG.debug("The streaming reliable stream is still open");*/
             	  
               try {
-            	  blockStream.write(buf.array(), buf.position(), buf.remaining());
+            	  one.sentTime = System.currentTimeMillis();
+            	  ByteBuffer wire =
+            	    (compressor != null) ? compressor.compress(buf) : buf;
+            	  blockStream.write(wire.array(), wire.position(), wire.remaining());
+            	  metrics.bytesWritten.inc(one.dataPos - one.dataStart);
               } catch (SocketTimeoutException ste) {
             	  LOG.warn("Failed to stream data to datanode (timeout) : "+ste.getMessage());
               } catch (IOException ioe) {
@@ -2565,6 +2907,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             } catch (InterruptedException e) {}
           }
         }
+        if (compressor != null) {
+          compressor.end();
+        }
       }
 
       // shutdown thread
@@ -2623,6 +2968,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                       " for block " + block +
                                       one.seqno + " but received " + seqno);
               }
+              metrics.ackRtt.inc(System.currentTimeMillis() - one.sentTime);
               lastPacketInBlock = one.lastPacketInBlock;
             }
 
@@ -2688,10 +3034,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                  " waiting for responder to exit. ");
         return true;
       }
+      metrics.pipelineRecoveries.inc();
       if (errorIndex >= 0) {
         LOG.warn("Error Recovery for block " + block
             + " bad datanode[" + errorIndex + "] "
             + (nodes == null? "nodes == null": nodes[errorIndex].getName()));
+        if (nodes != null) {
+          peerHealth.failed(nodes[errorIndex], lastException);
+        }
       }
 
       if (blockStream != null) {
@@ -2857,8 +3207,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private Progressable progress;
 
     private DFSOutputStream(String src, long blockSize, Progressable progress,
-        int bytesPerChecksum) throws IOException {
-      super(new CRC32(), bytesPerChecksum, 4);
+        DataChecksum checksum) throws IOException {
+      super(checksum, checksum.getBytesPerChecksum(), 4);
+      int bytesPerChecksum = checksum.getBytesPerChecksum();
       this.src = src;
       this.blockSize = blockSize;
       this.progress = progress;
@@ -2873,8 +3224,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               "multiple of io.bytes.per.checksum");
                               
       }
-      checksum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 
-                                              bytesPerChecksum);
+      this.checksum = checksum;
     }
 
     /**
@@ -2883,12 +3233,28 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      */
     DFSOutputStream(String src, FsPermission masked, boolean overwrite,
         short replication, long blockSize, Progressable progress,
-        int buffersize, int bytesPerChecksum) throws IOException {
-      this(src, blockSize, progress, bytesPerChecksum);
-
-      computePacketChunkSize(writePacketSize, bytesPerChecksum);
+        int buffersize, DataChecksum checksum) throws IOException {
+      this(src, blockSize, progress, checksum);
+
+      computePacketChunkSize(writePacketSize, checksum.getBytesPerChecksum());
+      this.masked = masked;
+      this.overwrite = overwrite;
+      this.replication = replication;
+
+      if (inlineThreshold > 0) {
+        // Hold the data back: a file that is closed before it grows
+        // past the threshold is created inline with a single call.
+        inlineChunks = new ArrayList<byte[]>();
+        inlineChecksums = new ArrayList<byte[]>();
+      } else {
+        createFile();
+      }
+    }
 
-      // Create the DFS entry for the new file
+    /**
+     * Create the DFS entry for the new file and start streaming.
+     */
+    private void createFile() throws IOException {
       try {
         namenode.create(
             src, masked, clientName, overwrite, replication, blockSize);
@@ -2901,6 +3267,47 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       // Stream the blocks fromlocal file to remote DFS
       streamer.start();
     }
+
+    /**
+     * Give up on storing the file inline: create it on the namenode
+     * and send the chunks held back so far through the pipeline.
+     */
+    private synchronized void flushInlineChunks() throws IOException {
+      List<byte[]> chunks = inlineChunks;
+      List<byte[]> checksums = inlineChecksums;
+      inlineChunks = null;
+      inlineChecksums = null;
+      createFile();
+      for (int i = 0; i < chunks.size(); i++) {
+        byte[] chunk = chunks.get(i);
+        writeChunk(chunk, 0, chunk.length, checksums.get(i));
+      }
+    }
+
+    /**
+     * Create the file inline with the chunks held back.
+     */
+    private void createInlineFile() throws IOException {
+      byte[] data = new byte[inlineBytes];
+      int off = 0;
+      for (byte[] chunk : inlineChunks) {
+        System.arraycopy(chunk, 0, data, off, chunk.length);
+        off += chunk.length;
+      }
+      inlineChunks = null;
+      inlineChecksums = null;
+      long start = System.currentTimeMillis();
+      try {
+        namenode.createInline(src, masked, clientName, overwrite,
+                              replication, blockSize, data);
+      } catch(RemoteException re) {
+        throw re.unwrapRemoteException(AccessControlException.class,
+                                       NSQuotaExceededException.class,
+                                       DSQuotaExceededException.class);
+      }
+      metrics.complete.inc(System.currentTimeMillis() - start);
+      metrics.bytesWritten.inc(data.length);
+    }
   
     /**
      * Create a new output stream to the given DataNode.
@@ -2908,8 +3315,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      */
     DFSOutputStream(String src, int buffersize, Progressable progress,
         LocatedBlock lastBlock, FileStatus stat,
-        int bytesPerChecksum) throws IOException {
-      this(src, stat.getBlockSize(), progress, bytesPerChecksum);
+        DataChecksum checksum) throws IOException {
+      this(src, stat.getBlockSize(), progress, checksum);
+      int bytesPerChecksum = checksum.getBytesPerChecksum();
       initialFileSize = stat.getLen(); // length of file when opened
 
       //
@@ -2995,6 +3403,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       DatanodeInfo[] nodes;
       int count = conf.getInt("dfs.client.block.write.retries", 3);
       boolean success;
+      // peers this stream failed to set a pipeline with, on top of the
+      // ones penalized client-wide
+      List<DatanodeInfo> failedNodes = new ArrayList<DatanodeInfo>();
       do {
         hasError = false;
         lastException = null;
@@ -3004,11 +3415,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         success = false;
                 
         long startTime = System.currentTimeMillis();
+        List<DatanodeInfo> excludedNodes = peerHealth.getPenalizedNodes();
+        for (DatanodeInfo failed : failedNodes) {
+          if (!excludedNodes.contains(failed)) {
+            excludedNodes.add(failed);
+          }
+        }
         LOG.debug("Locating the block");		// This is where the blocks are assigned
         if(dfsclientObject.hasLocalDatanode())
-        	lb = locateFollowingBlock(startTime,dfsclientObject.getLocalDatanode()); 	
+        	lb = locateFollowingBlock(startTime,dfsclientObject.getLocalDatanode(),
+        	    excludedNodes); 	
         else
-        	lb = locateFollowingBlock(startTime);
+        	lb = locateFollowingBlock(startTime, "", excludedNodes);
         
         block = lb.getBlock();
         nodes = lb.getLocations();
@@ -3020,11 +3438,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         success = createBlockOutputStream(nodes, clientName, false);
 
         if (!success) {
+          DatanodeInfo badNode = nodes[Math.max(errorIndex, 0)];
+          peerHealth.failed(badNode, lastException);
+          failedNodes.add(badNode);
           LOG.info("Abandoning block " + block);
           namenode.abandonBlock(block, src, clientName);
 
           // Connection failed.  Let's wait a little bit and retry
           retry = true;
+          metrics.writeRetries.inc();
           try {
             if (System.currentTimeMillis() - startTime > 5000) {
               LOG.info("Waiting to find target node: " + nodes[0].getName());
@@ -3085,6 +3507,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         
         DataOutputStream out = null;
        	
+        long startTime = System.currentTimeMillis();
         s= DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(nodes[0].getPeerId());
         s.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
         	
@@ -3097,6 +3520,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
        	if(blockReliableStream.isClosed())
        		LOG.debug("Reliable output stream has been closed");
        	out = new DataOutputStream(new BufferedOutputStream(blockReliableStream));
+       	long connectedTime = System.currentTimeMillis();
+       	metrics.connect.inc(connectedTime - startTime);
 	        
        	out.writeShort( DataTransferProtocol.DATA_TRANSFER_VERSION );
         out.write( DataTransferProtocol.OP_WRITE_BLOCK );
@@ -3137,6 +3562,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           throw new IOException("Bad connect ack with firstBadLink " + firstBadLink);
         }
 
+        metrics.writeHandshake.inc(System.currentTimeMillis() - connectedTime);
         blockStream = out;
         return true;     // success
 
@@ -3163,7 +3589,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   
     private LocatedBlock locateFollowingBlock(long start
     	) throws IOException {   
-    	return locateFollowingBlock(start,"");
+    	return locateFollowingBlock(start, "", null);
     }
     
     /**
@@ -3171,10 +3597,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * 
      * @param start	
      * @param localdn the local datanode colocated with the dfs client
+     * @param excludedNodes datanodes which should not be part of the pipeline
      * @return the located blocks with the associated datanodes
      * @throws IOException
      */
-    private LocatedBlock locateFollowingBlock(long start, String localdn
+    private LocatedBlock locateFollowingBlock(long start, String localdn,
+                                              List<DatanodeInfo> excludedNodes
                                               ) throws IOException {
     	// TODO: Modify the logic to force the first datanode to be the local datanode
       int retries = conf.getInt("dfs.client.block.write.locateFollowingBlock.retries", 5);
@@ -3182,8 +3610,13 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       while (true) {
         long localstart = System.currentTimeMillis();
         while (true) {
+          long startTime = System.currentTimeMillis();
           try {
-            if (localdn.length() == 0) {
+            if (excludedNodes != null && !excludedNodes.isEmpty()) {
+            	LOG.debug("Asking namenode to add the block "+src+" by client : "+clientName + " excluding "+excludedNodes);
+            	return namenode.addBlock(src, clientName, localdn,
+            	    excludedNodes.toArray(new DatanodeInfo[excludedNodes.size()]));
+            } else if (localdn.length() == 0) {
             	LOG.debug("Asking namenode to add the block "+src+" by client : "+clientName);
             	return namenode.addBlock(src, clientName);
             } else {
@@ -3231,6 +3664,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             } else {
               throw e;
             }
+          } finally {
+            metrics.addBlock.inc(System.currentTimeMillis() - startTime);
           }
         }
       } 
@@ -3242,6 +3677,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                                           throws IOException {
       checkOpen();
       isClosed();
+
+      if (inlineChunks != null) {
+        if (inlineBytes + len <= inlineThreshold) {
+          byte[] chunk = new byte[len];
+          System.arraycopy(b, offset, chunk, 0, len);
+          inlineChunks.add(chunk);
+          inlineChecksums.add(checksum.clone());
+          inlineBytes += len;
+          return;
+        }
+        flushInlineChunks();
+      }
   
       int cklen = checksum.length;
       int bytesPerChecksum = this.checksum.getBytesPerChecksum(); 
@@ -3332,6 +3779,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      */
     public synchronized void sync() throws IOException {
       try {
+        if (inlineChunks != null) {
+          flushInlineChunks();
+        }
+
         /* Record current blockOffset. This might be changed inside
          * flushBuffer() where a partial checksum chunk might be flushed.
          * After the flush, reset the bytesCurBlock back to its previous value,
@@ -3482,6 +3933,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
       try {
           flushBuffer();       // flush from all upper layers
+
+          if (inlineChunks != null) {
+            createInlineFile();
+            return;
+          }
       
           // Mark that this packet is the last packet in block.
           // If there are no outstanding packets and the last packet
@@ -3531,11 +3987,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
         long localstart = System.currentTimeMillis();
         boolean fileComplete = false;
+        // datanodes report the last block within a few ms, so retry soon
+        // first and back off to the old 400 ms
+        long retryWait = 10;
         while (!fileComplete) {
           fileComplete = namenode.complete(src, clientName);
           if (!fileComplete) {
             try {
-              Thread.sleep(400);
+              Thread.sleep(retryWait);
+              retryWait = Math.min(retryWait * 2, 400);
               if (System.currentTimeMillis() - localstart > 5000) {
                 LOG.info("Could not complete file " + src + " retrying...");
               }
@@ -3543,6 +4003,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             }
           }
         }
+        metrics.complete.inc(System.currentTimeMillis() - localstart);
       } finally {
         closed = true;
       }
@@ -3572,6 +4033,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   }
 
   void reportChecksumFailure(String file, Block blk, DatanodeInfo dn) {
+    metrics.checksumFailures.inc();
     DatanodeInfo [] dnArr = { dn };
     LocatedBlock [] lblocks = { new LocatedBlock(blk, dnArr) };
     reportChecksumFailure(file, lblocks);
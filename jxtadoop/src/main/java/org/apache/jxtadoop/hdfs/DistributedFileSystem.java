@@ -20,6 +20,9 @@ package org.apache.jxtadoop.hdfs;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 import org.apache.jxtadoop.fs.BlockLocation;
 import org.apache.jxtadoop.fs.ContentSummary;
@@ -28,13 +31,20 @@ import org.apache.jxtadoop.fs.FSDataOutputStream;
 import org.apache.jxtadoop.fs.FileStatus;
 import org.apache.jxtadoop.fs.FileSystem;
 import org.apache.jxtadoop.fs.MD5MD5CRC32FileChecksum;
+import org.apache.jxtadoop.fs.LocatedFileStatus;
 import org.apache.jxtadoop.fs.Path;
+import org.apache.jxtadoop.fs.RemoteIterator;
 import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
+import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.protocol.LocatedDirectoryListing;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperation;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperationResult;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants.DatanodeReportType;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants.UpgradeAction;
 import org.apache.jxtadoop.hdfs.server.common.UpgradeStatusReport;
@@ -272,14 +282,121 @@ public class DistributedFileSystem extends FileSystem {
         f.getPath().makeQualified(this)); // fully-qualify path
   }
 
+  /**
+   * List the directory one page at a time so that the namenode never
+   * builds or sends the whole listing of a large directory at once.
+   */
   public FileStatus[] listStatus(Path p) throws IOException {
-    FileStatus[] infos = dfs.listPaths(getPathName(p));
-    if (infos == null) return null;
-    FileStatus[] stats = new FileStatus[infos.length];
-    for (int i = 0; i < infos.length; i++) {
-      stats[i] = makeQualified(infos[i]);
+    String src = getPathName(p);
+    DirectoryListing thisListing = dfs.listPaths(src, DirectoryListing.EMPTY_NAME);
+    if (thisListing == null) return null;
+    FileStatus[] infos = thisListing.getPartialListing();
+    if (!thisListing.hasMore()) {
+      FileStatus[] stats = new FileStatus[infos.length];
+      for (int i = 0; i < infos.length; i++) {
+        stats[i] = makeQualified(infos[i]);
+      }
+      return stats;
+    }
+    ArrayList<FileStatus> listing = new ArrayList<FileStatus>(
+        infos.length + thisListing.getRemainingEntries());
+    while (true) {
+      for (FileStatus info : infos) {
+        listing.add(makeQualified(info));
+      }
+      if (!thisListing.hasMore()) {
+        break;
+      }
+      thisListing = dfs.listPaths(src, thisListing.getLastName());
+      if (thisListing == null) {
+        throw new FileNotFoundException("Directory " + src 
+                                        + " was deleted while being listed");
+      }
+      infos = thisListing.getPartialListing();
+    }
+    return listing.toArray(new FileStatus[listing.size()]);
+  }
+
+  /**
+   * Return an iterator that fetches the listing of the directory
+   * from the namenode page by page as it is consumed.
+   * {@inheritDoc}
+   */
+  @Override
+  public RemoteIterator<FileStatus> listStatusIterator(Path p)
+      throws IOException {
+    final String src = getPathName(p);
+    final DirectoryListing firstListing = dfs.listPaths(src, DirectoryListing.EMPTY_NAME);
+    if (firstListing == null) {
+      throw new FileNotFoundException("File " + p + " does not exist.");
+    }
+    return new RemoteIterator<FileStatus>() {
+      private DirectoryListing thisListing = firstListing;
+      private int i = 0;
+
+      public boolean hasNext() throws IOException {
+        if (i >= thisListing.getPartialListing().length 
+            && thisListing.hasMore()) {
+          thisListing = dfs.listPaths(src, thisListing.getLastName());
+          if (thisListing == null) {
+            throw new FileNotFoundException("Directory " + src 
+                                            + " was deleted while being listed");
+          }
+          i = 0;
+        }
+        return i < thisListing.getPartialListing().length;
+      }
+
+      public FileStatus next() throws IOException {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more entries in " + src);
+        }
+        return makeQualified(thisListing.getPartialListing()[i++]);
+      }
+    };
+  }
+
+  /**
+   * Return an iterator that fetches the listing of the directory together
+   * with the block locations of its files, one page per namenode call.
+   * {@inheritDoc}
+   */
+  @Override
+  public RemoteIterator<LocatedFileStatus> listLocatedStatus(Path p)
+      throws IOException {
+    final String src = getPathName(p);
+    final LocatedDirectoryListing firstListing = 
+      dfs.listLocatedPaths(src, DirectoryListing.EMPTY_NAME);
+    if (firstListing == null) {
+      throw new FileNotFoundException("File " + p + " does not exist.");
     }
-    return stats;
+    return new RemoteIterator<LocatedFileStatus>() {
+      private LocatedDirectoryListing thisListing = firstListing;
+      private int i = 0;
+
+      public boolean hasNext() throws IOException {
+        if (i >= thisListing.getPartialListing().length 
+            && thisListing.hasMore()) {
+          thisListing = dfs.listLocatedPaths(src, thisListing.getLastName());
+          if (thisListing == null) {
+            throw new FileNotFoundException("Directory " + src 
+                                            + " was deleted while being listed");
+          }
+          i = 0;
+        }
+        return i < thisListing.getPartialListing().length;
+      }
+
+      public LocatedFileStatus next() throws IOException {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more entries in " + src);
+        }
+        FileStatus stat = makeQualified(thisListing.getPartialListing()[i]);
+        LocatedBlocks blocks = thisListing.getBlockLocations()[i++];
+        return new LocatedFileStatus(stat, 
+                                     DFSClient.locatedBlocks2Locations(blocks));
+      }
+    };
   }
 
   public boolean mkdirs(Path f, FsPermission permission) throws IOException {
@@ -482,6 +599,33 @@ public class DistributedFileSystem extends FileSystem {
     }
   }
 
+  /**
+   * Fetch the statuses of all the paths with batched namenode calls.
+   * {@inheritDoc}
+   */
+  @Override
+  public FileStatus[] getFileStatus(Path[] paths) throws IOException {
+    if (paths == null) {
+      return null;
+    }
+    NamespaceOperation[] ops = new NamespaceOperation[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      ops[i] = NamespaceOperation.getFileInfo(getPathName(paths[i]));
+    }
+    NamespaceOperationResult[] results = dfs.batch(ops);
+    ArrayList<FileStatus> statuses = new ArrayList<FileStatus>(paths.length);
+    for (NamespaceOperationResult result : results) {
+      if (result.isError()) {
+        throw result.getError().unwrapRemoteException(
+            AccessControlException.class);
+      }
+      if (result.getStatus() != null) {
+        statuses.add(makeQualified(result.getStatus()));
+      }
+    }
+    return statuses.toArray(new FileStatus[statuses.size()]);
+  }
+
   /** {@inheritDoc} */
   public MD5MD5CRC32FileChecksum getFileChecksum(Path f) throws IOException {
     return dfs.getFileChecksum(getPathName(f));
@@ -502,6 +646,51 @@ public class DistributedFileSystem extends FileSystem {
     dfs.setOwner(getPathName(p), username, groupname);
   }
 
+  /** {@inheritDoc }*/
+  @Override
+  public IOException[] setPermission(Path[] paths, FsPermission[] permissions) {
+    IOException[] errors = new IOException[paths.length];
+    NamespaceOperation[] ops = new NamespaceOperation[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      ops[i] = NamespaceOperation.setPermission(getPathName(paths[i]),
+                                                permissions[i]);
+    }
+    runBatch(ops, errors);
+    return errors;
+  }
+
+  /** {@inheritDoc }*/
+  @Override
+  public IOException[] setOwner(Path[] paths, String[] usernames,
+                                String[] groupnames) {
+    IOException[] errors = new IOException[paths.length];
+    NamespaceOperation[] ops = new NamespaceOperation[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      ops[i] = NamespaceOperation.setOwner(getPathName(paths[i]),
+                                           usernames[i], groupnames[i]);
+    }
+    runBatch(ops, errors);
+    return errors;
+  }
+
+  /**
+   * Run a batch of mutations and record the exception of each failed
+   * operation. If the whole batch fails, every operation reports it.
+   */
+  private void runBatch(NamespaceOperation[] ops, IOException[] errors) {
+    try {
+      NamespaceOperationResult[] results = dfs.batch(ops);
+      for (int i = 0; i < results.length; i++) {
+        if (results[i].isError()) {
+          errors[i] = results[i].getError().unwrapRemoteException(
+              AccessControlException.class, FileNotFoundException.class);
+        }
+      }
+    } catch (IOException e) {
+      Arrays.fill(errors, e);
+    }
+  }
+
   /** {@inheritDoc }*/
   public void setTimes(Path p, long mtime, long atime
       ) throws IOException {
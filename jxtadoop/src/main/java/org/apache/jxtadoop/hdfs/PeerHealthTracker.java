@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+
+/**
+ * Client-wide view of the health of the datanode peers.
+ * <p>
+ * Every {@link DFSClient} stream reports here the connect failures, timeouts
+ * and slow transfers it observes. Each report adds to a per-peer penalty
+ * score which decays exponentially with a configurable half-life. A peer
+ * whose score crosses the threshold is put in a penalty box for a while
+ * (doubling on repeated offences), during which readers and writers try
+ * the other replicas first. A bad peer thus costs one timeout per client,
+ * instead of one per stream.
+ */
+class PeerHealthTracker {
+  static final Log LOG = LogFactory.getLog(PeerHealthTracker.class);
+
+  /** Weight of a failed connection or i/o error */
+  static final double FAILURE_PENALTY = 1.0;
+  /** Weight of a transfer slower than the configured throughput */
+  static final double SLOW_PENALTY = 0.25;
+
+  private final long halfLife;
+  private final double threshold;
+  private final long penaltyPeriod;
+  private final long maxPenaltyPeriod;
+  private final long slowThroughput;
+  private final long minSampleBytes;
+
+  private final ConcurrentHashMap<String, PeerHealth> peers =
+    new ConcurrentHashMap<String, PeerHealth>();
+
+  /** Health of one datanode peer */
+  private class PeerHealth {
+    DatanodeInfo node;        // last known info, used to exclude the peer
+    double score = 0;         // decayed penalty score
+    long lastUpdate;          // when the score was last decayed
+    long penalizedUntil = 0;  // end of the penalty box, 0 if not penalized
+    int offences = 0;         // consecutive trips to the penalty box
+
+    PeerHealth(DatanodeInfo node, long now) {
+      this.node = node;
+      this.lastUpdate = now;
+    }
+
+    void decay(long now) {
+      if (now > lastUpdate) {
+        score *= Math.pow(0.5, (double)(now - lastUpdate) / halfLife);
+        lastUpdate = now;
+      }
+    }
+
+    void penalize(double penalty, long now) {
+      decay(now);
+      score += penalty;
+      if (score >= threshold && penalizedUntil <= now) {
+        long period = Math.min(penaltyPeriod << Math.min(offences, 16),
+                               maxPenaltyPeriod);
+        penalizedUntil = now + period;
+        offences++;
+        LOG.info("Datanode " + node.getName() + " is penalized for " + 
+                 period + " ms (score " + score + ")");
+      }
+    }
+
+    void succeeded(long now) {
+      decay(now);
+      offences = 0;
+    }
+
+    boolean isPenalized(long now) {
+      return penalizedUntil > now;
+    }
+  }
+
+  PeerHealthTracker(Configuration conf) {
+    this.halfLife = Math.max(1L,
+        conf.getLong("dfs.client.peer.health.halflife", 5 * 60 * 1000L));
+    this.threshold = conf.getFloat("dfs.client.peer.penalty.threshold", 1.0f);
+    this.penaltyPeriod = 
+        conf.getLong("dfs.client.peer.penalty.period", 60 * 1000L);
+    this.maxPenaltyPeriod = 
+        conf.getLong("dfs.client.peer.penalty.max.period", 10 * 60 * 1000L);
+    this.slowThroughput = 
+        conf.getLong("dfs.client.peer.slow.throughput", 16 * 1024L);
+    this.minSampleBytes = 
+        conf.getLong("dfs.client.peer.slow.min.bytes", 64 * 1024L);
+  }
+
+  private PeerHealth getPeer(DatanodeInfo node, long now) {
+    PeerHealth peer = peers.get(node.getPeerId());
+    if (peer == null) {
+      PeerHealth newPeer = new PeerHealth(node, now);
+      peer = peers.putIfAbsent(node.getPeerId(), newPeer);
+      if (peer == null) {
+        peer = newPeer;
+      }
+    }
+    return peer;
+  }
+
+  /**
+   * Record a failed connection or i/o error with the given peer.
+   * Timeouts count the same as other failures, since they are what
+   * makes a dead peer expensive.
+   */
+  void failed(DatanodeInfo node, Throwable cause) {
+    if (node == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    PeerHealth peer = getPeer(node, now);
+    synchronized (peer) {
+      peer.node = node;
+      peer.penalize(FAILURE_PENALTY, now);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Recorded " + 
+                (cause instanceof SocketTimeoutException ? "timeout" : "failure") +
+                " for datanode " + node.getName() + ": " + cause);
+    }
+  }
+
+  /**
+   * Record a completed transfer with the given peer. Transfers slower than
+   * <code>dfs.client.peer.slow.throughput</code> are penalized, the others
+   * reset the count of consecutive offences.
+   */
+  void transferred(DatanodeInfo node, long bytes, long millis) {
+    if (node == null || bytes < minSampleBytes) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    PeerHealth peer = getPeer(node, now);
+    synchronized (peer) {
+      peer.node = node;
+      if (bytes * 1000L < slowThroughput * Math.max(millis, 1L)) {
+        peer.penalize(SLOW_PENALTY, now);
+      } else {
+        peer.succeeded(now);
+      }
+    }
+  }
+
+  /** Is the peer currently in the penalty box? */
+  boolean isPenalized(DatanodeInfo node) {
+    PeerHealth peer = peers.get(node.getPeerId());
+    if (peer == null) {
+      return false;
+    }
+    synchronized (peer) {
+      return peer.isPenalized(System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return the peers currently in the penalty box, so that the namenode
+   * can be asked not to put them in a new pipeline. Peers whose score
+   * has decayed away are dropped on the way.
+   */
+  List<DatanodeInfo> getPenalizedNodes() {
+    long now = System.currentTimeMillis();
+    List<DatanodeInfo> result = new ArrayList<DatanodeInfo>();
+    for (PeerHealth peer : peers.values()) {
+      synchronized (peer) {
+        peer.decay(now);
+        if (peer.isPenalized(now)) {
+          result.add(peer.node);
+        } else if (peer.score < threshold / 100) {
+          // forgotten, do not let the map grow with every peer ever seen
+          peers.remove(peer.node.getPeerId(), peer);
+        }
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jxtadoop.hdfs.metrics;
+
+import javax.management.ObjectName;
+import org.apache.jxtadoop.metrics.util.MBeanUtil;
+import org.apache.jxtadoop.metrics.util.MetricsDynamicMBeanBase;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+
+/**
+ * 
+ * This is the JMX MBean for reporting the DFSClient Activity.
+ * The MBean is register using the name
+ *        "hadoop:service=DFSClient,name=DFSClientActivity-<clientName>"
+ * 
+ * As for the DataNode, the latencies are sampled and averaged on an interval
+ * which can be specified in the metrics config file, so a metrics context
+ * that does periodic update calls is needed to see them move
+ * (see {@link org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeActivityMBean}).
+ *
+ * Impl details: We use a dynamic mbean that gets the list of the metrics
+ * from the metrics registry passed as an argument to the constructor
+ */
+
+public class DFSClientActivityMBean extends MetricsDynamicMBeanBase {
+  final private ObjectName mbeanName;
+
+  public DFSClientActivityMBean(final MetricsRegistry mr, final String clientName) {
+    super(mr, "Activity statistics at the DFSClient");
+    mbeanName = MBeanUtil.registerMBean("DFSClient", "DFSClientActivity-" + clientName, this);
+  }
+
+  public void shutdown() {
+    if (mbeanName != null)
+      MBeanUtil.unregisterMBean(mbeanName);
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.metrics;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.metrics.MetricsContext;
+import org.apache.jxtadoop.metrics.MetricsRecord;
+import org.apache.jxtadoop.metrics.MetricsUtil;
+import org.apache.jxtadoop.metrics.Updater;
+import org.apache.jxtadoop.metrics.util.MetricsBase;
+import org.apache.jxtadoop.metrics.util.MetricsHistogram;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingLong;
+
+/**
+ * 
+ * This class is for maintaining the various DFSClient I/O statistics
+ * and publishing them through the metrics interfaces.
+ * This also registers the JMX MBean for the client.
+ * <p>
+ * The latencies are kept as {@link MetricsHistogram}s so that the time
+ * spent in namenode RPCs, JXTA socket setup, datanode handshakes and
+ * pipeline acks can be told apart, for example:
+ *  <p> {@link #connect}.inc(time)
+ *
+ */
+public class DFSClientMetrics implements Updater {
+  private final MetricsRecord metricsRecord;
+  private DFSClientActivityMBean dfsClientActivityMBean;
+  public MetricsRegistry registry = new MetricsRegistry();
+
+  public MetricsHistogram open = 
+                new MetricsHistogram("open", registry);
+  public MetricsHistogram getBlockLocations = 
+                new MetricsHistogram("getBlockLocations", registry);
+  public MetricsHistogram connect = 
+                new MetricsHistogram("connect", registry);
+  public MetricsHistogram readHandshake = 
+                new MetricsHistogram("readHandshake", registry);
+  public MetricsHistogram firstByte = 
+                new MetricsHistogram("firstByte", registry);
+  public MetricsHistogram blockRead = 
+                new MetricsHistogram("blockRead", registry);
+  public MetricsHistogram addBlock = 
+                new MetricsHistogram("addBlock", registry);
+  public MetricsHistogram writeHandshake = 
+                new MetricsHistogram("writeHandshake", registry);
+  public MetricsHistogram ackRtt = 
+                new MetricsHistogram("ackRtt", registry);
+  public MetricsHistogram complete = 
+                new MetricsHistogram("complete", registry);
+
+  public MetricsTimeVaryingLong bytesReadLocal = 
+                new MetricsTimeVaryingLong("bytes_read_local", registry);
+  public MetricsTimeVaryingLong bytesReadRemote = 
+                new MetricsTimeVaryingLong("bytes_read_remote", registry);
+  public MetricsTimeVaryingLong bytesWritten = 
+                new MetricsTimeVaryingLong("bytes_written", registry);
+  public MetricsTimeVaryingInt readRetries = 
+                new MetricsTimeVaryingInt("read_retries", registry);
+  public MetricsTimeVaryingInt blockAcquireFailures = 
+                new MetricsTimeVaryingInt("block_acquire_failures", registry);
+  public MetricsTimeVaryingInt writeRetries = 
+                new MetricsTimeVaryingInt("write_retries", registry);
+  public MetricsTimeVaryingInt pipelineRecoveries = 
+                new MetricsTimeVaryingInt("pipeline_recoveries", registry);
+  public MetricsTimeVaryingInt deadNodeEvents = 
+                new MetricsTimeVaryingInt("dead_node_events", registry);
+  public MetricsTimeVaryingInt checksumFailures = 
+                new MetricsTimeVaryingInt("checksum_failures", registry);
+
+  public DFSClientMetrics(Configuration conf, String clientName) {
+    String sessionId = conf.get("session.id");
+
+    // Now the MBean for the client
+    dfsClientActivityMBean = new DFSClientActivityMBean(registry, clientName);
+
+    // Create record for DFSClient metrics
+    MetricsContext context = MetricsUtil.getContext("dfs");
+    metricsRecord = MetricsUtil.createRecord(context, "dfsclient");
+    metricsRecord.setTag("sessionId", sessionId);
+    metricsRecord.setTag("clientName", clientName);
+    context.registerUpdater(this);
+  }
+
+  public void shutdown() {
+    MetricsUtil.getContext("dfs").unregisterUpdater(this);
+    if (dfsClientActivityMBean != null)
+      dfsClientActivityMBean.shutdown();
+  }
+
+  /**
+   * Since this object is a registered updater, this method will be called
+   * periodically, e.g. every 5 seconds.
+   */
+  public void doUpdates(MetricsContext unused) {
+    synchronized (this) {
+      for (MetricsBase m : registry.getMetricsList()) {
+        m.pushMetric(metricsRecord);
+      }
+    }
+    metricsRecord.update();
+  }
+
+  public void resetAllMinMax() {
+    open.resetMinMax();
+    getBlockLocations.resetMinMax();
+    connect.resetMinMax();
+    readHandshake.resetMinMax();
+    firstByte.resetMinMax();
+    blockRead.resetMinMax();
+    addBlock.resetMinMax();
+    writeHandshake.resetMinMax();
+    ackRtt.resetMinMax();
+    complete.resetMinMax();
+  }
+}
@@ -17,14 +17,51 @@
  */
 package org.apache.jxtadoop.hdfs.protocol;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+import org.apache.jxtadoop.io.WritableUtils;
+
 /**
  * This class provides an interface for accessing list of blocks that
  * has been implemented as long[].
  * This class is usefull for block report. Rather than send block reports
  * as a Block[] we can send it as a long[].
- *
+ * <p>
+ * On the wire the list is written in a compact form: the block ids in
+ * increasing order as varint deltas, the lengths as varint differences
+ * to the largest length, and the generation stamps as runs of equal
+ * values. The whole may be deflated as well. It is read back straight
+ * into the long[].
  */
-public class BlockListAsLongs {
+public class BlockListAsLongs implements Writable {
+
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (BlockListAsLongs.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new BlockListAsLongs(); }
+       });
+  }
+
+  /** Version of the wire encoding */
+  public static final byte ENCODING_VERSION = 1;
+  private static final byte FLAG_DEFLATED = 0x01;
+
   /**
    * A block as 3 longs
    *   block-id and block length and generation stamp
@@ -42,6 +79,7 @@ public class BlockListAsLongs {
   }
   
   private long[] blockList;
+  private boolean compress = false;
   
   /**
    * Converting a block[] to a long[]
@@ -61,6 +99,10 @@ public class BlockListAsLongs {
     return blocksAsLongs;
   }
 
+  public BlockListAsLongs() {
+    this(null);
+  }
+
   /**
    * Constructor
    * @param iBlockList - BlockListALongs create from this long[] parameter
@@ -124,4 +166,162 @@ public class BlockListAsLongs {
     blockList[index2BlockLen(index)] = b.getNumBytes();
     blockList[index2BlockGenStamp(index)] = b.getGenerationStamp();
   }
+
+  /**
+   * Deflate the list when it is written.
+   * @param compress - true to deflate the encoded list
+   */
+  public void setCompress(boolean compress) {
+    this.compress = compress;
+  }
+
+  /////////////////////////////////////
+  // Writable
+  /////////////////////////////////////
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(ENCODING_VERSION);
+    if (!compress) {
+      out.writeByte(0);
+      writeBlocks(out);
+      return;
+    }
+    out.writeByte(FLAG_DEFLATED);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      DataOutputStream dos =
+        new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+      writeBlocks(dos);
+      dos.close();
+    } finally {
+      deflater.end();
+    }
+    WritableUtils.writeVInt(out, bytes.size());
+    out.write(bytes.toByteArray(), 0, bytes.size());
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    byte version = in.readByte();
+    if (version != ENCODING_VERSION) {
+      throw new IOException("Unsupported block list encoding " + version);
+    }
+    byte flags = in.readByte();
+    compress = (flags & FLAG_DEFLATED) != 0;
+    if (!compress) {
+      readBlocks(in);
+      return;
+    }
+    byte[] bytes = new byte[WritableUtils.readVInt(in)];
+    in.readFully(bytes);
+    InflaterInputStream inflated =
+      new InflaterInputStream(new ByteArrayInputStream(bytes));
+    try {
+      readBlocks(new DataInputStream(new BufferedInputStream(inflated)));
+    } finally {
+      inflated.close();
+    }
+  }
+
+  private void writeBlocks(DataOutput out) throws IOException {
+    int numBlocks = getNumberOfBlocks();
+    int[] order = sortedOrder();
+    WritableUtils.writeVInt(out, numBlocks);
+
+    // ids, as the difference to the previous one
+    long prev = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      long id = getBlockId(order[i]);
+      WritableUtils.writeVLong(out, id - prev);
+      prev = id;
+    }
+
+    // lengths, as the difference to the largest one
+    long maxLen = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      maxLen = Math.max(maxLen, getBlockLen(i));
+    }
+    WritableUtils.writeVLong(out, maxLen);
+    for (int i = 0; i < numBlocks; i++) {
+      WritableUtils.writeVLong(out, maxLen - getBlockLen(order[i]));
+    }
+
+    // generation stamps, as runs of the same value
+    prev = 0;
+    for (int i = 0; i < numBlocks; ) {
+      long genStamp = getBlockGenStamp(order[i]);
+      int run = 1;
+      while (i + run < numBlocks &&
+             getBlockGenStamp(order[i + run]) == genStamp) {
+        run++;
+      }
+      WritableUtils.writeVInt(out, run);
+      WritableUtils.writeVLong(out, genStamp - prev);
+      prev = genStamp;
+      i += run;
+    }
+  }
+
+  private void readBlocks(DataInput in) throws IOException {
+    int numBlocks = WritableUtils.readVInt(in);
+    if (numBlocks < 0) {
+      throw new IOException("Invalid number of blocks " + numBlocks);
+    }
+    blockList = new long[numBlocks * LONGS_PER_BLOCK];
+
+    long prev = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      prev += WritableUtils.readVLong(in);
+      blockList[index2BlockId(i)] = prev;
+    }
+
+    long maxLen = WritableUtils.readVLong(in);
+    for (int i = 0; i < numBlocks; i++) {
+      blockList[index2BlockLen(i)] = maxLen - WritableUtils.readVLong(in);
+    }
+
+    prev = 0;
+    for (int i = 0; i < numBlocks; ) {
+      int run = WritableUtils.readVInt(in);
+      if (run <= 0 || run > numBlocks - i) {
+        throw new IOException("Invalid generation stamp run " + run);
+      }
+      prev += WritableUtils.readVLong(in);
+      for (int end = i + run; i < end; i++) {
+        blockList[index2BlockGenStamp(i)] = prev;
+      }
+    }
+  }
+
+  /**
+   * @return the indexes of the blocks, ordered by block id
+   */
+  private int[] sortedOrder() {
+    int numBlocks = getNumberOfBlocks();
+    int[] order = new int[numBlocks];
+    boolean sorted = true;
+    for (int i = 0; i < numBlocks; i++) {
+      order[i] = i;
+      if (i > 0 && getBlockId(i - 1) > getBlockId(i)) {
+        sorted = false;
+      }
+    }
+    if (sorted) {
+      return order;
+    }
+    Integer[] boxed = new Integer[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      boxed[i] = i;
+    }
+    Arrays.sort(boxed, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long ida = getBlockId(a);
+        long idb = getBlockId(b);
+        return ida < idb ? -1 : (ida == idb ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < numBlocks; i++) {
+      order[i] = boxed[i];
+    }
+    return order;
+  }
 }
@@ -40,9 +40,9 @@ public interface ClientProtocol extends VersionedProtocol {
    * Compared to the previous version the following changes have been introduced:
    * (Only the latest change is reflected.
    * The log of historical changes can be retrieved from the svn).
-   * 41: saveNamespace introduced.
+   * 46: getLocatedListing introduced.
    */
-  public static final long versionID = 41L;
+  public static final long versionID = 46L;
   
   ///////////////////////////////////////
   // File contents
@@ -108,6 +108,40 @@ public interface ClientProtocol extends VersionedProtocol {
                              long blockSize
                              ) throws IOException;
 
+  /**
+   * Create a complete file whose content is small enough to be stored
+   * inline in the namespace.
+   * <p>
+   * No block is allocated and no lease is held: the file is closed
+   * when this call returns and its content is returned to readers in
+   * {@link LocatedBlocks#getInlineData()}. Inline files cannot be
+   * appended to.
+   *
+   * @param src path of the file being created.
+   * @param masked masked permission.
+   * @param clientName name of the current client.
+   * @param overwrite indicates whether the file should be 
+   * overwritten if it already exists.
+   * @param replication replication factor used for quota accounting.
+   * @param blockSize maximum block size.
+   * @param data the whole content of the file.
+   * 
+   * @throws AccessControlException if permission to create file is 
+   * denied by the system.
+   * @throws QuotaExceededException if the file creation violates 
+   *                                any quota restriction
+   * @throws IOException if the content exceeds the name-node inline limit
+   *                     or other errors occur.
+   */
+  public void createInline(String src, 
+                           FsPermission masked,
+                           String clientName, 
+                           boolean overwrite, 
+                           short replication,
+                           long blockSize,
+                           byte[] data
+                           ) throws IOException;
+
   /**
    * Append to the end of the file. 
    * @param src path of the file being created.
@@ -180,6 +214,17 @@ public interface ClientProtocol extends VersionedProtocol {
   
   public LocatedBlock addBlock(String src, String clientName, String localDatanode) throws IOException;
 
+  /**
+   * Same as {@link #addBlock(String, String, String)}, but the datanodes
+   * in <code>excludedNodes</code> are not chosen as targets for the block.
+   * Clients use it to keep peers they failed to reach out of new pipelines.
+   * 
+   * @param excludedNodes datanodes the client could not use recently
+   * @return LocatedBlock allocated block information.
+   */
+  public LocatedBlock addBlock(String src, String clientName,
+      String localDatanode, DatanodeInfo[] excludedNodes) throws IOException;
+
   /**
    * The client is done writing data to the given filename, and would 
    * like to complete it.  
@@ -261,6 +306,39 @@ public interface ClientProtocol extends VersionedProtocol {
    */
   public FileStatus[] getListing(String src) throws IOException;
 
+  /**
+   * Get a page of the listing of the indicated directory.
+   * <p>
+   * Entries are sorted by name. The name-node returns at most
+   * <code>limit</code> entries, and never more than its own
+   * <code>dfs.ls.limit</code>, so that large directories are listed
+   * with bounded response size and lock hold time.
+   *
+   * @param src the directory name
+   * @param startAfter the name of the last entry of the previous page,
+   *                   as UTF8 bytes; an empty array starts from the beginning
+   * @param limit the maximum number of entries to return,
+   *              0 or less for the name-node default
+   * @return a page of the listing, or null if <code>src</code> does not exist
+   * @throws IOException if permission to list the directory is denied
+   */
+  public DirectoryListing getListing(String src, byte[] startAfter, int limit)
+      throws IOException;
+
+  /**
+   * Get a page of the listing of the indicated directory together with
+   * the locations of all the blocks of each file of the page, sorted by
+   * proximity to the client.
+   * <p>
+   * This saves a {@link #getBlockLocations(String, long, long)} call per
+   * file when planning work over a whole directory. Files the client is
+   * not allowed to read are listed without locations.
+   *
+   * @see #getListing(String, byte[], int)
+   */
+  public LocatedDirectoryListing getLocatedListing(String src,
+      byte[] startAfter, int limit) throws IOException;
+
   ///////////////////////////////////////
   // System issues and management
   ///////////////////////////////////////
@@ -476,4 +554,19 @@ public interface ClientProtocol extends VersionedProtocol {
    *              by this call.
    */
   public void setTimes(String src, long mtime, long atime) throws IOException;
+
+  /**
+   * Run many namespace operations in a single call.
+   * <p>
+   * The operations are applied in order under one acquisition of the
+   * namesystem lock and their edits are synced once. A failing operation
+   * does not stop the batch: its exception is returned in the
+   * corresponding result instead.
+   *
+   * @param ops the operations to run.
+   * @return one result per operation, in the same order.
+   * @throws IOException if the batch as a whole cannot be run.
+   */
+  public NamespaceOperationResult[] batch(NamespaceOperation[] ops)
+      throws IOException;
 }
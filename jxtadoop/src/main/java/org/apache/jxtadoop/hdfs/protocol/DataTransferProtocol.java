@@ -31,6 +31,12 @@ public interface DataTransferProtocol {
    * when protocol changes. It is not very obvious. 
    */
   /*
+   * Version 15:
+   *    OP_READ_BLOCK carries a boolean after the client name telling
+   *    whether the client accepts compressed packets. The last packet
+   *    byte of the packet header became a flags byte, with a flag for
+   *    packets whose checksums and data are compressed.
+   *
    * Version 14:
    *    OP_REPLACE_BLOCK is sent from the Balancer server to the destination,
    *    including the block id, source, and proxy.
@@ -39,7 +45,7 @@ public interface DataTransferProtocol {
    *    A reply to OP_COPY_BLOCK sends the block content.
    *    A reply to OP_REPLACE_BLOCK includes an operation status.
    */
-  public static final int DATA_TRANSFER_VERSION = 14;
+  public static final int DATA_TRANSFER_VERSION = 15;
 
   // Processed at datanode stream-handler
   public static final byte OP_WRITE_BLOCK = (byte) 80;
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.jxtadoop.fs.FileStatus;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+
+/**
+ * A page of a directory listing along with the number of entries
+ * that remain to be listed after it.
+ */
+public class DirectoryListing implements Writable {
+  /** The cursor that starts a listing from its first entry */
+  public static final byte[] EMPTY_NAME = new byte[0];
+
+  private FileStatus[] partialListing;
+  private int remainingEntries;
+
+  DirectoryListing() {
+  }
+
+  public DirectoryListing(FileStatus[] partialListing, int remainingEntries) {
+    if (partialListing == null) {
+      throw new IllegalArgumentException("partial listing should not be null");
+    }
+    if (partialListing.length == 0 && remainingEntries != 0) {
+      throw new IllegalArgumentException("Partial listing is empty but " +
+          "the number of remaining entries is not zero");
+    }
+    this.partialListing = partialListing;
+    this.remainingEntries = remainingEntries;
+  }
+
+  /**
+   * Get the entries of this page, sorted by name.
+   */
+  public FileStatus[] getPartialListing() {
+    return partialListing;
+  }
+
+  /**
+   * Get the number of entries left to be listed when this page was built.
+   */
+  public int getRemainingEntries() {
+    return remainingEntries;
+  }
+
+  /**
+   * Are there more entries to list after this page?
+   */
+  public boolean hasMore() {
+    return remainingEntries != 0;
+  }
+
+  /**
+   * Get the name of the last entry of this page, to be used as the
+   * cursor of the next request, or null if the page is empty.
+   */
+  public byte[] getLastName() {
+    if (partialListing.length == 0) {
+      return null;
+    }
+    String name = partialListing[partialListing.length-1].getPath().getName();
+    try {
+      return name.getBytes("UTF8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("UTF8 encoding is not supported", e);
+    }
+  }
+
+  //////////////////////////////////////////////////
+  // Writable
+  //////////////////////////////////////////////////
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (DirectoryListing.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new DirectoryListing(); }
+       });
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(partialListing.length);
+    for (FileStatus fileStatus : partialListing) {
+      fileStatus.write(out);
+    }
+    out.writeInt(remainingEntries);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    int numEntries = in.readInt();
+    partialListing = new FileStatus[numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      partialListing[i] = new FileStatus();
+      partialListing[i].readFields(in);
+    }
+    remainingEntries = in.readInt();
+  }
+}
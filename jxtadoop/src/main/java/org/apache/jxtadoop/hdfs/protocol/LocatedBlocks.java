@@ -36,6 +36,7 @@ public class LocatedBlocks implements Writable {
   private long fileLength;
   private List<LocatedBlock> blocks; // array of blocks with prioritized locations
   private boolean underConstruction;
+  private byte[] inlineData; // content of a file stored in the namespace
 
   LocatedBlocks() {
     fileLength = 0;
@@ -85,6 +86,18 @@ public class LocatedBlocks implements Writable {
   public boolean isUnderConstruction() {
     return underConstruction;
   }
+
+  /**
+   * Return the content of the file if it is small enough to be
+   * stored inline by the name-node, null otherwise.
+   */
+  public byte[] getInlineData() {
+    return inlineData;
+  }
+
+  public void setInlineData(byte[] data) {
+    this.inlineData = data;
+  }
   
   /**
    * Find block containing specified offset.
@@ -161,6 +174,13 @@ public class LocatedBlocks implements Writable {
   public void write(DataOutput out) throws IOException {
     out.writeLong(this.fileLength);
     out.writeBoolean(underConstruction);
+    // write inline content, -1 if the file is stored in blocks
+    if (inlineData == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(inlineData.length);
+      out.write(inlineData);
+    }
     // write located blocks
     int nrBlocks = locatedBlockCount();
     out.writeInt(nrBlocks);
@@ -175,6 +195,14 @@ public class LocatedBlocks implements Writable {
   public void readFields(DataInput in) throws IOException {
     this.fileLength = in.readLong();
     underConstruction = in.readBoolean();
+    // read inline content
+    int inlineLength = in.readInt();
+    if (inlineLength >= 0) {
+      this.inlineData = new byte[inlineLength];
+      in.readFully(this.inlineData);
+    } else {
+      this.inlineData = null;
+    }
     // read located blocks
     int nrBlocks = in.readInt();
     this.blocks = new ArrayList<LocatedBlock>(nrBlocks);
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.jxtadoop.fs.FileStatus;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+
+/**
+ * A page of a directory listing that also carries the block locations
+ * of each file of the page.
+ */
+public class LocatedDirectoryListing extends DirectoryListing {
+  private LocatedBlocks[] blockLocations;
+
+  LocatedDirectoryListing() {
+  }
+
+  /**
+   * @param partialListing the entries of the page
+   * @param blockLocations the block locations of each entry, 
+   *                       null for directories and unreadable files
+   * @param remainingEntries the number of entries after this page
+   */
+  public LocatedDirectoryListing(FileStatus[] partialListing,
+      LocatedBlocks[] blockLocations, int remainingEntries) {
+    super(partialListing, remainingEntries);
+    if (blockLocations.length != partialListing.length) {
+      throw new IllegalArgumentException("There should be exactly one " +
+          "set of block locations per entry");
+    }
+    this.blockLocations = blockLocations;
+  }
+
+  /**
+   * Get the block locations of each entry of the page,
+   * in the order of {@link #getPartialListing()}.
+   */
+  public LocatedBlocks[] getBlockLocations() {
+    return blockLocations;
+  }
+
+  //////////////////////////////////////////////////
+  // Writable
+  //////////////////////////////////////////////////
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (LocatedDirectoryListing.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new LocatedDirectoryListing(); }
+       });
+  }
+
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    for (LocatedBlocks blocks : blockLocations) {
+      out.writeBoolean(blocks != null);
+      if (blocks != null) {
+        blocks.write(out);
+      }
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    int numEntries = getPartialListing().length;
+    blockLocations = new LocatedBlocks[numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      if (in.readBoolean()) {
+        blockLocations[i] = new LocatedBlocks();
+        blockLocations[i].readFields(in);
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.jxtadoop.fs.permission.FsPermission;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+import org.apache.jxtadoop.io.WritableUtils;
+
+/**
+ * A single namespace operation sent to the name-node as part of a
+ * {@link ClientProtocol#batch(NamespaceOperation[])} call.
+ */
+public class NamespaceOperation implements Writable {
+  /** The kinds of operations that can be batched. */
+  public static enum Type {
+    GET_FILE_INFO,
+    SET_PERMISSION,
+    SET_OWNER,
+    SET_TIMES;
+  }
+
+  private Type type;
+  private String src;
+  private FsPermission permission;
+  private String username;
+  private String groupname;
+  private long mtime = -1;
+  private long atime = -1;
+
+  NamespaceOperation() {
+  }
+
+  private NamespaceOperation(Type type, String src) {
+    this.type = type;
+    this.src = src;
+  }
+
+  /** @see ClientProtocol#getFileInfo(String) */
+  public static NamespaceOperation getFileInfo(String src) {
+    return new NamespaceOperation(Type.GET_FILE_INFO, src);
+  }
+
+  /** @see ClientProtocol#setPermission(String, FsPermission) */
+  public static NamespaceOperation setPermission(String src,
+                                                 FsPermission permission) {
+    NamespaceOperation op = new NamespaceOperation(Type.SET_PERMISSION, src);
+    op.permission = permission;
+    return op;
+  }
+
+  /** @see ClientProtocol#setOwner(String, String, String) */
+  public static NamespaceOperation setOwner(String src, String username,
+                                            String groupname) {
+    NamespaceOperation op = new NamespaceOperation(Type.SET_OWNER, src);
+    op.username = username;
+    op.groupname = groupname;
+    return op;
+  }
+
+  /** @see ClientProtocol#setTimes(String, long, long) */
+  public static NamespaceOperation setTimes(String src, long mtime,
+                                            long atime) {
+    NamespaceOperation op = new NamespaceOperation(Type.SET_TIMES, src);
+    op.mtime = mtime;
+    op.atime = atime;
+    return op;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getSrc() {
+    return src;
+  }
+
+  public FsPermission getPermission() {
+    return permission;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getGroupname() {
+    return groupname;
+  }
+
+  public long getModificationTime() {
+    return mtime;
+  }
+
+  public long getAccessTime() {
+    return atime;
+  }
+
+  /** Does this operation modify the namespace? */
+  public boolean isMutation() {
+    return type != Type.GET_FILE_INFO;
+  }
+
+  public String toString() {
+    return type + " " + src;
+  }
+
+  //////////////////////////////////////////////////
+  // Writable
+  //////////////////////////////////////////////////
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (NamespaceOperation.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new NamespaceOperation(); }
+       });
+  }
+
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeEnum(out, type);
+    WritableUtils.writeString(out, src);
+    switch (type) {
+    case SET_PERMISSION:
+      permission.write(out);
+      break;
+    case SET_OWNER:
+      WritableUtils.writeString(out, username);
+      WritableUtils.writeString(out, groupname);
+      break;
+    case SET_TIMES:
+      out.writeLong(mtime);
+      out.writeLong(atime);
+      break;
+    default:
+      break;
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    type = WritableUtils.readEnum(in, Type.class);
+    src = WritableUtils.readString(in);
+    switch (type) {
+    case SET_PERMISSION:
+      permission = FsPermission.read(in);
+      break;
+    case SET_OWNER:
+      username = WritableUtils.readString(in);
+      groupname = WritableUtils.readString(in);
+      break;
+    case SET_TIMES:
+      mtime = in.readLong();
+      atime = in.readLong();
+      break;
+    default:
+      break;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.jxtadoop.fs.FileStatus;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+import org.apache.jxtadoop.io.WritableUtils;
+import org.apache.jxtadoop.ipc.RemoteException;
+
+/**
+ * The outcome of a single {@link NamespaceOperation} in a batch:
+ * either the file status it returned, if any, or the exception it raised.
+ */
+public class NamespaceOperationResult implements Writable {
+  private FileStatus status;
+  private String errorClass;
+  private String errorMessage;
+
+  NamespaceOperationResult() {
+  }
+
+  public NamespaceOperationResult(FileStatus status) {
+    this.status = status;
+  }
+
+  public NamespaceOperationResult(IOException error) {
+    this.errorClass = error.getClass().getName();
+    this.errorMessage = error.getMessage();
+  }
+
+  /**
+   * Get the file status returned by the operation, null if the file does
+   * not exist, the operation failed or it does not return a status.
+   */
+  public FileStatus getStatus() {
+    return status;
+  }
+
+  /** Did the operation fail? */
+  public boolean isError() {
+    return errorClass != null;
+  }
+
+  /**
+   * Get the exception raised by the operation wrapped as it would have
+   * been by an individual RPC, or null if the operation succeeded.
+   */
+  public RemoteException getError() {
+    return errorClass == null ? null
+                              : new RemoteException(errorClass, errorMessage);
+  }
+
+  //////////////////////////////////////////////////
+  // Writable
+  //////////////////////////////////////////////////
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (NamespaceOperationResult.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new NamespaceOperationResult(); }
+       });
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeBoolean(status != null);
+    if (status != null) {
+      status.write(out);
+    }
+    WritableUtils.writeString(out, errorClass);
+    WritableUtils.writeString(out, errorMessage);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    if (in.readBoolean()) {
+      status = new FileStatus();
+      status.readFields(in);
+    } else {
+      status = null;
+    }
+    errorClass = WritableUtils.readString(in);
+    errorMessage = WritableUtils.readString(in);
+  }
+}
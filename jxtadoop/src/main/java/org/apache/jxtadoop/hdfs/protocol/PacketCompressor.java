@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import org.apache.jxtadoop.io.compress.Compressor;
+import org.apache.jxtadoop.io.compress.Decompressor;
+import org.apache.jxtadoop.io.compress.zlib.BuiltInZlibDeflater;
+import org.apache.jxtadoop.io.compress.zlib.BuiltInZlibInflater;
+
+/**
+ * Compresses and decompresses data transfer packets.
+ * <p>
+ * A compressed packet keeps the packet header and the length of the
+ * actual data, sets {@link #COMPRESSED} in the flags byte and replaces
+ * the checksums and the data by their zlib compressed form. The packet
+ * length in the header is the length of what is really sent. Checksums
+ * are computed and verified on the uncompressed data, so the data and
+ * meta files do not depend on how a block was transferred.
+ * <p>
+ * A packet is only sent compressed when that saves at least an eighth of
+ * its size. After {@link #MAX_MISSES} packets in a row that did not
+ * compress, the next {@link #SKIP_PACKETS} packets are sent as they are
+ * without trying, so that already compressed data costs little CPU.
+ * <p>
+ * An instance is used by a single thread.
+ */
+public class PacketCompressor {
+  /** Flag of the last packet in a block */
+  public static final byte LAST_PACKET_IN_BLOCK = 1;
+  /** Flag of a packet whose checksums and data are compressed */
+  public static final byte COMPRESSED = 2;
+
+  /** Name of the configuration key enabling compression */
+  public static final String COMPRESSION_KEY = "dfs.transfer.compression";
+
+  static final int MAX_MISSES = 4;
+  static final int SKIP_PACKETS = 16;
+
+  // packet length, offset in block, seqno, flags and data length
+  private static final int FLAGS_OFFSET = 4 + 8 + 8;
+  private static final int HEADER_LEN = FLAGS_OFFSET + 1 + 4;
+
+  private Compressor compressor = null;
+  private Decompressor decompressor = null;
+  private byte[] compressed = new byte[0];
+  private int misses = 0;
+  private int skip = 0;
+
+  private long uncompressedBytes = 0;
+  private long wireBytes = 0;
+
+  /**
+   * Compress a packet if it is worth it.
+   * @param pkt the packet, from its position to its limit
+   * @return pkt, or a buffer holding the compressed packet which is
+   *         valid until the next call
+   */
+  public ByteBuffer compress(ByteBuffer pkt) throws IOException {
+    int pktOff = pkt.arrayOffset() + pkt.position();
+    int pktLen = pkt.remaining();
+    int bodyLen = pktLen - HEADER_LEN;
+    uncompressedBytes += pktLen;
+    if (bodyLen <= 0 || skip > 0) {
+      skip = Math.max(skip - 1, 0);
+      wireBytes += pktLen;
+      return pkt;
+    }
+
+    if (compressor == null) {
+      compressor = new BuiltInZlibDeflater(Deflater.BEST_SPEED);
+    }
+    int maxLen = bodyLen - bodyLen / 8;
+    if (compressed.length < HEADER_LEN + maxLen) {
+      compressed = new byte[HEADER_LEN + maxLen];
+    }
+    compressor.reset();
+    compressor.setInput(pkt.array(), pktOff + HEADER_LEN, bodyLen);
+    compressor.finish();
+    int len = 0;
+    while (!compressor.finished() && len < maxLen) {
+      len += compressor.compress(compressed, HEADER_LEN + len, maxLen - len);
+    }
+
+    if (!compressor.finished()) {
+      if (++misses >= MAX_MISSES) {
+        misses = 0;
+        skip = SKIP_PACKETS;
+      }
+      wireBytes += pktLen;
+      return pkt;
+    }
+    misses = 0;
+
+    ByteBuffer out = ByteBuffer.wrap(compressed, 0, HEADER_LEN + len);
+    out.putInt(4 + len);
+    out.putLong(pkt.getLong(pkt.position() + 4));
+    out.putLong(pkt.getLong(pkt.position() + 12));
+    out.put((byte)(pkt.get(pkt.position() + FLAGS_OFFSET) | COMPRESSED));
+    out.putInt(pkt.getInt(pkt.position() + FLAGS_OFFSET + 1));
+    out.position(0);
+    wireBytes += out.remaining();
+    return out;
+  }
+
+  /**
+   * Decompress the checksums and data of a compressed packet.
+   * @param in the compressed bytes that follow the data length
+   * @param out receives the checksums followed by the data
+   * @param outLen the length of the checksums and data
+   * @throws IOException if the compressed bytes are not exactly the
+   *         compressed form of outLen bytes
+   */
+  public void decompress(byte[] in, int inOff, int inLen,
+                         byte[] out, int outOff, int outLen)
+                         throws IOException {
+    if (decompressor == null) {
+      decompressor = new BuiltInZlibInflater();
+    }
+    decompressor.reset();
+    decompressor.setInput(in, inOff, inLen);
+    int len = 0;
+    while (len < outLen && !decompressor.finished()) {
+      int n = decompressor.decompress(out, outOff + len, outLen - len);
+      if (n == 0 && decompressor.needsInput()) {
+        break;
+      }
+      len += n;
+    }
+    if (len != outLen || !decompressor.finished()) {
+      throw new IOException("Compressed packet of " + inLen + " bytes does" +
+                            " not decompress to " + outLen + " bytes");
+    }
+    uncompressedBytes += HEADER_LEN + outLen;
+    wireBytes += HEADER_LEN + inLen;
+  }
+
+  /** Whether the flags of a packet header mark the last packet in block */
+  public static boolean isLastPacketInBlock(byte flags) {
+    return (flags & LAST_PACKET_IN_BLOCK) != 0;
+  }
+
+  /** Whether the flags of a packet header mark a compressed packet */
+  public static boolean isCompressed(byte flags) {
+    return (flags & COMPRESSED) != 0;
+  }
+
+  /** Size of the packets that went through this instance, uncompressed */
+  public long getUncompressedBytes() {
+    return uncompressedBytes;
+  }
+
+  /** Size of the same packets as sent on the wire */
+  public long getWireBytes() {
+    return wireBytes;
+  }
+
+  /** Release the codec resources */
+  public void end() {
+    if (compressor != null) {
+      compressor.end();
+      compressor = null;
+    }
+    if (decompressor != null) {
+      decompressor.end();
+      decompressor = null;
+    }
+  }
+}
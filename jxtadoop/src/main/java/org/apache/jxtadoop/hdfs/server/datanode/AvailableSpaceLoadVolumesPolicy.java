@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.jxtadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.jxtadoop.util.DiskChecker.DiskOutOfSpaceException;
+
+/**
+ * Picks a volume at random, weighing each by its available space and
+ * dividing by its number of blocks being written and by how much slower
+ * its recent writes were than those of the fastest volume. A nearly full,
+ * busy or slow disk thus receives a smaller share of the new blocks.
+ */
+public class AvailableSpaceLoadVolumesPolicy
+    implements BlockVolumeChoosingPolicy {
+  private final Random random = new Random();
+
+  /** {@inheritDoc} */
+  public FSVolume chooseVolume(FSVolume[] volumes, long blockSize)
+      throws IOException {
+    double[] weights = new double[volumes.length];
+    double minLatency = Double.MAX_VALUE;
+    for (FSVolume v : volumes) {
+      double latency = v.getWriteLatency();
+      if (latency > 0 && latency < minLatency) {
+        minLatency = latency;
+      }
+    }
+
+    double total = 0;
+    for (int i = 0; i < volumes.length; i++) {
+      long available = volumes[i].getAvailable();
+      if (available <= blockSize) {
+        continue;
+      }
+      double latency = volumes[i].getWriteLatency();
+      double slowdown = (latency > 0 && minLatency < Double.MAX_VALUE) ?
+          latency / minLatency : 1.0;
+      weights[i] = available / ((1 + volumes[i].getInFlightWrites()) * slowdown);
+      total += weights[i];
+    }
+    if (total <= 0) {
+      throw new DiskOutOfSpaceException("Insufficient space for an additional block");
+    }
+
+    double r;
+    synchronized (random) {
+      r = random.nextDouble() * total;
+    }
+    for (int i = 0; i < volumes.length; i++) {
+      if (weights[i] > 0) {
+        r -= weights[i];
+        if (r < 0) {
+          return volumes[i];
+        }
+      }
+    }
+    // rounding: the last volume with a weight
+    for (int i = volumes.length - 1; ; i--) {
+      if (weights[i] > 0) {
+        return volumes[i];
+      }
+    }
+  }
+}
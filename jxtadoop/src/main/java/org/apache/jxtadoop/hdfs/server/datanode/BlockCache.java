@@ -0,0 +1,326 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.jxtadoop.io.IOUtils;
+
+/**
+ * An in-memory cache of the data and checksums of frequently read blocks.
+ * <p>
+ * A block is admitted once it has been requested
+ * dfs.datanode.block.cache.admit.count times. Its block and meta files are
+ * then copied into direct buffers and {@link BlockSender} serves further
+ * reads from them instead of the disk. When the cache is full, the least
+ * recently used (LRU) or least frequently used (LFU) blocks are evicted,
+ * see dfs.datanode.block.cache.policy.
+ * <p>
+ * A cached copy is only used while its generation stamp and length still
+ * match the replica. It is also dropped when the replica is deleted,
+ * reopened for writing or recovered.
+ */
+class BlockCache {
+  public static final Log LOG = DataNode.LOG;
+
+  /** A block held in the cache */
+  static class CachedBlock {
+    final long generationStamp;
+    final ByteBuffer data;
+    final ByteBuffer meta;
+    long hits;
+
+    CachedBlock(long generationStamp, ByteBuffer data, ByteBuffer meta) {
+      this.generationStamp = generationStamp;
+      this.data = data;
+      this.meta = meta;
+    }
+
+    long size() {
+      return data.capacity() + meta.capacity();
+    }
+
+    long getLength() {
+      return data.capacity();
+    }
+
+    /** Stream over the data starting at the given offset */
+    InputStream getDataStream(long offset) {
+      ByteBuffer buf = data.duplicate();
+      buf.position((int)offset);
+      return new ByteBufferInputStream(buf);
+    }
+
+    /** Stream over the whole meta file, header included */
+    InputStream getMetaStream() {
+      return new ByteBufferInputStream(meta.duplicate());
+    }
+  }
+
+  /** Reads a private view of a cached buffer */
+  static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    public int read() {
+      return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buf.remaining());
+      buf.get(b, off, len);
+      return len;
+    }
+
+    public long skip(long n) {
+      int skipped = (int)Math.max(0, Math.min(n, buf.remaining()));
+      buf.position(buf.position() + skipped);
+      return skipped;
+    }
+
+    public int available() {
+      return buf.remaining();
+    }
+  }
+
+  static final String POLICY_LRU = "LRU";
+  static final String POLICY_LFU = "LFU";
+
+  private final long capacity;
+  private final long maxBlockSize;
+  private final int admitCount;
+  private final boolean lfu;
+  private final DataNodeMetrics metrics;
+
+  /** Cached blocks by id, in access order */
+  private final LinkedHashMap<Long, CachedBlock> blocks =
+    new LinkedHashMap<Long, CachedBlock>(16, 0.75f, true);
+  /** Recent request counts of the blocks that are not cached */
+  private final LinkedHashMap<Long, Integer> candidates;
+  private long used = 0;
+
+  /**
+   * Create the cache configured by dfs.datanode.block.cache.size.
+   * @return the cache, or null if it is disabled
+   */
+  static BlockCache create(Configuration conf, DataNodeMetrics metrics) {
+    long capacity = conf.getLong("dfs.datanode.block.cache.size", 0);
+    if (capacity <= 0) {
+      return null;
+    }
+    return new BlockCache(capacity, conf, metrics);
+  }
+
+  BlockCache(long capacity, Configuration conf, DataNodeMetrics metrics) {
+    this.capacity = capacity;
+    this.maxBlockSize = Math.min(Integer.MAX_VALUE, Math.min(capacity,
+        conf.getLong("dfs.datanode.block.cache.max.block.size", capacity)));
+    this.admitCount = Math.max(1,
+        conf.getInt("dfs.datanode.block.cache.admit.count", 2));
+    this.lfu = POLICY_LFU.equalsIgnoreCase(
+        conf.get("dfs.datanode.block.cache.policy", POLICY_LRU));
+    this.metrics = metrics;
+    final int maxCandidates = Math.max(1024,
+        conf.getInt("dfs.datanode.block.cache.admit.history", 16384));
+    this.candidates = new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+        return size() > maxCandidates;
+      }
+    };
+    LOG.info("Block cache of " + capacity + " bytes, "
+             + (lfu ? POLICY_LFU : POLICY_LRU) + " eviction, admission after "
+             + admitCount + " requests");
+  }
+
+  /**
+   * Get the cached copy of a replica, caching it if it has been requested
+   * often enough.
+   * @param block the replica requested
+   * @param length the length of the replica on disk
+   * @param data the dataset to load the replica from
+   * @return the cached copy, or null if the replica is not cached
+   */
+  CachedBlock get(Block block, long length, FSDatasetInterface data) {
+    Long id = block.getBlockId();
+    synchronized (this) {
+      CachedBlock cached = blocks.get(id);
+      if (cached != null) {
+        if (cached.getLength() != length) {
+          // the replica changed under the cache
+          remove(id);
+        } else if (GenerationStamp.equalsWithWildcard(
+            cached.generationStamp, block.getGenerationStamp())) {
+          cached.hits++;
+          metrics.blockCacheHits.inc();
+          return cached;
+        } else {
+          metrics.blockCacheMisses.inc();
+          return null;
+        }
+      }
+      metrics.blockCacheMisses.inc();
+      if (length > maxBlockSize) {
+        return null;
+      }
+      Integer count = candidates.get(id);
+      count = (count == null) ? 1 : count + 1;
+      if (count < admitCount) {
+        candidates.put(id, count);
+        return null;
+      }
+      candidates.remove(id);
+    }
+
+    CachedBlock loaded;
+    try {
+      loaded = load(block, length, data);
+    } catch (IOException e) {
+      LOG.warn("Could not cache block " + block + ": " + e);
+      return null;
+    }
+    if (loaded == null) {
+      return null;
+    }
+    synchronized (this) {
+      CachedBlock cached = blocks.get(id);
+      if (cached != null) {
+        // loaded concurrently by another reader
+        return cached;
+      }
+      while (used + loaded.size() > capacity && !blocks.isEmpty()) {
+        evict();
+      }
+      if (used + loaded.size() > capacity) {
+        return null;
+      }
+      blocks.put(id, loaded);
+      used += loaded.size();
+      metrics.blockCacheUsed.set(used);
+      return loaded;
+    }
+  }
+
+  /** Copy the block and meta files of a replica into direct buffers */
+  private CachedBlock load(Block block, long length, FSDatasetInterface data)
+      throws IOException {
+    Block stored = data.getStoredBlock(block.getBlockId());
+    if (stored == null || stored.getNumBytes() != length ||
+        !GenerationStamp.equalsWithWildcard(stored.getGenerationStamp(),
+                                            block.getGenerationStamp())) {
+      return null;
+    }
+    FSDatasetInterface.MetaDataInputStream metaIn =
+      data.getMetaDataInputStream(stored);
+    ByteBuffer meta;
+    try {
+      meta = readFully(metaIn, metaIn.getLength());
+    } finally {
+      IOUtils.closeStream(metaIn);
+    }
+    InputStream blockIn = data.getBlockInputStream(stored);
+    ByteBuffer buf;
+    try {
+      buf = readFully(blockIn, length);
+    } finally {
+      IOUtils.closeStream(blockIn);
+    }
+    return new CachedBlock(stored.getGenerationStamp(), buf, meta);
+  }
+
+  private static ByteBuffer readFully(InputStream in, long length)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect((int)length);
+    byte[] tmp = new byte[(int)Math.min(length, 64 * 1024)];
+    while (buf.hasRemaining()) {
+      int n = in.read(tmp, 0, Math.min(tmp.length, buf.remaining()));
+      if (n < 0) {
+        throw new IOException("Premature EOF, " + buf.remaining()
+                              + " bytes missing");
+      }
+      buf.put(tmp, 0, n);
+    }
+    buf.flip();
+    return buf;
+  }
+
+  /** Evict one block according to the policy. */
+  private void evict() {
+    Iterator<Map.Entry<Long, CachedBlock>> it = blocks.entrySet().iterator();
+    Long victim = it.next().getKey();
+    if (lfu) {
+      long minHits = Long.MAX_VALUE;
+      for (Map.Entry<Long, CachedBlock> e : blocks.entrySet()) {
+        if (e.getValue().hits < minHits) {
+          minHits = e.getValue().hits;
+          victim = e.getKey();
+        }
+      }
+    }
+    remove(victim);
+    metrics.blockCacheEvictions.inc();
+  }
+
+  private void remove(Long id) {
+    CachedBlock cached = blocks.remove(id);
+    if (cached != null) {
+      used -= cached.size();
+      metrics.blockCacheUsed.set(used);
+    }
+  }
+
+  /** Drop the cached copy of a block, if any. */
+  synchronized void invalidate(Block block) {
+    remove(block.getBlockId());
+  }
+
+  /** Drop the cached copies of some blocks. */
+  synchronized void invalidate(Block[] blocks) {
+    for (Block b : blocks) {
+      remove(b.getBlockId());
+    }
+  }
+
+  synchronized long getUsed() {
+    return used;
+  }
+
+  /** @return the number of blocks cached */
+  synchronized int size() {
+    return blocks.size();
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.util.Daemon;
+
+/**
+ * Tells the namenode about the blocks this datanode received, from its
+ * own thread so that it does not wait for heartbeats or block reports.
+ * <p>
+ * Receivers add their blocks to a lock free queue and wake the notifier
+ * up. It then waits <code>dfs.datanode.blockreceived.delay</code> ms for
+ * the other blocks of a burst, such as the replicas of a pipeline or the
+ * blocks of several files being closed, and sends everything queued in a
+ * single blockReceived() call. A call that fails is retried with the
+ * blocks queued since, after a heartbeat interval, doubled on each
+ * further failure up to {@link #MAX_BACKOFF} intervals.
+ */
+class BlockReceivedNotifier implements Runnable {
+  public static final Log LOG = DataNode.LOG;
+
+  /** The longest wait before retrying, in heartbeat intervals */
+  static final int MAX_BACKOFF = 8;
+
+  /** A block to report, with the node the namenode may delete it from */
+  private static class ReceivedBlock {
+    final Block block;
+    final String delHint;
+    final long queuedAt = DataNode.now();
+
+    ReceivedBlock(Block block, String delHint) {
+      this.block = block;
+      this.delHint = delHint;
+    }
+  }
+
+  private final DataNode datanode;
+  private final long delay;
+  private final long retryInterval;
+  private final ConcurrentLinkedQueue<ReceivedBlock> queue =
+    new ConcurrentLinkedQueue<ReceivedBlock>();
+  // blocks of a failed call, only touched by the notifier thread
+  private final List<ReceivedBlock> unsent = new ArrayList<ReceivedBlock>();
+  private long backoff; // wait before the next retry
+  private volatile boolean running = true;
+  private volatile Daemon thread = null;
+
+  BlockReceivedNotifier(DataNode datanode, Configuration conf) {
+    this.datanode = datanode;
+    this.delay = conf.getLong("dfs.datanode.blockreceived.delay", 5);
+    this.retryInterval = Math.max(1, conf.getLong("dfs.heartbeat.interval",
+        FSConstants.HEARTBEAT_INTERVAL)) * 1000L;
+    this.backoff = retryInterval;
+  }
+
+  void start() {
+    thread = new Daemon(this);
+    thread.setName("BlockReceivedNotifier");
+    thread.start();
+  }
+
+  /** Queue a block to be reported to the namenode */
+  void add(Block block, String delHint) {
+    queue.add(new ReceivedBlock(block, delHint));
+    Thread t = thread;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  public void run() {
+    while (running) {
+      if (queue.isEmpty() && unsent.isEmpty()) {
+        LockSupport.park(this);
+        continue;
+      }
+      try {
+        if (delay > 0) {
+          Thread.sleep(delay); // let the rest of the burst arrive
+        }
+        ReceivedBlock b;
+        while ((b = queue.poll()) != null) {
+          unsent.add(b);
+        }
+        int n = unsent.size();
+        Block[] blocks = new Block[n];
+        String[] delHints = new String[n];
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+          b = unsent.get(i);
+          blocks[i] = b.block;
+          delHints[i] = b.delHint;
+          oldest = Math.min(oldest, b.queuedAt);
+        }
+        try {
+          send(blocks, delHints, oldest);
+          unsent.clear();
+          backoff = retryInterval;
+        } catch (IOException e) {
+          LOG.warn("Could not report " + n + " received blocks to the " +
+                   "namenode, will retry in " + backoff + " ms: " +
+                   e.getMessage());
+          backOff();
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to report " + n + " received blocks to the " +
+                   "namenode, will retry in " + backoff + " ms", e);
+          backOff();
+        }
+      } catch (InterruptedException ie) {
+        // shutdown() interrupts, running tells
+      }
+    }
+  }
+
+  /** Wait before retrying a failed call, twice as long as the last time */
+  private void backOff() throws InterruptedException {
+    long wait = backoff;
+    backoff = Math.min(2 * backoff, MAX_BACKOFF * retryInterval);
+    Thread.sleep(wait);
+  }
+
+  /**
+   * Report a batch of received blocks.
+   * @param queuedAt when the oldest block of the batch was queued
+   */
+  void send(Block[] blocks, String[] delHints, long queuedAt)
+      throws IOException {
+    long start = DataNode.now();
+    datanode.namenode.blockReceived(datanode.dnRegistration, blocks, delHints);
+    long end = DataNode.now();
+    datanode.myMetrics.blockReceivedCalls.inc(end - start);
+    datanode.myMetrics.blockReceivedDelay.inc(end - queuedAt);
+  }
+
+  /**
+   * Stop the notifier, waiting at most a heartbeat interval for a call
+   * to the namenode in progress.
+   */
+  void shutdown() {
+    running = false;
+    Daemon t = thread;
+    if (t != null) {
+      t.interrupt();
+      try {
+        t.join(retryInterval);
+      } catch (InterruptedException ignored) {
+      }
+      if (t.isAlive()) {
+        LOG.warn("BlockReceivedNotifier did not stop within " +
+                 retryInterval + " ms");
+        return;
+      }
+    }
+    int pending = queue.size() + unsent.size();
+    if (pending > 0) {
+      LOG.info(pending + " received blocks were not reported to the " +
+               "namenode, the next block report will");
+    }
+  }
+}
@@ -22,14 +22,16 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
+import org.apache.jxtadoop.fs.ChecksumException;
 import org.apache.jxtadoop.fs.FSInputChecker;
 import org.apache.jxtadoop.fs.FSOutputSummer;
 import org.apache.jxtadoop.hdfs.protocol.Block;
@@ -37,6 +39,7 @@ import org.apache.jxtadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
+import org.apache.jxtadoop.hdfs.protocol.PacketCompressor;
 import org.apache.jxtadoop.io.IOUtils;
 import org.apache.jxtadoop.util.Daemon;
 import org.apache.jxtadoop.util.DataChecksum;
@@ -67,6 +70,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   protected final String myAddr;
   private String mirrorAddr;
   private DataOutputStream mirrorOut;
+  private MirrorForwarder forwarder = null;
   private Daemon responder = null;
   private BlockTransferThrottler throttler;
   private FSDataset.BlockWriteStreams streams;
@@ -75,6 +79,13 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   DatanodeInfo srcDataNode = null;
   private Checksum partialCrc = null;
   private DataNode datanode = null;
+  private PacketCompressor decompressor = null; // for compressed packets
+  private long bytesReceived = 0; // data bytes of the packets received
+  // bytes written to the mirror and the time it took, by one thread at once
+  private volatile long mirrorBytes = 0;
+  private volatile long mirrorNanos = 0;
+  private byte[] unpacked = null; // checksums and data of such a packet
+  private DataChecksum diskChecksum = null; // checksum of an existing replica
 
   BlockReceiver(Block block, DataInputStream in, String inAddr,
                 String myAddr, boolean isRecovery, String clientName, 
@@ -95,6 +106,14 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       //
       // Open local disk out
       //
+      if (datanode.blockCache != null) {
+        datanode.blockCache.invalidate(block);
+      }
+      if (isRecovery) {
+        // writeToBlock moves a finalized replica to tmp, so look at it first
+        diskChecksum = readReplicaChecksum(datanode.data, block);
+        checkAppendChecksum(block, diskChecksum, checksum);
+      }
       streams = datanode.data.writeToBlock(block, isRecovery);
       this.finalized = datanode.data.isValidBlock(block);
       if (streams != null) {
@@ -126,12 +145,63 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
   }
 
+  /**
+   * Reads the checksum recorded in the meta file header of an existing
+   * replica, either finalized or still being written in the tmp directory.
+   * @return the checksum, or null if there is no replica with a header
+   */
+  static DataChecksum readReplicaChecksum(FSDatasetInterface data,
+      Block block) throws IOException {
+    DataInputStream metaIn;
+    if (data.isValidBlock(block)) {
+      metaIn = new DataInputStream(data.getMetaDataInputStream(block));
+    } else {
+      FSDatasetInterface.BlockInputStreams instr;
+      try {
+        instr = data.getTmpInputStreams(block, 0, 0);
+      } catch (IOException e) {
+        return null; // no replica is being written either
+      }
+      IOUtils.closeStream(instr.dataIn);
+      metaIn = new DataInputStream(instr.checksumIn);
+    }
+    try {
+      return BlockMetadataHeader.readHeader(metaIn).getChecksum();
+    } catch (EOFException e) {
+      return null; // the header has not been written yet
+    } finally {
+      IOUtils.closeStream(metaIn);
+    }
+  }
+
+  /**
+   * Appended data must use the checksum of the existing replica, which is
+   * recorded in its meta file header.
+   */
+  static void checkAppendChecksum(Block block, DataChecksum existing,
+      DataChecksum checksum) throws IOException {
+    if (existing == null) {
+      return;
+    }
+    if (existing.getChecksumType() != checksum.getChecksumType() ||
+        existing.getBytesPerChecksum() != checksum.getBytesPerChecksum()) {
+      throw new IOException("Cannot append to block " + block +
+          " with checksum type " + checksum.getChecksumType() +
+          " and " + checksum.getBytesPerChecksum() + " bytes per checksum," +
+          " the block has checksum type " + existing.getChecksumType() +
+          " and " + existing.getBytesPerChecksum() + " bytes per checksum");
+    }
+  }
+
   /**
    * close files.
    */
   public void close() throws IOException {
 	LOG.debug("Closing blockreceiver");
 
+    datanode.releasePacketCompressor(decompressor);
+    decompressor = null;
+
     IOException ioe = null;
     // close checksum file
     try {
@@ -160,6 +230,33 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
   }
 
+  /**
+   * Close the block files of a block about to be finalized, forcing them
+   * to disk first in FINALIZE mode. In GROUP mode each packet has already
+   * been forced before it was acked.
+   */
+  void closeForFinalize() throws IOException {
+    if (datanode.durability == DurabilityMode.FINALIZE && streams != null) {
+      flush();
+      syncBlock(false);
+    }
+    close();
+  }
+
+  /**
+   * Force the block data and metadata written so far to disk.
+   */
+  private void syncBlock(boolean group) throws IOException {
+    long start = System.currentTimeMillis();
+    try {
+      datanode.data.syncBlock(block, streams, group);
+    } catch (IOException e) {
+      datanode.checkDiskError(e);
+      throw e;
+    }
+    datanode.myMetrics.blockSyncs.inc(System.currentTimeMillis() - start);
+  }
+
   /**
    * Flush block data and metadata files to disk.
    * @throws IOException
@@ -198,35 +295,28 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
    * Verify multiple CRC chunks. 
    */
   private void verifyChunks( byte[] dataBuf, int dataOff, int len, 
-                             byte[] checksumBuf, int checksumOff ) 
-                             throws IOException {
+                             byte[] checksumBuf, int checksumOff,
+                             long offset ) throws IOException {
 	  LOG.debug("Verifying chunks in blockreceiver");
-	  while (len > 0) {
-      int chunkLen = Math.min(len, bytesPerChecksum);
-      
-      checksum.update(dataBuf, dataOff, chunkLen);
-
-      if (!checksum.compare(checksumBuf, checksumOff)) {
-        if (srcDataNode != null) {
-          try {
-            LOG.info("report corrupt block " + block + " from datanode " +
-                      srcDataNode + " to namenode");
-            LocatedBlock lb = new LocatedBlock(block, 
-                                            new DatanodeInfo[] {srcDataNode});
-            datanode.namenode.reportBadBlocks(new LocatedBlock[] {lb});
-          } catch (IOException e) {
-            LOG.warn("Failed to report bad block " + block + 
-                      " from datanode " + srcDataNode + " to namenode");
-          }
+    try {
+      checksum.verifyChunkedSums(dataBuf, dataOff, len, checksumBuf,
+                                 checksumOff, block.toString(), offset);
+    } catch (ChecksumException ce) {
+      if (srcDataNode != null) {
+        try {
+          LOG.info("report corrupt block " + block + " from datanode " +
+                    srcDataNode + " to namenode");
+          LocatedBlock lb = new LocatedBlock(block, 
+                                          new DatanodeInfo[] {srcDataNode});
+          datanode.namenode.reportBadBlocks(new LocatedBlock[] {lb});
+        } catch (IOException e) {
+          LOG.warn("Failed to report bad block " + block + 
+                    " from datanode " + srcDataNode + " to namenode");
         }
-        throw new IOException("Unexpected checksum mismatch " + 
-                              "while writing " + block + " from " + inAddr);
       }
-
-      checksum.reset();
-      dataOff += chunkLen;
-      checksumOff += checksumSize;
-      len -= chunkLen;
+      throw new IOException("Unexpected checksum mismatch " + 
+                            "while writing " + block + " from " + inAddr +
+                            " at offset " + ce.getPos());
     }
   }
 
@@ -340,7 +430,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
     
     // check corrupt values for pktLen, 100MB upper limit should be ok?
-    if (payloadLen < 0 || payloadLen > (100*1024*1024)) {
+    if (payloadLen < 0 || payloadLen > DataNode.MAX_PACKET_PAYLOAD) {
       throw new IOException("Incorrect value for packet payload : " +
                             payloadLen);
     }
@@ -399,7 +489,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     buf.getInt(); // packet length
     offsetInBlock = buf.getLong(); // get offset of packet in block
     long seqno = buf.getLong();    // get seqno
-    boolean lastPacketInBlock = (buf.get() != 0);
+    byte flags = buf.get();
+    boolean lastPacketInBlock = PacketCompressor.isLastPacketInBlock(flags);
+    boolean compressed = PacketCompressor.isCompressed(flags);
     
     int endOfHeader = buf.position();
     buf.reset();
@@ -409,17 +501,33 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
                 " of length " + payloadLen +
                 " seqno " + seqno +
                 " offsetInBlock " + offsetInBlock +
-                " lastPacketInBlock " + lastPacketInBlock);
+                " lastPacketInBlock " + lastPacketInBlock +
+                " compressed " + compressed);
     }
     
     setBlockPosition(offsetInBlock);
     
-    //First write the packet to the mirror:
+    //First write the packet to the mirror, or hand it to the forwarder
+    //so that it is sent while this thread writes it to disk. A compressed
+    //packet is forwarded compressed:
     if (mirrorOut != null) {
-      try {
-        mirrorOut.write(buf.array(), buf.position(), buf.remaining());
-        mirrorOut.flush();
-      } catch (IOException e) {
+      IOException e = null;
+      if (forwarder != null) {
+        e = forwarder.getError();
+        if (e == null) {
+          forwarder.forward(buf);
+        }
+      } else {
+        try {
+          long start = System.nanoTime();
+          mirrorOut.write(buf.array(), buf.position(), buf.remaining());
+          mirrorOut.flush();
+          mirrorWritten(buf.remaining(), start);
+        } catch (IOException ioe) {
+          e = ioe;
+        }
+      }
+      if (e != null) {
         handleMirrorOutError(e);
       }
     }
@@ -427,7 +535,8 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     buf.position(endOfHeader);        
     int len = buf.getInt();
     
-    if (len < 0) {
+    // a compressed packet may unpack to more than it carries, bound it
+    if (len < 0 || len > DataNode.MAX_PACKET_PAYLOAD) {
       throw new IOException("Got wrong length during writeBlock(" + block + 
                             ") from " + inAddr + " at offset " + 
                             offsetInBlock + ": " + len); 
@@ -437,17 +546,36 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       LOG.debug("Receiving empty packet for block " + block);
     } else {
       offsetInBlock += len;
+      bytesReceived += len;
 
       int checksumLen = ((len + bytesPerChecksum - 1)/bytesPerChecksum)*
                                                             checksumSize;
 
-      if ( buf.remaining() != (checksumLen + len)) {
+      int checksumOff = buf.position();
+      byte pktBuf[] = buf.array();
+
+      if (compressed) {
+        if (decompressor == null) {
+          decompressor = new PacketCompressor();
+        }
+        if (checksumLen + len > DataNode.MAX_PACKET_PAYLOAD) {
+          throw new IOException("Compressed packet for block " + block +
+                                " unpacks to " + (checksumLen + len) +
+                                " bytes, more than the maximum packet " +
+                                "payload of " + DataNode.MAX_PACKET_PAYLOAD);
+        }
+        if (unpacked == null || unpacked.length < checksumLen + len) {
+          unpacked = new byte[checksumLen + len];
+        }
+        decompressor.decompress(pktBuf, checksumOff, buf.remaining(),
+                                unpacked, 0, checksumLen + len);
+        pktBuf = unpacked;
+        checksumOff = 0;
+      } else if ( buf.remaining() != (checksumLen + len)) {
         throw new IOException("Data remaining in packet does not match " +
                               "sum of checksumLen and dataLen");
       }
-      int checksumOff = buf.position();
       int dataOff = checksumOff + checksumLen;
-      byte pktBuf[] = buf.array();
 
       buf.position(buf.limit()); // move to the end of the data.
 
@@ -459,7 +587,8 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
        * checksum.
        */
       if (mirrorOut == null || clientName.length() == 0) {
-        verifyChunks(pktBuf, dataOff, len, pktBuf, checksumOff);
+        verifyChunks(pktBuf, dataOff, len, pktBuf, checksumOff,
+                     offsetInBlock - len);
       }
 
       try {
@@ -496,6 +625,12 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     /// flush entire packet before sending ack
     flush();
 
+    // and force it to disk too if every packet has to be durable
+    if (datanode.durability == DurabilityMode.GROUP && len > 0 && 
+        !finalized && streams != null) {
+      syncBlock(true);
+    }
+
     // put in queue for pending acks
     LOG.debug("Enqueing pending ack : "+seqno);
     if (responder != null) {
@@ -511,6 +646,26 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     return payloadLen;
   }
 
+  /** @return the bytes of block data received so far */
+  long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  /** @return the bytes sent to the mirror so far */
+  long getMirrorBytes() {
+    return mirrorBytes;
+  }
+
+  /** @return the time spent writing to the mirror so far, in ms */
+  long getMirrorMillis() {
+    return mirrorNanos / 1000000;
+  }
+
+  private void mirrorWritten(long bytes, long startNanos) {
+    mirrorBytes += bytes;
+    mirrorNanos += System.nanoTime() - startNanos;
+  }
+
   void writeChecksumHeader(DataOutputStream mirrorOut) throws IOException {
 	  LOG.debug("Writing checksum header");
     checksum.writeHeader(mirrorOut);
@@ -541,6 +696,10 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
                                                    replyOut, numTargets));
         responder.start(); // start thread to processes reponses
       }
+      if (mirrorOut != null && datanode.mirrorQueuePackets > 0) {
+        forwarder = new MirrorForwarder(mirrorOut, datanode.mirrorQueuePackets);
+        new Daemon(datanode.threadGroup, forwarder).start();
+      }
 
       /* 
        * Receive until packet length is zero.
@@ -549,10 +708,18 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
 
       // flush the mirror out
       if (mirrorOut != null) {
-        try {
-          mirrorOut.writeInt(0); // mark the end of the block
-          mirrorOut.flush();
-        } catch (IOException e) {
+        IOException e = null;
+        if (forwarder != null) {
+          e = forwarder.finish(); // marks the end of the block
+        } else {
+          try {
+            mirrorOut.writeInt(0); // mark the end of the block
+            mirrorOut.flush();
+          } catch (IOException ioe) {
+            e = ioe;
+          }
+        }
+        if (e != null) {
           handleMirrorOutError(e);
         }
       }
@@ -568,9 +735,10 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       // the block is finalized in the PacketResponder.
       if (clientName.length() == 0) {
         // close the block/crc files
-        close();
+        closeForFinalize();
 
-        // Finalize the block. Does this fsync()?
+        // Finalize the block. The durability mode decides whether the
+        // files were forced to disk.
         block.setNumBytes(offsetInBlock);
         datanode.data.finalizeBlock(block);
         datanode.myMetrics.blocksWritten.inc();
@@ -585,6 +753,12 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       cleanupBlock();
       throw ioe;
     } finally {
+      if (forwarder != null) {
+        // does not wait for a write blocked on the mirror, which fails
+        // when the mirror socket is closed
+        forwarder.abort();
+        forwarder = null;
+      }
       if (responder != null) {
         try {
           responder.join();
@@ -691,8 +865,11 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       IOUtils.closeStream(instr);
     }
 
-    // compute crc of partial chunk from data read in the block file.
-    partialCrc = new CRC32();
+    // compute crc of partial chunk from data read in the block file,
+    // with the checksum the existing crc values were computed with.
+    DataChecksum onDisk = diskChecksum != null ? diskChecksum : checksum;
+    partialCrc = DataChecksum.newDataChecksum(onDisk.getChecksumType(),
+                                              bytesPerChecksum);
     partialCrc.update(buf, 0, sizePartialChunk);
     LOG.info("Read in partial CRC chunk from disk for block " + block);
 
@@ -710,6 +887,136 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   }
   
   
+  /**
+   * Forwards the received packets to the next datanode in the pipeline,
+   * so that a slow mirror and a slow local disk do not add up. The
+   * packets are sent in the order they were received, and at most a
+   * bounded number of them wait in the queue: the receiving thread
+   * blocks when it is full. The acks are unaffected as the downstream
+   * datanode only acks what it has received.
+   * <p>
+   * After the first error nothing more is sent and the error is handed
+   * to the receiving thread, which handles it as a failed mirror write.
+   */
+  class MirrorForwarder implements Runnable {
+    private final DataOutputStream out;
+    private final int capacity;
+    private final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+    private boolean finished = false; // end of block queued
+    private boolean done = false;     // nothing more will be sent
+    private IOException error = null;
+
+    MirrorForwarder(DataOutputStream out, int capacity) {
+      this.out = out;
+      this.capacity = capacity;
+    }
+
+    public String toString() {
+      return "MirrorForwarder for Block " + block + " to " + mirrorAddr;
+    }
+
+    /** @return the error that stopped the forwarding, if any */
+    synchronized IOException getError() {
+      return error;
+    }
+
+    /**
+     * Queue a copy of the packet between the position and the limit of
+     * pkt, waiting while the queue is full.
+     */
+    void forward(ByteBuffer pkt) throws IOException {
+      byte[] copy = Arrays.copyOfRange(pkt.array(), pkt.position(),
+                                       pkt.limit());
+      synchronized (this) {
+        while (!done && queue.size() >= capacity) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted forwarding " +
+                                             "block " + block);
+          }
+        }
+        if (!done) {
+          queue.addLast(copy);
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Queue the end of block marker and wait until everything queued has
+     * been sent.
+     * @return the error that stopped the forwarding, if any
+     */
+    synchronized IOException finish() throws IOException {
+      finished = true;
+      notifyAll();
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted forwarding " +
+                                           "block " + block);
+        }
+      }
+      return error;
+    }
+
+    /** Drop whatever is queued and stop */
+    synchronized void abort() {
+      done = true;
+      queue.clear();
+      notifyAll();
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          byte[] pkt;
+          boolean more;
+          synchronized (this) {
+            while (!done && !finished && queue.isEmpty()) {
+              wait();
+            }
+            if (done) {
+              return;
+            }
+            pkt = queue.pollFirst();
+            more = !queue.isEmpty();
+            notifyAll();
+          }
+          long start = System.nanoTime();
+          if (pkt == null) {
+            out.writeInt(0); // mark the end of the block
+            out.flush();
+            mirrorWritten(0, start);
+            break;
+          }
+          out.write(pkt);
+          if (!more) {
+            out.flush();  // the packets queued meanwhile go together
+          }
+          mirrorWritten(pkt.length, start);
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+        }
+      } catch (InterruptedException e) {
+        synchronized (this) {
+          error = new InterruptedIOException("Interrupted forwarding " +
+                                             "block " + block);
+        }
+      } finally {
+        synchronized (this) {
+          done = true;
+          queue.clear();
+          notifyAll();
+        }
+      }
+    }
+  }
+
   /**
    * Processed responses from downstream datanodes in the pipeline
    * and sends back replies to the originator.
@@ -818,7 +1125,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
             // file and finalize the block before responding success
             if (pkt.lastPacketInBlock) {
               if (!receiver.finalized) {
-                receiver.close();
+                receiver.closeForFinalize();
                 block.setNumBytes(receiver.offsetInBlock);
                 datanode.data.finalizeBlock(block);
                 datanode.myMetrics.blocksWritten.inc();
@@ -941,7 +1248,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
             // If this is the last packet in block, then close block
             // file and finalize the block before responding success
             if (lastPacketInBlock && !receiver.finalized) {
-              receiver.close();
+              receiver.closeForFinalize();
               block.setNumBytes(receiver.offsetInBlock);
               datanode.data.finalizeBlock(block);
               datanode.myMetrics.blocksWritten.inc();
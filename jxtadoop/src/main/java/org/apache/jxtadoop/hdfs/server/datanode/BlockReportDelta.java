@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
+
+/**
+ * The finalized replicas added, changed or removed since the last block
+ * report. Only the latest change of a block is kept: a replica whose
+ * generation stamp or length changed is reported as added again with its
+ * new values, and a replica added then removed is only reported removed.
+ */
+class BlockReportDelta {
+  private Map<Long, Block> added = new HashMap<Long, Block>();
+  private Map<Long, Block> removed = new HashMap<Long, Block>();
+
+  /** Record a replica that was finalized or changed */
+  synchronized void added(Block b) {
+    removed.remove(b.getBlockId());
+    added.put(b.getBlockId(), new Block(b));
+  }
+
+  /** Record a replica that was deleted */
+  synchronized void removed(Block b) {
+    added.remove(b.getBlockId());
+    removed.put(b.getBlockId(), new Block(b));
+  }
+
+  /** Forget all the changes, a full block report is being sent */
+  synchronized void clear() {
+    added = new HashMap<Long, Block>();
+    removed = new HashMap<Long, Block>();
+  }
+
+  /**
+   * Take the recorded changes, to be sent in a delta report.
+   * @return the changes recorded so far
+   */
+  synchronized BlockReportDelta drain() {
+    BlockReportDelta d = new BlockReportDelta();
+    d.added = added;
+    d.removed = removed;
+    clear();
+    return d;
+  }
+
+  /**
+   * Put back changes that could not be sent. Changes recorded since
+   * they were drained take precedence.
+   */
+  synchronized void restore(BlockReportDelta d) {
+    for (Block b : d.added.values()) {
+      if (!added.containsKey(b.getBlockId()) &&
+          !removed.containsKey(b.getBlockId())) {
+        added.put(b.getBlockId(), b);
+      }
+    }
+    for (Block b : d.removed.values()) {
+      if (!added.containsKey(b.getBlockId()) &&
+          !removed.containsKey(b.getBlockId())) {
+        removed.put(b.getBlockId(), b);
+      }
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty();
+  }
+
+  synchronized int getNumAdded() {
+    return added.size();
+  }
+
+  synchronized int getNumRemoved() {
+    return removed.size();
+  }
+
+  /** @return the added and changed replicas, encoded for the namenode */
+  synchronized BlockListAsLongs getAddedAsLongs() {
+    return new BlockListAsLongs(BlockListAsLongs.convertToArrayLongs(
+        added.values().toArray(new Block[added.size()])));
+  }
+
+  /** @return the removed replicas, encoded for the namenode */
+  synchronized BlockListAsLongs getRemovedAsLongs() {
+    return new BlockListAsLongs(BlockListAsLongs.convertToArrayLongs(
+        removed.values().toArray(new Block[removed.size()])));
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.jxtadoop.hdfs.server.datanode;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,6 +34,7 @@ import org.apache.commons.logging.Log;
 import org.apache.jxtadoop.fs.ChecksumException;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.hdfs.protocol.PacketCompressor;
 import org.apache.jxtadoop.io.IOUtils;
 import org.apache.jxtadoop.net.SocketOutputStream;
 import org.apache.jxtadoop.util.DataChecksum;
@@ -48,6 +50,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
   private Block block; // the block to read from
   private InputStream blockIn; // data stream
   private long blockInPosition = -1; // updated while using transferTo().
+  private FileChannel blockChannel; // set when reading through channels
   private DataInputStream checksumIn; // checksum datastream
   private DataChecksum checksum; // checksum stream
   private long offset; // starting position to read
@@ -65,6 +68,11 @@ class BlockSender implements java.io.Closeable, FSConstants {
   private BlockTransferThrottler throttler;
   private final String clientTraceFmt; // format of client trace log message
 
+  private FileChannel metaChannel; // set when the meta data is in a file
+  private long metaPosition; // position of the next checksum in metaChannel
+  private int sendPacketSize; // payload of the packets read from channels
+  private PacketCompressor compressor = null; // set to compress packets
+
   /**
    * Minimum buffer used while sending data to clients. Used only if
    * transferTo() is enabled. 64KB is not that large. It could be larger, but
@@ -84,19 +92,50 @@ class BlockSender implements java.io.Closeable, FSConstants {
               boolean corruptChecksumOk, boolean chunkOffsetOK,
               boolean verifyChecksum, DataNode datanode, String clientTraceFmt)
       throws IOException {
+    // verifying reads (the block scanner) must check the disk copy
+    this(block, startOffset, length, corruptChecksumOk, chunkOffsetOK,
+         verifyChecksum, datanode.data,
+         verifyChecksum ? null : datanode.blockCache,
+         datanode.sendPacketSize, clientTraceFmt);
+    this.transferToAllowed = datanode.transferToAllowed;
+  }
+
+  /**
+   * @param data the dataset the block is read from
+   * @param cache the block cache to serve the block from, or null
+   * @param sendPacketSize the payload size of the packets when the block
+   *        is read through file channels, 0 to always use streams
+   */
+  BlockSender(Block block, long startOffset, long length,
+              boolean corruptChecksumOk, boolean chunkOffsetOK,
+              boolean verifyChecksum, FSDatasetInterface data,
+              BlockCache cache, int sendPacketSize, String clientTraceFmt)
+      throws IOException {
     try {
       this.block = block;
       this.chunkOffsetOK = chunkOffsetOK;
       this.corruptChecksumOk = corruptChecksumOk;
       this.verifyChecksum = verifyChecksum;
-      this.blockLength = datanode.data.getLength(block);
-      this.transferToAllowed = datanode.transferToAllowed;
+      this.blockLength = data.getLength(block);
+      this.sendPacketSize = sendPacketSize;
       this.clientTraceFmt = clientTraceFmt;
 
-      if ( !corruptChecksumOk || datanode.data.metaFileExists(block) ) {
+      BlockCache.CachedBlock cached = null;
+      if (cache != null) {
+        cached = cache.get(block, blockLength, data);
+      }
+
+      if (cached != null) {
+        checksumIn = new DataInputStream(cached.getMetaStream());
+      } else if ( !corruptChecksumOk || data.metaFileExists(block) ) {
+        FSDatasetInterface.MetaDataInputStream metaIn =
+          data.getMetaDataInputStream(block);
+        metaChannel = metaIn.getChannel();
         checksumIn = new DataInputStream(
-                new BufferedInputStream(datanode.data.getMetaDataInputStream(block),
-                                        BUFFER_SIZE));
+                new BufferedInputStream(metaIn, BUFFER_SIZE));
+      }
+
+      if (checksumIn != null) {
 
         // read and handle the common header here. For now just a version
        BlockMetadataHeader header = BlockMetadataHeader.readHeader(checksumIn);
@@ -135,7 +174,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
           || (length + startOffset) > endOffset) {
         String msg = " Offset " + startOffset + " and length " + length
         + " don't match block " + block + " ( blockLen " + endOffset + " )";
-        LOG.warn(datanode.dnRegistration + ":sendBlock() : " + msg);
+        LOG.warn("sendBlock() : " + msg);
         throw new IOException(msg);
       }
 
@@ -152,6 +191,9 @@ class BlockSender implements java.io.Closeable, FSConstants {
         }
       }
 
+      metaPosition = BlockMetadataHeader.getHeaderSize()
+                     + (offset / bytesPerChecksum) * checksumSize;
+
       // seek to the right offsets
       if (offset > 0) {
         long checksumSkip = (offset / bytesPerChecksum) * checksumSize;
@@ -163,7 +205,11 @@ class BlockSender implements java.io.Closeable, FSConstants {
       }
       seqno = 0;
 
-      blockIn = datanode.data.getBlockInputStream(block, offset); // seek to offset
+      if (cached != null) {
+        blockIn = cached.getDataStream(offset);
+      } else {
+        blockIn = data.getBlockInputStream(block, offset); // seek to offset
+      }
     } catch (IOException ioe) {
       IOUtils.closeStream(this);
       IOUtils.closeStream(blockIn);
@@ -246,8 +292,8 @@ class BlockSender implements java.io.Closeable, FSConstants {
     pkt.putInt(packetLen);
     pkt.putLong(offset);
     pkt.putLong(seqno);
-    pkt.put((byte)((offset + len >= endOffset) ? 1 : 0));
-               //why no ByteBuf.putBoolean()?
+    pkt.put((offset + len >= endOffset) ?
+            PacketCompressor.LAST_PACKET_IN_BLOCK : 0);
     pkt.putInt(len);
     
     int checksumOff = pkt.position();
@@ -256,7 +302,12 @@ class BlockSender implements java.io.Closeable, FSConstants {
     
     if (checksumSize > 0 && checksumIn != null) {
       try {
-        checksumIn.readFully(buf, checksumOff, checksumLen);
+        if (blockChannel != null) {
+          readFully(metaChannel, metaPosition, pkt, checksumOff, checksumLen);
+          metaPosition += checksumLen;
+        } else {
+          checksumIn.readFully(buf, checksumOff, checksumLen);
+        }
       } catch (IOException e) {
         LOG.warn(" Could not read or failed to veirfy checksum for data" +
                  " at offset " + offset + " for block " + block + " got : "
@@ -278,7 +329,11 @@ class BlockSender implements java.io.Closeable, FSConstants {
     
     if (blockInPosition < 0) {
       //normal transfer
-      IOUtils.readFully(blockIn, buf, dataOff, len);
+      if (blockChannel != null) {
+        readFully(blockChannel, offset, pkt, dataOff, len);
+      } else {
+        IOUtils.readFully(blockIn, buf, dataOff, len);
+      }
 
       if (verifyChecksum) {
         int dOff = dataOff;
@@ -301,6 +356,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
       //writing is done below (mainly to handle IOException)
     }
     
+    int sentLen = packetLen;
     try {
       if (blockInPosition >= 0) {
         //use transferTo(). Checks on out and blockIn are already done. 
@@ -314,6 +370,13 @@ class BlockSender implements java.io.Closeable, FSConstants {
                                 blockInPosition, len);
 
         blockInPosition += len;
+      } else if (compressor != null) {
+        pkt.position(0);
+        pkt.limit(dataOff + len);
+        ByteBuffer wire = compressor.compress(pkt);
+        out.write(wire.array(), wire.arrayOffset() + wire.position(),
+                  wire.remaining());
+        sentLen = wire.getInt(wire.position());
       } else {
         // normal transfer
         out.write(buf, 0, dataOff + len);
@@ -327,12 +390,31 @@ class BlockSender implements java.io.Closeable, FSConstants {
     }
 
     if (throttler != null) { // rebalancing so throttle
-      throttler.throttle(packetLen);
+      throttler.throttle(sentLen);
     }
 
     return len;
   }
 
+  /**
+   * Read exactly len bytes of a channel at a position into the packet
+   * buffer at off, without changing the channel position.
+   */
+  private static void readFully(FileChannel channel, long position,
+                                ByteBuffer pkt, int off, int len)
+                                throws IOException {
+    ByteBuffer dst = pkt.duplicate();
+    dst.limit(off + len);
+    dst.position(off);
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, position);
+      if (n < 0) {
+        throw new EOFException("Premature EOF reading " + len + " bytes");
+      }
+      position += n;
+    }
+  }
+
   /**
    * sendBlock() is used to read block and its metadata and stream the data to
    * either a client or to another datanode. 
@@ -371,7 +453,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
       int maxChunksPerPacket;
       int pktSize = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
       
-      if (transferToAllowed && !verifyChecksum && 
+      if (transferToAllowed && !verifyChecksum && compressor == null &&
           baseStream instanceof SocketOutputStream && 
           blockIn instanceof FileInputStream) {
         
@@ -388,6 +470,19 @@ class BlockSender implements java.io.Closeable, FSConstants {
         
         // allocate smaller buffer while using transferTo(). 
         pktSize += checksumSize * maxChunksPerPacket;
+      } else if (sendPacketSize > 0 && baseStream != null &&
+                 ((blockIn instanceof FileInputStream &&
+                   (checksumIn == null || metaChannel != null)) ||
+                  blockIn instanceof BlockCache.ByteBufferInputStream)) {
+        // Streams that cannot take transferTo(), such as JXTA sockets.
+        // Read chunk aligned slices of the block and meta files straight
+        // into the packet and write each packet to the socket in one go.
+        if (blockIn instanceof FileInputStream) {
+          blockChannel = ((FileInputStream)blockIn).getChannel();
+        }
+        streamForSendChunks = baseStream;
+        maxChunksPerPacket = Math.max(1, sendPacketSize / bytesPerChecksum);
+        pktSize += (bytesPerChecksum + checksumSize) * maxChunksPerPacket;
       } else {
         maxChunksPerPacket = Math.max(1,
                  (BUFFER_SIZE + bytesPerChecksum - 1)/bytesPerChecksum);
@@ -425,4 +520,12 @@ class BlockSender implements java.io.Closeable, FSConstants {
   boolean isBlockReadFully() {
     return blockReadFully;
   }
+
+  /**
+   * Compress the packets that are worth it. Disables transferTo(), as
+   * the data has to go through the packet buffer.
+   */
+  void setCompressor(PacketCompressor compressor) {
+    this.compressor = compressor;
+  }
 }
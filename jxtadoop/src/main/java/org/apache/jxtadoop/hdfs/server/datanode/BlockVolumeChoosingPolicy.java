@@ -0,0 +1,39 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+
+import org.apache.jxtadoop.hdfs.server.datanode.FSDataset.FSVolume;
+
+/**
+ * Chooses the volume a new block is written to. The implementation is
+ * set with dfs.datanode.block.volume.choice.policy.
+ */
+public interface BlockVolumeChoosingPolicy {
+
+  /**
+   * Choose a volume with room for a block.
+   * @param volumes the volumes of the datanode
+   * @param blockSize the size of the block to be written
+   * @return the chosen volume
+   * @throws IOException when no volume has enough space
+   */
+  public FSVolume chooseVolume(FSVolume[] volumes, long blockSize)
+      throws IOException;
+}
@@ -18,22 +18,26 @@
 
 package org.apache.jxtadoop.hdfs.server.datanode;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
-import java.io.DataOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
@@ -42,16 +46,27 @@ import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.ChecksumException;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.io.IOUtils;
+import org.apache.jxtadoop.util.Daemon;
+import org.apache.jxtadoop.util.DataChecksum;
 import org.apache.jxtadoop.util.StringUtils;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
 
 /*
  * This keeps track of blocks and their last verification times.
  * Currently it does not modify the metadata for block.
+ *
+ * Each volume is scanned by its own thread, all of them sharing the
+ * same bandwidth. A block is due for a scan once the scan period has
+ * elapsed since its last scan, right away if it was never scanned, and
+ * soon again if its last scan failed, backing off while it keeps failing.
+ * The block data is read in large chunks and checked against the
+ * checksums of the meta file.
  */
 @SuppressWarnings({"unused"})
 class DataBlockScanner implements Runnable {
@@ -63,6 +78,8 @@ class DataBlockScanner implements Runnable {
   
   static final long DEFAULT_SCAN_PERIOD_HOURS = 21*24L; // three weeks
   private static final long ONE_DAY = 24*3600*1000L;
+  static final long FAILED_RESCAN_INTERVAL = 10*60*1000L;
+  static final int DEFAULT_SCAN_READ_SIZE = 1024*1024;
   
   static final DateFormat dateFormat = 
                     new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
@@ -77,6 +94,9 @@ class DataBlockScanner implements Runnable {
   // sorted set
   TreeSet<BlockScanInfo> blockInfoSet;
   HashMap<Block, BlockScanInfo> blockMap;
+  // the same blocks, by volume. Blocks of an unknown volume are under null.
+  HashMap<FSDataset.FSVolume, TreeSet<BlockScanInfo>> volumeQueues;
+  private List<Thread> volumeScanners = new ArrayList<Thread>();
   
   long totalScans = 0;
   long totalVerifications = 0; // includes remote verification by clients.
@@ -92,6 +112,8 @@ class DataBlockScanner implements Runnable {
   Random random = new Random();
   
   BlockTransferThrottler throttler = null;
+  private long maxScanRate = MAX_SCAN_RATE; // shared by all the volumes
+  private int scanReadSize = DEFAULT_SCAN_READ_SIZE;
   
   private static enum ScanType {
     REMOTE_READ,           // Verified when a block read by a client etc
@@ -101,10 +123,13 @@ class DataBlockScanner implements Runnable {
   
   static class BlockScanInfo implements Comparable<BlockScanInfo> {
     Block block;
+    FSDataset.FSVolume volume;
+    long dueTime = 0; // set when added to the sets
     long lastScanTime = 0;
     long lastLogTime = 0;
     ScanType lastScanType = ScanType.NONE; 
     boolean lastScanOk = true;
+    int failures = 0; // verifications failed in a row
     
     BlockScanInfo(Block block) {
       this.block = block;
@@ -124,8 +149,8 @@ class DataBlockScanner implements Runnable {
     }
     
     public int compareTo(BlockScanInfo other) {
-      long t1 = lastScanTime;
-      long t2 = other.lastScanTime;
+      long t1 = dueTime;
+      long t2 = other.dueTime;
       return ( t1 < t2 ) ? -1 : 
                           (( t1 > t2 ) ? 1 : block.compareTo(other.block)); 
     }
@@ -139,8 +164,32 @@ class DataBlockScanner implements Runnable {
       scanPeriod = DEFAULT_SCAN_PERIOD_HOURS;
     }
     scanPeriod *= 3600 * 1000;
+    maxScanRate = Math.max(MIN_SCAN_RATE,
+        conf.getLong("dfs.datanode.scan.bandwidthPerSec", MAX_SCAN_RATE));
+    scanReadSize = Math.max(FSConstants.BUFFER_SIZE,
+        conf.getInt("dfs.datanode.scan.read.size", DEFAULT_SCAN_READ_SIZE));
     // initialized when the scanner thread is started.
   }
+
+  /**
+   * @return when the block should be scanned next: right away if it was
+   *         never scanned, soon if its last scan failed, and one scan
+   *         period after its last scan otherwise. A block that keeps
+   *         failing, as when no good replica is left for the namenode to
+   *         replace it with, is rescanned and reported half as often
+   *         each time.
+   */
+  private long getDueTime(BlockScanInfo info) {
+    if (info.lastScanType == ScanType.NONE) {
+      return info.lastScanTime;
+    }
+    if (!info.lastScanOk) {
+      long interval = FAILED_RESCAN_INTERVAL <<
+                      Math.min(Math.max(info.failures - 1, 0), 20);
+      return info.lastScanTime + Math.min(interval, scanPeriod);
+    }
+    return info.lastScanTime + scanPeriod;
+  }
   
   private synchronized boolean isInitiliazed() {
     return throttler != null;
@@ -157,8 +206,15 @@ class DataBlockScanner implements Runnable {
   }
   
   private synchronized void addBlockInfo(BlockScanInfo info) {
+    info.dueTime = getDueTime(info);
     boolean added = blockInfoSet.add(info);
     blockMap.put(info.block, info);
+    TreeSet<BlockScanInfo> queue = volumeQueues.get(info.volume);
+    if (queue == null) {
+      queue = new TreeSet<BlockScanInfo>();
+      volumeQueues.put(info.volume, queue);
+    }
+    queue.add(info);
     
     if ( added ) {
       LogFileHandler log = verificationLog;
@@ -172,6 +228,10 @@ class DataBlockScanner implements Runnable {
   private synchronized void delBlockInfo(BlockScanInfo info) {
     boolean exists = blockInfoSet.remove(info);
     blockMap.remove(info.block);
+    TreeSet<BlockScanInfo> queue = volumeQueues.get(info.volume);
+    if (queue != null) {
+      queue.remove(info);
+    }
     if ( exists ) {
       LogFileHandler log = verificationLog;
       if (log != null) {
@@ -202,10 +262,12 @@ class DataBlockScanner implements Runnable {
     
     blockInfoSet = new TreeSet<BlockScanInfo>();
     blockMap = new HashMap<Block, BlockScanInfo>();
+    volumeQueues = new HashMap<FSDataset.FSVolume, TreeSet<BlockScanInfo>>();
     
     long scanTime = -1;
     for (Block block : arr) {
       BlockScanInfo info = new BlockScanInfo( block );
+      info.volume = dataset.getVolume(block);
       info.lastScanTime = scanTime--; 
       //still keep 'info.lastScanType' to NONE.
       addBlockInfo(info);
@@ -235,7 +297,7 @@ class DataBlockScanner implements Runnable {
     }
     
     synchronized (this) {
-      throttler = new BlockTransferThrottler(200, MAX_SCAN_RATE);
+      throttler = new BlockTransferThrottler(200, maxScanRate);
     }
   }
 
@@ -262,6 +324,7 @@ class DataBlockScanner implements Runnable {
     }
     
     info = new BlockScanInfo(block);    
+    info.volume = dataset.getVolume(block);
     info.lastScanTime = getNewBlockScanTime();
     
     addBlockInfo(info);
@@ -309,12 +372,14 @@ class DataBlockScanner implements Runnable {
     } else {
       // It might already be removed. Thats ok, it will be caught next time.
       info = new BlockScanInfo(block);
+      info.volume = dataset.getVolume(block);
     }
     
     long now = System.currentTimeMillis();
     info.lastScanType = type;
     info.lastScanTime = now;
     info.lastScanOk = scanOk;
+    info.failures = scanOk ? 0 : info.failures + 1;
     addBlockInfo(info);
     
     if (type == ScanType.REMOTE_READ) {
@@ -402,14 +467,53 @@ class DataBlockScanner implements Runnable {
   
   private synchronized void adjustThrottler() {
     long timeLeft = currentPeriodStart+scanPeriod - System.currentTimeMillis();
-    long bw = Math.max(bytesLeft*1000/timeLeft, MIN_SCAN_RATE);
-    throttler.setBandwidth(Math.min(bw, MAX_SCAN_RATE));
+    long bw = Math.max(bytesLeft*1000/Math.max(timeLeft, 1), MIN_SCAN_RATE);
+    throttler.setBandwidth(Math.min(bw, maxScanRate));
+  }
+
+  /**
+   * Check the block data against the checksums of its meta file. Both
+   * files are read sequentially, in reads of up to dataBuf.length bytes.
+   */
+  private void verifyChecksums(Block block, byte[] dataBuf)
+      throws IOException {
+    DataInputStream checksumIn = null;
+    InputStream blockIn = null;
+    try {
+      long length = dataset.getLength(block);
+      checksumIn = new DataInputStream(new BufferedInputStream(
+          dataset.getMetaDataInputStream(block), FSConstants.BUFFER_SIZE));
+      DataChecksum checksum =
+        BlockMetadataHeader.readHeader(checksumIn).getChecksum();
+      int bytesPerChecksum = checksum.getBytesPerChecksum();
+      int checksumSize = checksum.getChecksumSize();
+      if (dataBuf.length < bytesPerChecksum) {
+        dataBuf = new byte[bytesPerChecksum];
+      }
+      int chunksPerRead = dataBuf.length / bytesPerChecksum;
+      byte[] checksumBuf = new byte[chunksPerRead * checksumSize];
+
+      blockIn = dataset.getBlockInputStream(block, 0);
+      long offset = 0;
+      while (offset < length) {
+        int len = (int)Math.min(length - offset,
+                                (long)chunksPerRead * bytesPerChecksum);
+        int chunks = (len + bytesPerChecksum - 1) / bytesPerChecksum;
+        IOUtils.readFully(blockIn, dataBuf, 0, len);
+        checksumIn.readFully(checksumBuf, 0, chunks * checksumSize);
+        checksum.verifyChunkedSums(dataBuf, 0, len, checksumBuf, 0,
+                                   block.toString(), offset);
+        offset += len;
+        throttler.throttle(len);
+      }
+    } finally {
+      IOUtils.closeStream(blockIn);
+      IOUtils.closeStream(checksumIn);
+    }
   }
   
-  private void verifyBlock(Block block) {
+  private void verifyBlock(Block block, byte[] dataBuf) {
     
-    BlockSender blockSender = null;
-
     /* In case of failure, attempt to read second time to reduce
      * transient errors. How do we flush block data from kernel 
      * buffers before the second read? 
@@ -418,21 +522,15 @@ class DataBlockScanner implements Runnable {
       boolean second = (i > 0);
       
       try {
-        adjustThrottler();
-        
-        blockSender = new BlockSender(block, 0, -1, false, 
-                                               false, true, datanode);
-
-        DataOutputStream out = 
-                new DataOutputStream(new IOUtils.NullOutputStream());
-        
-        blockSender.sendBlock(out, null, throttler);
+        verifyChecksums(block, dataBuf);
 
         LOG.info((second ? "Second " : "") +
                  "Verification succeeded for " + block);
         
         if ( second ) {
-          totalTransientErrors++;
+          synchronized (this) {
+            totalTransientErrors++;
+          }
         }
         
         updateScanStatus(block, ScanType.VERIFICATION_SCAN, true);
@@ -440,8 +538,9 @@ class DataBlockScanner implements Runnable {
         return;
       } catch (IOException e) {
 
-        totalScanErrors++;
-        updateScanStatus(block, ScanType.VERIFICATION_SCAN, false);
+        synchronized (this) {
+          totalScanErrors++;
+        }
 
         // If the block does not exists anymore, then its not an error
         if ( dataset.getFile(block) == null ) {
@@ -456,37 +555,68 @@ class DataBlockScanner implements Runnable {
                  StringUtils.stringifyException(e));
         
         if (second) {
+          updateScanStatus(block, ScanType.VERIFICATION_SCAN, false);
           datanode.getMetrics().blockVerificationFailures.inc(); 
           handleScanFailure(block);
           return;
         } 
       } finally {
-        IOUtils.closeStream(blockSender);
         datanode.getMetrics().blocksVerified.inc();
-        totalScans++;
-        totalVerifications++;
+        synchronized (this) {
+          totalScans++;
+          totalVerifications++;
+        }
       }
     }
   }
   
-  private synchronized long getEarliestScanTime() {
-    if ( blockInfoSet.size() > 0 ) {
-      return blockInfoSet.first().lastScanTime;
+  /**
+   * @return the most overdue block of a volume, or null if none is due
+   */
+  private synchronized Block getNextBlockToScan(FSDataset.FSVolume volume,
+                                                long now) {
+    TreeSet<BlockScanInfo> queue = volumeQueues.get(volume);
+    if (queue != null && queue.size() > 0 && queue.first().dueTime <= now) {
+      return queue.first().block;
     }
-    return Long.MAX_VALUE; 
+    return null;
   }
-  
-  // Picks one block and verifies it
-  private void verifyFirstBlock() {
-    Block block = null;
-    synchronized (this) {
-      if ( blockInfoSet.size() > 0 ) {
-        block = blockInfoSet.first().block;
+
+  /**
+   * Scans the blocks of one volume. The first one also takes care of the
+   * blocks whose volume is not known.
+   */
+  private class VolumeScanner implements Runnable {
+    private final FSDataset.FSVolume volume;
+    private final boolean scanUnknown;
+
+    VolumeScanner(FSDataset.FSVolume volume, boolean scanUnknown) {
+      this.volume = volume;
+      this.scanUnknown = scanUnknown;
+    }
+
+    public void run() {
+      byte[] dataBuf = new byte[scanReadSize];
+      while (datanode.shouldRun && !Thread.currentThread().isInterrupted()) {
+        long now = System.currentTimeMillis();
+        Block block = getNextBlockToScan(volume, now);
+        if (block == null && scanUnknown) {
+          block = getNextBlockToScan(null, now);
+        }
+        if (block != null) {
+          verifyBlock(block, dataBuf);
+        } else {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
       }
     }
-    
-    if ( block != null ) {
-      verifyBlock(block);
+
+    public String toString() {
+      return "DataBlockScanner for " + volume;
     }
   }
   
@@ -575,6 +705,13 @@ class DataBlockScanner implements Runnable {
       }
       
       adjustThrottler();
+
+      FSDataset.FSVolume[] volumes = dataset.volumes.volumes;
+      for (int i = 0; i < volumes.length; i++) {
+        Thread t = new Daemon(new VolumeScanner(volumes[i], i == 0));
+        t.start();
+        volumeScanners.add(t);
+      }
       
       while (datanode.shouldRun && !Thread.interrupted()) {
         long now = System.currentTimeMillis();
@@ -582,13 +719,12 @@ class DataBlockScanner implements Runnable {
           if ( now >= (currentPeriodStart + scanPeriod)) {
             startNewPeriod();
           }
+          adjustThrottler();
         }
-        if ( (now - getEarliestScanTime()) >= scanPeriod ) {
-          verifyFirstBlock();
-        } else {
-          try {
-            Thread.sleep(1000);
-          } catch (InterruptedException ignored) {}
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          break;
         }
       }
     } catch (RuntimeException e) {
@@ -596,6 +732,15 @@ class DataBlockScanner implements Runnable {
                StringUtils.stringifyException(e));
       throw e;
     } finally {
+      for (Thread t : volumeScanners) {
+        t.interrupt();
+      }
+      for (Thread t : volumeScanners) {
+        try {
+          t.join();
+        } catch (InterruptedException ignored) {
+        }
+      }
       shutdown();
       LOG.info("Exiting DataBlockScanner thread.");
     }
@@ -43,7 +43,6 @@ import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -71,6 +70,7 @@ import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
+import org.apache.jxtadoop.hdfs.protocol.PacketCompressor;
 import org.apache.jxtadoop.hdfs.protocol.UnregisteredDatanodeException;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants;
@@ -169,12 +169,16 @@ public class DataNode extends Configured
   private DatanodePeer dnpeer = null;
 
   volatile boolean shouldRun = true;
-  private LinkedList<Block> receivedBlockList = new LinkedList<Block>();
   /** list of blocks being recovered */
   private final Map<Block, Block> ongoingRecovery = new HashMap<Block, Block>();
-  private LinkedList<String> delHints = new LinkedList<String>();
   public final static String EMPTY_DEL_HINT = "";
   AtomicInteger xmitsInProgress = new AtomicInteger();
+  /** number of blocks being read or written by clients */
+  final AtomicInteger clientOpsInProgress = new AtomicInteger();
+  TransferScheduler transferScheduler = null;
+  BlockReceivedNotifier blockReceivedNotifier = null;
+  PeerMetrics peerMetrics = null;
+  private String[] slowPeers = new String[0]; // last reported
   Daemon dataXceiverServer = null;
   Daemon dataXceiver = null;
   ThreadGroup threadGroup = null;
@@ -182,6 +186,11 @@ public class DataNode extends Configured
   //disallow the sending of BR before instructed to do so
   long lastBlockReport = 0;
   boolean resetBlockReportTime = true;
+  long fullBlockReportInterval;
+  long lastFullBlockReport = 0;
+  boolean fullBlockReportRequested = true;
+  long blockReportSeq = 0; // of the last report acknowledged by the namenode
+  boolean compressBlockReports;
   long initialBlockReportDelay = BLOCKREPORT_INITIAL_DELAY * 1000L;
   long lastHeartbeat = 0;
   long heartBeatInterval;
@@ -195,11 +204,16 @@ public class DataNode extends Configured
   int socketTimeout;
   int socketWriteTimeout = 0;  
   boolean transferToAllowed = true;
+  int sendPacketSize = 0;
   int writePacketSize = 0;
+  int mirrorQueuePackets = 0;
+  boolean transferCompression = false;
+  DurabilityMode durability = DurabilityMode.PAGECACHE;
   private boolean isConnected = false;
   
   public DataBlockScanner blockScanner = null;
   public Daemon blockScannerThread = null;
+  BlockCache blockCache = null;
   
   private static final Random R = new Random();
   
@@ -279,6 +293,12 @@ public class DataNode extends Configured
     this.transferToAllowed = conf.getBoolean("dfs.datanode.transferTo.allowed", 
                                              true);
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.mirrorQueuePackets = conf.getInt("dfs.datanode.mirror.queue.packets",
+                                          8);
+    this.transferCompression = conf.getBoolean(
+                                  PacketCompressor.COMPRESSION_KEY, false);
+    this.sendPacketSize = conf.getInt("dfs.datanode.send.packet.size", 
+                                      64*1024);
     /*String address = 
       NetUtils.getServerAddress(conf,
                                 "dfs.datanode.bindAddress", 
@@ -349,8 +369,15 @@ public class DataNode extends Configured
         new DataXceiverServer(ss, conf, this));
     this.threadGroup.setDaemon(true); // auto destroy when empty
 
+    this.durability = DurabilityMode.get(conf);
+    LOG.info("Durability mode is " + durability);
+
     this.blockReportInterval =
       conf.getLong("dfs.blockreport.intervalMsec", BLOCKREPORT_INTERVAL);
+    this.compressBlockReports = conf.getBoolean("dfs.blockreport.compress",
+                                                true);
+    this.fullBlockReportInterval = conf.getLong(
+        "dfs.blockreport.full.intervalMsec", 6 * 60 * 60 * 1000L);
     this.initialBlockReportDelay = conf.getLong("dfs.blockreport.initialDelay",
                                             BLOCKREPORT_INITIAL_DELAY)* 1000L; 
     if (this.initialBlockReportDelay >= blockReportInterval) {
@@ -375,6 +402,15 @@ public class DataNode extends Configured
     }
 
    myMetrics = new DataNodeMetrics(conf, dnRegistration.getStorageID());
+   myMetrics.durabilityMode.set(durability.ordinal());
+   transferScheduler = new TransferScheduler(this, conf);
+   blockReceivedNotifier = new BlockReceivedNotifier(this, conf);
+   peerMetrics = new PeerMetrics(conf);
+   blockCache = BlockCache.create(conf, myMetrics);
+   if (data instanceof FSDataset) {
+     ((FSDataset)data).registerVolumeMetrics(myMetrics);
+     myMetrics.volumeScanTime.set(((FSDataset)data).getVolumeScanTime());
+   }
     
     // set service-level authorization security policy
     if (conf.getBoolean(
@@ -591,7 +627,9 @@ public class DataNode extends Configured
     
     this.shouldRun = false;
     if (dataXceiverServer != null) {
-      ((DataXceiverServer) this.dataXceiverServer.getRunnable()).kill();
+      DataXceiverServer xceiverServer =
+        (DataXceiverServer) this.dataXceiverServer.getRunnable();
+      xceiverServer.kill();
       this.dataXceiverServer.interrupt();
 
       // wait for all data receiver threads to exit
@@ -599,8 +637,9 @@ public class DataNode extends Configured
         while (true) {
           this.threadGroup.interrupt();
           LOG.info("Waiting for threadgroup to exit, active threads is " +
-                   this.threadGroup.activeCount());
-          if (this.threadGroup.activeCount() == 0) {
+                   getXceiverCount());
+          if (this.threadGroup.activeCount() == 0 &&
+              xceiverServer.xceiverExecutor.isTerminated()) {
             break;
           }
           try {
@@ -615,10 +654,16 @@ public class DataNode extends Configured
       }
     }
     
+    if (blockReceivedNotifier != null) {
+      blockReceivedNotifier.shutdown();
+    }
     RPC.stopProxy(namenode); // stop the RPC threads
     
     if(upgradeManager != null)
       upgradeManager.shutdownUpgrade();
+    if (transferScheduler != null) {
+      transferScheduler.shutdown();
+    }
     if (blockScannerThread != null) { 
       blockScannerThread.interrupt();
       try {
@@ -679,9 +724,23 @@ public class DataNode extends Configured
     }
   }
     
+  /**
+   * Number of block transfers running or queued, so that the namenode
+   * does not hand out more while the queue drains.
+   */
+  int getXmitsInProgress() {
+    return xmitsInProgress.get() + (transferScheduler == null
+                                    ? 0 : transferScheduler.getQueueLength());
+  }
+
   /** Number of concurrent xceivers per node. */
   int getXceiverCount() {
-    return threadGroup == null ? 0 : threadGroup.activeCount();
+    if (threadGroup == null) {
+      return 0;
+    }
+    // pool threads waiting for a connection are not xceivers
+    return threadGroup.activeCount() + ((DataXceiverServer)
+        dataXceiverServer.getRunnable()).xceiverExecutor.getActiveCount();
   }
     
   /**
@@ -716,13 +775,17 @@ public class DataNode extends Configured
           // -- Total capacity
           // -- Bytes remaining
           //
+          // -- Peers that are slow to transfer blocks with
+          //
           lastHeartbeat = startTime;
+          updateSlowPeers();
           DatanodeCommand[] cmds = namenode.sendHeartbeat(dnRegistration,
                                                        data.getCapacity(),
                                                        data.getDfsUsed(),
                                                        data.getRemaining(),
-                                                       xmitsInProgress.get(),
-                                                       getXceiverCount());
+                                                       getXmitsInProgress(),
+                                                       getXceiverCount(),
+                                                       slowPeers);
           myMetrics.heartbeats.inc(now() - startTime);
           if (!isConnected) isConnected =  true;
           //LOG.info("Just sent heartbeat, with name " + localName);
@@ -730,39 +793,6 @@ public class DataNode extends Configured
             continue;
         }
             
-        // check if there are newly received blocks
-        Block [] blockArray=null;
-        String [] delHintArray=null;
-        synchronized(receivedBlockList) {
-          synchronized(delHints) {
-            int numBlocks = receivedBlockList.size();
-            if (numBlocks > 0) {
-              if(numBlocks!=delHints.size()) {
-                LOG.warn("Panic: receiveBlockList and delHints are not of the same length" );
-              }
-              //
-              // Send newly-received blockids to namenode
-              //
-              blockArray = receivedBlockList.toArray(new Block[numBlocks]);
-              delHintArray = delHints.toArray(new String[numBlocks]);
-            }
-          }
-        }
-        if (blockArray != null) {
-          if(delHintArray == null || delHintArray.length != blockArray.length ) {
-            LOG.warn("Panic: block array & delHintArray are not the same" );
-          }
-          namenode.blockReceived(dnRegistration, blockArray, delHintArray);
-          synchronized (receivedBlockList) {
-            synchronized (delHints) {
-              for(int i=0; i<blockArray.length; i++) {
-                receivedBlockList.remove(blockArray[i]);
-                delHints.remove(delHintArray[i]);
-              }
-            }
-          }
-        }
-
         // send block report
         if (startTime - lastBlockReport > blockReportInterval) {
           //
@@ -770,14 +800,17 @@ public class DataNode extends Configured
           // Get back a list of local block(s) that are obsolete
           // and can be safely GC'ed.
           //
-          long brStartTime = now();
-          Block[] bReport = data.getBlockReport();
-          DatanodeCommand cmd = namenode.blockReport(dnRegistration,
-                  BlockListAsLongs.convertToArrayLongs(bReport));
-          long brTime = now() - brStartTime;
-          myMetrics.blockReports.inc(brTime);
-          LOG.info("BlockReport of " + bReport.length +
-              " blocks got processed in " + brTime + " msecs");
+          // Full reports are only sent every fullBlockReportInterval, or
+          // when the namenode asks for one. In between, only the changes
+          // since the last report are sent.
+          //
+          DatanodeCommand cmd;
+          if (fullBlockReportRequested ||
+              startTime - lastFullBlockReport > fullBlockReportInterval) {
+            cmd = sendFullBlockReport(startTime);
+          } else {
+            cmd = sendBlockReportDelta();
+          }
           //
           // If we have sent the first block report, then wait a random
           // time before we start the periodic block reports.
@@ -808,17 +841,16 @@ public class DataNode extends Configured
             
         //
         // There is no work to do;  sleep until hearbeat timer elapses, 
-        // or work arrives, and then iterate again.
+        // and then iterate again. Received blocks are reported by the
+        // blockReceivedNotifier.
         //
         long waitTime = heartBeatInterval - (System.currentTimeMillis() - lastHeartbeat);
-        synchronized(receivedBlockList) {
-          if (waitTime > 0 && receivedBlockList.size() == 0) {
-            try {
-              receivedBlockList.wait(waitTime);
-            } catch (InterruptedException ie) {
-            }
+        if (waitTime > 0) {
+          try {
+            Thread.sleep(waitTime);
+          } catch (InterruptedException ie) {
           }
-        } // synchronized
+        }
       } catch(RemoteException re) {
         String reClass = re.getClassName();
         if (UnregisteredDatanodeException.class.getName().equals(reClass) ||
@@ -874,7 +906,8 @@ public class DataNode extends Configured
     switch(cmd.getAction()) {
     case DatanodeProtocol.DNA_TRANSFER:
       // Send a copy of a block to another datanode
-      transferBlocks(bcmd.getBlocks(), bcmd.getTargets());
+      transferBlocks(bcmd.getBlocks(), bcmd.getTargets(),
+                     bcmd.getPriorities());
       myMetrics.blocksReplicated.inc(bcmd.getBlocks().length);
       break;
     case DatanodeProtocol.DNA_INVALIDATE:
@@ -887,6 +920,9 @@ public class DataNode extends Configured
         if (blockScanner != null) {
           blockScanner.deleteBlocks(toDelete);
         }
+        if (blockCache != null) {
+          blockCache.invalidate(toDelete);
+        }
         data.invalidate(toDelete);
       } catch(IOException e) {
         checkDiskError();
@@ -915,6 +951,11 @@ public class DataNode extends Configured
     case DatanodeProtocol.DNA_RECOVERBLOCK:
       recoverBlocks(bcmd.getBlocks(), bcmd.getTargets());
       break;
+    case DatanodeProtocol.DNA_BLOCKREPORT:
+      // namenode could not apply a delta report
+      LOG.info("DatanodeCommand action: DNA_BLOCKREPORT");
+      scheduleBlockReport(0);
+      break;
     default:
       LOG.warn("Unknown DatanodeCommand action: " + cmd.getAction());
     }
@@ -945,7 +986,8 @@ public class DataNode extends Configured
   }
 
   private void transferBlock( Block block, 
-                              DatanodeInfo xferTargets[] 
+                              DatanodeInfo xferTargets[],
+                              int priority
                               ) throws IOException {
     if (!data.isValidBlock(block)) {
       // block does not exist or is under-construction
@@ -978,24 +1020,24 @@ public class DataNode extends Configured
           xfersBuilder.append(xferTargets[i].getName());
           xfersBuilder.append(" ");
         }
-        LOG.info(dnRegistration + " Starting thread to transfer block " + 
-                 block + " to " + xfersBuilder);                       
+        LOG.info(dnRegistration + " Scheduling transfer of block " + 
+                 block + " at priority " + priority + " to " + xfersBuilder);
       }
 
-	  LOG.debug("Number of threads in Xceiver : "+this.threadGroup.activeCount());
-      new Daemon(new DataTransfer(xferTargets, block, this)).start();
-      //this.dataXceiver = new Daemon(threadGroup, new DataTransfer(xferTargets, block, this));
-      //this.threadGroup.setDaemon(true); // auto destroy when empty
-      //this.dataXceiver.start();
+      if (!transferScheduler.schedule(block, xferTargets, priority)) {
+        LOG.info("Transfer of block " + block + " is already scheduled");
+      }
     }
   }
 
   private void transferBlocks( Block blocks[], 
-                               DatanodeInfo xferTargets[][] 
+                               DatanodeInfo xferTargets[][],
+                               int priorities[]
                                ) {
     for (int i = 0; i < blocks.length; i++) {
       try {
-        transferBlock(blocks[i], xferTargets[i]);
+        transferBlock(blocks[i], xferTargets[i], i < priorities.length
+                      ? priorities[i] : TransferScheduler.LOWEST_PRIORITY);
       } catch (IOException ie) {
         LOG.warn("Failed to transfer block " + blocks[i], ie);
       }
@@ -1011,12 +1053,33 @@ public class DataNode extends Configured
     if(block==null || delHint==null) {
       throw new IllegalArgumentException(block==null?"Block is null":"delHint is null");
     }
-    synchronized (receivedBlockList) {
-      synchronized (delHints) {
-        receivedBlockList.add(block);
-        delHints.add(delHint);
-        receivedBlockList.notifyAll();
-      }
+    blockReceivedNotifier.add(block, delHint);
+  }
+
+  /**
+   * Find the slow peers to report in the next heartbeat, logging the
+   * transfer statistics of the peers when they change.
+   */
+  private void updateSlowPeers() {
+    String[] slow = peerMetrics.getSlowPeers();
+    if (!Arrays.equals(slow, slowPeers)) {
+      LOG.info("Slow peers are now " + Arrays.toString(slow) +
+               ", transfer statistics:\n" + peerMetrics);
+    }
+    slowPeers = slow;
+    myMetrics.trackedPeers.set(peerMetrics.size());
+    myMetrics.slowPeers.set(slow.length);
+  }
+
+  /**
+   * Account for the bytes a packet compressor saved and release it.
+   * @param compressor the compressor, or null if none was used
+   */
+  void releasePacketCompressor(PacketCompressor compressor) {
+    if (compressor != null) {
+      myMetrics.compressionBytesSaved.inc(
+          compressor.getUncompressedBytes() - compressor.getWireBytes());
+      compressor.end();
     }
   }
 
@@ -1035,8 +1098,8 @@ public class DataNode extends Configured
      +-------------------------------------------------------------------------+
      | 8 byte Block ID | 8 byte genstamp | 8 byte start offset | 8 byte length |
      +-------------------------------------------------------------------------+
-     |   vInt length   |  <DFSClient id> |
-     +-----------------------------------+
+     |   vInt length   |  <DFSClient id> | 1 byte accepts compression |
+     +----------------------------------------------------------------+
      
      Client sends optional response only at the end of receiving data.
        
@@ -1083,7 +1146,7 @@ public class DataNode extends Configured
       +-----------------------------------------------------+
       | 8 byte offset in the block | 8 byte sequence number |
       +-----------------------------------------------------+
-      | 1 byte isLastPacketInBlock                          |
+      | 1 byte flags: 1 isLastPacketInBlock, 2 compressed   |
       +-----------------------------------------------------+
       | 4 byte Length of actual data                        |
       +-----------------------------------------------------+
@@ -1092,6 +1155,13 @@ public class DataNode extends Configured
       | actual data ......                                  |
       +-----------------------------------------------------+
       
+      When the compressed flag is set, the checksum data and the actual
+      data are replaced by their compressed form, see PacketCompressor.
+      A datanode only compresses the packets it sends to a client that
+      accepts compression, or to another datanode, when
+      dfs.transfer.compression is set. The packets it receives may always
+      be compressed.
+      
       x = (length of data + BYTE_PER_CHECKSUM - 1)/BYTES_PER_CHECKSUM *
           CHECKSUM_SIZE
           
@@ -1107,6 +1177,9 @@ public class DataNode extends Configured
                                       8 + /* offset in block */
                                       8 + /* seqno */
                                       1   /* isLastPacketInBlock */);
+
+  /** Largest packet payload accepted, before or after decompression */
+  public static final int MAX_PACKET_PAYLOAD = 100*1024*1024;
   
   /**
    * Used for transferring a block of data.  This class
@@ -1116,15 +1189,26 @@ public class DataNode extends Configured
     DatanodeInfo targets[];
     Block b;
     DataNode datanode;
+    BlockTransferThrottler throttler;
 
     /**
      * Connect to the first item in the target list.  Pass along the 
      * entire target list, the block, and the data.
      */
     public DataTransfer(DatanodeInfo targets[], Block b, DataNode datanode) throws IOException {
+      this(targets, b, datanode, null);
+    }
+
+    /**
+     * @param throttler if not null, limits the rate at which the block
+     *        is sent
+     */
+    DataTransfer(DatanodeInfo targets[], Block b, DataNode datanode,
+                 BlockTransferThrottler throttler) throws IOException {
       this.targets = targets;
       this.b = b;
       this.datanode = datanode;
+      this.throttler = throttler;
     }
 
     /**
@@ -1136,6 +1220,7 @@ public class DataNode extends Configured
       JxtaSocket jsock = null;
       DataOutputStream out = null;
       BlockSender blockSender = null;
+      PacketCompressor compressor = null;
       
       try {
         JxtaSocketAddress curTarget =  dnpeer.getInfoSocketAddress(targets[0].getPeerId());
@@ -1160,6 +1245,10 @@ public class DataNode extends Configured
         
         blockSender = new BlockSender(b, 0, b.getNumBytes(), false, false, false, 
             datanode);
+        if (transferCompression) {
+          compressor = new PacketCompressor();
+          blockSender.setCompressor(compressor);
+        }
         DatanodeInfo srcNode = new DatanodeInfo(dnRegistration);
 
         //
@@ -1180,7 +1269,11 @@ public class DataNode extends Configured
           targets[i].write(out);
         }
         // send data & checksum
-        blockSender.sendBlock(out, baseStream, null);
+        long start = now();
+        long sent = blockSender.sendBlock(out, baseStream, throttler);
+        // throttled, so not comparable with the pipeline writes
+        peerMetrics.record(targets[0].getPeerId(), PeerMetrics.REPLICATE,
+                           sent, now() - start);
 
         // no response necessary
         LOG.info(dnRegistration + ":Transmitted block " + b + " to " + curTarget.getPeerAdvertisement().getPeerID().toString());
@@ -1194,6 +1287,7 @@ public class DataNode extends Configured
               + " got " + ie.getMessage());
       } finally {
         xmitsInProgress.getAndDecrement();
+        releasePacketCompressor(compressor);
         IOUtils.closeStream(blockSender);
         IOUtils.closeStream(out);
         //IOUtils.closeSocket(jsock);
@@ -1213,6 +1307,7 @@ public class DataNode extends Configured
 
     // start dataXceiveServer
     dataXceiverServer.start();
+    blockReceivedNotifier.start();
         
     while (shouldRun) {
       try {
@@ -1378,10 +1473,67 @@ public class DataNode extends Configured
                                           StartupOption.REGULAR.toString()));
   }
 
+  /**
+   * Send the list of all the blocks stored.
+   */
+  private DatanodeCommand sendFullBlockReport(long startTime)
+      throws IOException {
+    long brStartTime = now();
+    // changes made from now on go in the next delta report
+    data.getBlockReportDelta().clear();
+    Block[] bReport = data.getBlockReport();
+    BlockListAsLongs blocks =
+      new BlockListAsLongs(BlockListAsLongs.convertToArrayLongs(bReport));
+    blocks.setCompress(compressBlockReports);
+    DatanodeCommand cmd = namenode.blockReport(dnRegistration, blocks);
+    blockReportSeq = 0;
+    fullBlockReportRequested = false;
+    lastFullBlockReport = startTime;
+    long brTime = now() - brStartTime;
+    myMetrics.blockReports.inc(brTime);
+    LOG.info("BlockReport of " + bReport.length +
+        " blocks got processed in " + brTime + " msecs");
+    return cmd;
+  }
+
+  /**
+   * Send the blocks added, changed or removed since the last report.
+   * The changes are put back if they could not be sent, and sent again
+   * with the same sequence number.
+   */
+  private DatanodeCommand sendBlockReportDelta() throws IOException {
+    BlockReportDelta delta = data.getBlockReportDelta().drain();
+    if (delta.isEmpty()) {
+      return null;
+    }
+    long brStartTime = now();
+    long seq = blockReportSeq + 1;
+    BlockListAsLongs added = delta.getAddedAsLongs();
+    added.setCompress(compressBlockReports);
+    DatanodeCommand cmd;
+    try {
+      cmd = namenode.blockReportDelta(dnRegistration, seq,
+          added, delta.getRemovedAsLongs());
+    } catch (IOException e) {
+      data.getBlockReportDelta().restore(delta);
+      throw e;
+    }
+    if (cmd == null || cmd.getAction() != DatanodeProtocol.DNA_BLOCKREPORT) {
+      blockReportSeq = seq;
+    }
+    long brTime = now() - brStartTime;
+    myMetrics.blockReportDeltas.inc(brTime);
+    LOG.info("BlockReport delta " + seq + " of " +
+        delta.getNumAdded() + " added and " + delta.getNumRemoved() +
+        " removed blocks got processed in " + brTime + " msecs");
+    return cmd;
+  }
+
   /**
    * This methods  arranges for the data node to send the block report at the next heartbeat.
    */
   public void scheduleBlockReport(long delay) {
+    fullBlockReportRequested = true;
     if (delay > 0) { // send BR after random delay
       lastBlockReport = System.currentTimeMillis()
                             - ( blockReportInterval - R.nextInt((int)(delay)));
@@ -1477,6 +1629,9 @@ public class DataNode extends Configured
     LOG.info("oldblock=" + oldblock + "(length=" + oldblock.getNumBytes()
         + "), newblock=" + newblock + "(length=" + newblock.getNumBytes()
         + "), datanode=" + dnRegistration.getPeerId());
+    if (blockCache != null) {
+      blockCache.invalidate(oldblock);
+    }
     data.updateBlock(oldblock, newblock);
     if (finalize) {
       data.finalizeBlock(newblock);
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.Semaphore;
 
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
@@ -36,6 +37,7 @@ import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.hdfs.protocol.PacketCompressor;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants;
 import org.apache.jxtadoop.hdfs.server.datanode.FSDatasetInterface.MetaDataInputStream;
 import org.apache.jxtadoop.io.IOUtils;
@@ -111,16 +113,18 @@ class DataXceiver implements Runnable, FSConstants {
       
       LOG.debug("op type read : "+op);
       
-      // Make sure the xciver count is not exceeded
-      int curXceiverCount = datanode.getXceiverCount();
-      if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
-        throw new IOException("xceiverCount " + curXceiverCount
-                              + " exceeds the limit of concurrent xcievers "
-                              + dataXceiverServer.maxXceiverCount);
+      // Make sure the limit for this kind of operation is not exceeded
+      Semaphore permits = dataXceiverServer.getPermits(op);
+      if (permits != null && !permits.tryAcquire()) {
+        rejectOp(op);
+        IOUtils.closeStream(in);
+        IOUtils.closeSocket(s);
+        return;
       }
       
       long startTime = DataNode.now();
      
+      try {
       switch ( op ) {
 	      case DataTransferProtocol.OP_READ_BLOCK:
 	    	 LOG.debug("Received a OP_READ_BLOCK op");
@@ -165,6 +169,11 @@ class DataXceiver implements Runnable, FSConstants {
 	    	  LOG.debug("Unknown op code");
 	        throw new IOException("Unknown opcode " + op + " in data stream");
       }
+      } finally {
+        if (permits != null) {
+          permits.release();
+        }
+      }
       
 	  IOUtils.closeStream(in);
       IOUtils.closeSocket(s);
@@ -186,6 +195,23 @@ class DataXceiver implements Runnable, FSConstants {
     }
   }
 
+  /**
+   * Refuse an operation because too many of its kind are running.
+   * Operations whose reply starts with a status get an error status,
+   * the others only see the connection being closed.
+   */
+  private void rejectOp(byte op) throws IOException {
+    datanode.myMetrics.xceiversRejected.inc();
+    LOG.warn(datanode.dnRegistration + ":DataXceiver rejecting op " + op
+             + " from " + remoteAddress
+             + ", too many operations of this kind are running");
+    if (op != DataTransferProtocol.OP_WRITE_BLOCK) {
+      DataOutputStream out = new DataOutputStream(s.getOutputStream());
+      out.writeShort(DataTransferProtocol.OP_STATUS_ERROR);
+      out.flush();
+    }
+  }
+
   /**
    * Read a block from the disk.
    * @param in The stream to read from
@@ -202,6 +228,7 @@ class DataXceiver implements Runnable, FSConstants {
     long startOffset = in.readLong();
     long length = in.readLong();
     String clientName = Text.readString(in);
+    boolean acceptsCompression = in.readBoolean();
     // send the block
     // OutputStream baseStream = NetUtils.getOutputStream(s, datanode.socketWriteTimeout);
     OutputStream baseStream = s.getOutputStream();
@@ -210,6 +237,7 @@ class DataXceiver implements Runnable, FSConstants {
     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(baseStream));
     
     BlockSender blockSender = null;
+    PacketCompressor compressor = null;
     final String clientTraceFmt =
       clientName.length() > 0 && ClientTraceLog.isInfoEnabled()
         ? String.format(DN_CLIENTTRACE_FORMAT, localAddress, remoteAddress,
@@ -217,6 +245,10 @@ class DataXceiver implements Runnable, FSConstants {
             datanode.dnRegistration.getStorageID(), block)
         : datanode.dnRegistration + " Served block " + block + " to " +
             s.getInetAddress();
+    boolean clientOp = clientName.length() > 0;
+    if (clientOp) {
+      datanode.clientOpsInProgress.incrementAndGet();
+    }
     try {
       try {
         blockSender = new BlockSender(block, startOffset, length,
@@ -226,8 +258,16 @@ class DataXceiver implements Runnable, FSConstants {
         throw e;
       }
 
+      if (acceptsCompression && datanode.transferCompression) {
+        compressor = new PacketCompressor();
+        blockSender.setCompressor(compressor);
+      }
+
       out.writeShort(DataTransferProtocol.OP_STATUS_SUCCESS); // send op status
+      long start = DataNode.now();
       long read = blockSender.sendBlock(out, baseStream, null); // send data
+      datanode.peerMetrics.record(remoteAddress, PeerMetrics.READ, read,
+                                  DataNode.now() - start);
 
       if (blockSender.isBlockReadFully()) {
         // See if client verification succeeded. 
@@ -256,6 +296,10 @@ class DataXceiver implements Runnable, FSConstants {
       throw ioe;
     } finally {
     	LOG.debug("Finalizing : readBlock()");
+      if (clientOp) {
+        datanode.clientOpsInProgress.decrementAndGet();
+      }
+      datanode.releasePacketCompressor(compressor);
     	IOUtils.closeStream(out);
       IOUtils.closeStream(blockSender);
     }
@@ -310,7 +354,11 @@ class DataXceiver implements Runnable, FSConstants {
     BlockReceiver blockReceiver = null; // responsible for data handling
     String mirrorNode = null;           // the name:port of next target
     String firstBadLink = "";           // first datanode that failed in connection setup
+    boolean clientOp = client.length() > 0;
     
+    if (clientOp) {
+      datanode.clientOpsInProgress.incrementAndGet();
+    }
     try {
       // open a block receiver and check if the block does not exist
       /*blockReceiver = new BlockReceiver(block, in, 
@@ -437,8 +485,17 @@ class DataXceiver implements Runnable, FSConstants {
 
       // receive the block and mirror to the next target
       String mirrorAddr = (mirrorSock == null) ? null : mirrorNode;
+      long start = DataNode.now();
       blockReceiver.receiveBlock(mirrorOut, mirrorIn, replyOut,
                                  mirrorAddr, null, targets.length);
+      datanode.peerMetrics.record(remoteAddress, PeerMetrics.WRITE,
+                                  blockReceiver.getBytesReceived(),
+                                  DataNode.now() - start);
+      if (mirrorAddr != null) {
+        datanode.peerMetrics.record(mirrorAddr, PeerMetrics.MIRROR,
+                                    blockReceiver.getMirrorBytes(),
+                                    blockReceiver.getMirrorMillis());
+      }
 
       // if this write is for a replication request (and not
       // from a client), then confirm block. For client-writes,
@@ -464,6 +521,9 @@ class DataXceiver implements Runnable, FSConstants {
       // close all opened streams
       
       LOG.debug("Finalizing : writeBlock()");
+      if (clientOp) {
+        datanode.clientOpsInProgress.decrementAndGet();
+      }
       IOUtils.closeStream(mirrorOut);
       IOUtils.closeStream(mirrorIn);
       IOUtils.closeStream(replyOut);
@@ -25,6 +25,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.jxta.socket.JxtaServerSocket;
 import net.jxta.socket.JxtaSocket;
@@ -32,6 +38,7 @@ import net.jxta.socket.JxtaSocket;
 import org.apache.commons.logging.Log;
 import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
+import org.apache.jxtadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.server.balancer.Balancer;
 import org.apache.jxtadoop.io.IOUtils;
@@ -62,6 +69,22 @@ class DataXceiverServer implements Runnable, FSConstants {
   static final int MAX_XCEIVER_COUNT = 256;
   int maxXceiverCount = MAX_XCEIVER_COUNT;
 
+  /**
+   * Number of accepted connections allowed to wait for an xceiver
+   * thread when all of them are busy. Connections beyond it are
+   * closed at once so that clients can fail over to another datanode.
+   */
+  static final int XCEIVER_QUEUE_SIZE = 16;
+
+  /** Runs the xceivers on at most maxXceiverCount threads */
+  final ThreadPoolExecutor xceiverExecutor;
+
+  /** Concurrency limits per kind of operation */
+  final Semaphore readPermits;
+  final Semaphore writePermits;
+  final Semaphore replicationPermits;
+  final Semaphore checksumPermits;
+
   /** A manager to make sure that cluster balancing does not
    * take too much resources.
    * 
@@ -121,6 +144,31 @@ class DataXceiverServer implements Runnable, FSConstants {
     
     this.maxXceiverCount = conf.getInt("dfs.datanode.max.xcievers",
         MAX_XCEIVER_COUNT);
+
+    this.xceiverExecutor = new ThreadPoolExecutor(maxXceiverCount,
+        maxXceiverCount, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, conf.getInt(
+            "dfs.datanode.xceiver.queue.size", XCEIVER_QUEUE_SIZE))),
+        new ThreadFactory() {
+          // a group of their own, so that idle pool threads are not
+          // counted as xceivers by the datanode's thread group
+          private final ThreadGroup group = new ThreadGroup("dataXceiver");
+          public Thread newThread(Runnable r) {
+            return new Daemon(group, r);
+          }
+        });
+    this.xceiverExecutor.allowCoreThreadTimeOut(true);
+
+    this.readPermits = new Semaphore(conf.getInt(
+        "dfs.datanode.xceiver.max.reads", maxXceiverCount));
+    this.writePermits = new Semaphore(conf.getInt(
+        "dfs.datanode.xceiver.max.writes", maxXceiverCount));
+    this.replicationPermits = new Semaphore(conf.getInt(
+        "dfs.datanode.xceiver.max.replications", 
+        Math.max(1, maxXceiverCount / 4)));
+    this.checksumPermits = new Semaphore(conf.getInt(
+        "dfs.datanode.xceiver.max.checksums", 
+        Math.max(1, maxXceiverCount / 4)));
     
     this.estimateBlockSize = conf.getLong("dfs.block.size", P2PConstants.DEFAULT_BLOCK_SIZE);
     
@@ -143,8 +191,7 @@ class DataXceiverServer implements Runnable, FSConstants {
         //s.setReceiveBufferSize(P2PConstants.JXTA_SOCKET_RECVBUFFER_SIZE);
         
         LOG.debug("New incoming info connection");
-        new Daemon(datanode.threadGroup, 
-            new DataXceiver(s, datanode, this)).start();
+        submit(new DataXceiver(s, datanode, this), s);
       } catch (SocketTimeoutException ignored) {
     	  //ignored.printStackTrace();
     	  LOG.debug("Timeout while receiving data on DataXceiverServer");
@@ -171,9 +218,60 @@ class DataXceiverServer implements Runnable, FSConstants {
     ss = null;
   }
   
+  /**
+   * Hand an accepted connection over to the xceiver threads, or close
+   * it right away if they are all busy and the queue is full.
+   */
+  private void submit(final DataXceiver xceiver, JxtaSocket s) {
+    final long queuedTime = DataNode.now();
+    try {
+      xceiverExecutor.execute(new Runnable() {
+        public void run() {
+          datanode.myMetrics.xceiverQueueWaitTime.inc(
+              DataNode.now() - queuedTime);
+          datanode.myMetrics.xceiverQueueDepth.set(
+              xceiverExecutor.getQueue().size());
+          xceiver.run();
+        }
+      });
+      datanode.myMetrics.xceiverQueueDepth.set(
+          xceiverExecutor.getQueue().size());
+    } catch (RejectedExecutionException e) {
+      datanode.myMetrics.xceiversRejected.inc();
+      LOG.warn(datanode.dnRegistration + ":DataXceiveServer: rejecting "
+               + "connection, all " + maxXceiverCount + " xceivers are busy "
+               + "and " + xceiverExecutor.getQueue().size()
+               + " connections are queued");
+      IOUtils.closeSocket(s);
+      childSockets.remove(s);
+    }
+  }
+
+  /**
+   * Get the concurrency limit that applies to an operation.
+   * @return the permits of the operation, null for an unknown operation
+   */
+  Semaphore getPermits(byte op) {
+    switch (op) {
+    case DataTransferProtocol.OP_READ_BLOCK:
+    case DataTransferProtocol.OP_READ_METADATA:
+      return readPermits;
+    case DataTransferProtocol.OP_WRITE_BLOCK:
+      return writePermits;
+    case DataTransferProtocol.OP_REPLACE_BLOCK:
+    case DataTransferProtocol.OP_COPY_BLOCK:
+      return replicationPermits;
+    case DataTransferProtocol.OP_BLOCK_CHECKSUM:
+      return checksumPermits;
+    default:
+      return null;
+    }
+  }
+
   void kill() {
     assert datanode.shouldRun == false :
       "shoudRun should be set to false before killing";
+    xceiverExecutor.shutdownNow();
     try {
       if (ss != null) this.ss.close();
     } catch (IOException ie) {
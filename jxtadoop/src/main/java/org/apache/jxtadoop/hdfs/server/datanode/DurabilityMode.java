@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+
+import org.apache.jxtadoop.conf.Configuration;
+
+/**
+ * When the data of a block being written is forced to disk, trading write
+ * latency against durability. Set with <code>dfs.datanode.durability</code>.
+ */
+enum DurabilityMode {
+  /**
+   * A packet is acked once it is in the page cache. The operating system
+   * decides when it reaches the disk.
+   */
+  PAGECACHE,
+  /**
+   * As PAGECACHE, but the block and meta files are forced to disk before
+   * the block is finalized, and their renames before its last packet is
+   * acked, where the platform can force a directory.
+   */
+  FINALIZE,
+  /**
+   * Every packet is forced to disk before it is acked. The forces of the
+   * writers of a volume are batched by its {@link GroupSyncer}.
+   */
+  GROUP;
+
+  /** @return the mode set in the configuration, PAGECACHE by default */
+  static DurabilityMode get(Configuration conf) throws IOException {
+    String name = conf.get("dfs.datanode.durability", "pagecache");
+    try {
+      return valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unknown dfs.datanode.durability " + name +
+                            ", expected pagecache, finalize or group");
+    }
+  }
+}
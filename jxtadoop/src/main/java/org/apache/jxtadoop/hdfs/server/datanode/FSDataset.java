@@ -18,7 +18,18 @@
 package org.apache.jxtadoop.hdfs.server.datanode;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
@@ -30,11 +41,19 @@ import org.apache.jxtadoop.fs.DiskUsage;
 import org.apache.jxtadoop.fs.FileUtil;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.hdfs.server.common.StorageInfo;
 import org.apache.jxtadoop.metrics.util.MBeanUtil;
+import org.apache.jxtadoop.metrics.util.MetricsIntValue;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingRate;
+import org.apache.jxtadoop.util.Daemon;
+import org.apache.jxtadoop.util.ReflectionUtils;
 import org.apache.jxtadoop.util.DataChecksum;
 import org.apache.jxtadoop.util.DiskChecker;
 import org.apache.jxtadoop.util.DiskChecker.DiskErrorException;
-import org.apache.jxtadoop.util.DiskChecker.DiskOutOfSpaceException;
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.jxtadoop.io.WritableUtils;
 import org.apache.jxtadoop.hdfs.server.datanode.metrics.FSDatasetMBean;
 import org.apache.jxtadoop.hdfs.server.protocol.InterDatanodeProtocol;
 
@@ -55,6 +74,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     int numBlocks = 0;
     FSDir children[];
     int lastChildIdx = 0;
+
+    /** A directory loaded by a {@link DirScanner} */
+    FSDir(File dir, int numBlocks, FSDir[] children) {
+      this.dir = dir;
+      this.numBlocks = numBlocks;
+      this.children = children;
+    }
+
     /**
      */
     public FSDir(File dir) 
@@ -150,31 +177,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return children[ lastChildIdx ].addBlock(b, src, true, false); 
     }
 
-    /** Find the metadata file for the specified block file.
-     * Return the generation stamp from the name of the metafile.
-     */
-    long getGenerationStampFromFile(File[] listdir, File blockFile) {
-      String blockName = blockFile.getName();
-      for (int j = 0; j < listdir.length; j++) {
-        String path = listdir[j].getName();
-        if (!path.startsWith(blockName)) {
-          continue;
-        }
-        String[] vals = path.split("_");
-        if (vals.length != 3) {     // blk, blkid, genstamp.meta
-          continue;
-        }
-        String[] str = vals[2].split("\\.");
-        if (str.length != 2) {
-          continue;
-        }
-        return Long.parseLong(str[0]);
-      }
-      DataNode.LOG.warn("Block " + blockFile + 
-                        " does not have a metafile!");
-      return Block.GRANDFATHER_GENERATION_STAMP;
-    }
-
     /**
      * Populate the given blockSet with any child blocks
      * found at this node.
@@ -187,30 +189,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
 
       File blockFiles[] = dir.listFiles();
+      Map<String, Long> genStamps = getGenerationStamps(blockFiles);
       for (int i = 0; i < blockFiles.length; i++) {
         if (Block.isBlockFilename(blockFiles[i])) {
-          long genStamp = getGenerationStampFromFile(blockFiles, blockFiles[i]);
+          long genStamp = getGenerationStamp(genStamps, blockFiles[i]);
           blockSet.add(new Block(blockFiles[i], blockFiles[i].length(), genStamp));
         }
       }
     }
-
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap, FSVolume volume) {
-      if (children != null) {
-        for (int i = 0; i < children.length; i++) {
-          children[i].getVolumeMap(volumeMap, volume);
-        }
-      }
-
-      File blockFiles[] = dir.listFiles();
-      for (int i = 0; i < blockFiles.length; i++) {
-        if (Block.isBlockFilename(blockFiles[i])) {
-          long genStamp = getGenerationStampFromFile(blockFiles, blockFiles[i]);
-          volumeMap.put(new Block(blockFiles[i], blockFiles[i].length(), genStamp), 
-                        new DatanodeBlockInfo(volume, blockFiles[i]));
-        }
-      }
-    }
         
     /**
      * check if a data diretory is healthy
@@ -288,6 +274,108 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
   }
 
+  /**
+   * Map the names of the block files in a directory listing to the
+   * generation stamps found in the names of their meta files.
+   */
+  static Map<String, Long> getGenerationStamps(File[] listdir) {
+    Map<String, Long> genStamps = new HashMap<String, Long>();
+    for (int j = 0; j < listdir.length; j++) {
+      String name = listdir[j].getName();
+      // blk_<id>_<genstamp>.meta
+      if (!name.startsWith("blk_") || !name.endsWith(METADATA_EXTENSION)) {
+        continue;
+      }
+      int sep = name.lastIndexOf('_');
+      if (sep <= "blk_".length()) {
+        continue;
+      }
+      try {
+        genStamps.put(name.substring(0, sep), Long.parseLong(
+            name.substring(sep + 1, name.length() - METADATA_EXTENSION.length())));
+      } catch (NumberFormatException ignored) {
+        // not a meta file, e.g. a meta file being renamed
+      }
+    }
+    return genStamps;
+  }
+
+  /** Find the generation stamp of a block file in a directory listing */
+  static long getGenerationStamp(Map<String, Long> genStamps, File blockFile) {
+    Long genStamp = genStamps.get(blockFile.getName());
+    if (genStamp == null) {
+      DataNode.LOG.warn("Block " + blockFile + 
+                        " does not have a metafile!");
+      return Block.GRANDFATHER_GENERATION_STAMP;
+    }
+    return genStamp;
+  }
+
+  /**
+   * Loads the directory tree of a volume at startup, adding its blocks to
+   * the volume map. Each directory is listed once and its subdirectories
+   * are loaded by forked tasks.
+   */
+  class DirScanner extends RecursiveTask<FSDir> {
+    private static final long serialVersionUID = 1L;
+    private final File dir;
+    private final FSVolume volume;
+    private final Map<Block, DatanodeBlockInfo> volumeMap;
+
+    DirScanner(File dir, FSVolume volume,
+               Map<Block, DatanodeBlockInfo> volumeMap) {
+      this.dir = dir;
+      this.volume = volume;
+      this.volumeMap = volumeMap;
+    }
+
+    FSDir scan() throws IOException {
+      return scan(null);
+    }
+
+    /** Run the scan in a pool, or in the current one if null */
+    FSDir scan(ForkJoinPool pool) throws IOException {
+      try {
+        return (pool == null) ? invoke() : pool.invoke(this);
+      } catch (RuntimeException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException)e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    protected FSDir compute() {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        throw new RuntimeException(
+            new IOException("Could not list directory " + dir));
+      }
+      Map<String, Long> genStamps = getGenerationStamps(files);
+      List<DirScanner> subdirs = new ArrayList<DirScanner>();
+      int numBlocks = 0;
+      for (File f : files) {
+        if (f.isDirectory()) {
+          DirScanner task = new DirScanner(f, volume, volumeMap);
+          task.fork();
+          subdirs.add(task);
+        } else if (Block.isBlockFilename(f)) {
+          numBlocks++;
+          volumeMap.put(new Block(f, f.length(), getGenerationStamp(genStamps, f)),
+                        new DatanodeBlockInfo(volume, f));
+        }
+      }
+      FSDir[] children = null;
+      if (!subdirs.isEmpty()) {
+        children = new FSDir[subdirs.size()];
+        for (int i = 0; i < children.length; i++) {
+          children[i] = subdirs.get(i).join();
+        }
+      }
+      return new FSDir(dir, numBlocks, children);
+    }
+  }
+
   class FSVolume {
     private FSDir dataDir;
     private File tmpDir;
@@ -298,15 +386,50 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private DiskUsage dfsUsage;
     private long reserved;
 
+    // replica map snapshot, valid only for the storage it was saved from
+    private final File snapshotFile;
+    private final StorageInfo storageInfo;
+    private volatile boolean unverified = false; // loaded from a snapshot
+
+    // write statistics, used to choose volumes
+    private final AtomicInteger inFlightWrites = new AtomicInteger();
+    private volatile double writeLatency = 0; // moving average, ns per KB
+
+    // set once the datanode metrics exist
+    private MetricsIntValue inFlightWritesMetric;
+    private MetricsTimeVaryingLong bytesWrittenMetric;
+    private MetricsTimeVaryingRate writeLatencyMetric;
+    private MetricsTimeVaryingInt blocksChosenMetric;
+
+    // batches the forces of the writers of this volume
+    private final GroupSyncer syncer;
+
     
     FSVolume(File currentDir, Configuration conf) throws IOException {
+      this(currentDir, conf, null, new StorageInfo());
+    }
+
+    /**
+     * @param volumeMap if not null, the blocks found in the volume are
+     *        added to it, scanning the subdirectories in parallel when
+     *        called from a fork/join pool
+     * @param storageInfo the version of the storage, a replica snapshot
+     *        saved from another one is ignored
+     */
+    FSVolume(File currentDir, Configuration conf,
+             Map<Block, DatanodeBlockInfo> volumeMap,
+             StorageInfo storageInfo) throws IOException {
       this.reserved = conf.getLong("dfs.datanode.du.reserved", 0);
       boolean supportAppends = conf.getBoolean("dfs.support.append", false);
       File parent = currentDir.getParentFile();
+      this.snapshotFile = new File(currentDir, REPLICA_SNAPSHOT_FILE);
+      this.storageInfo = new StorageInfo(storageInfo);
+      this.syncer = new GroupSyncer(parent.toString());
+      int recovered = 0;
 
       this.detachDir = new File(parent, "detach");
       if (detachDir.exists()) {
-        recoverDetachedBlocks(currentDir, detachDir);
+        recovered += recoverDetachedBlocks(currentDir, detachDir);
       }
 
       // Files that were being written when the datanode was last shutdown
@@ -317,12 +440,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       this.tmpDir = new File(parent, "tmp");
       if (tmpDir.exists()) {
         if (supportAppends) {
-          recoverDetachedBlocks(currentDir, tmpDir);
+          recovered += recoverDetachedBlocks(currentDir, tmpDir);
         } else {
           FileUtil.fullyDelete(tmpDir);
         }
       }
-      this.dataDir = new FSDir(currentDir);
+      if (volumeMap != null && currentDir.isDirectory() &&
+          recovered == 0 && conf.getBoolean("dfs.datanode.replica.snapshot", true) &&
+          (this.dataDir = loadSnapshot(currentDir, volumeMap)) != null) {
+        this.unverified = true;
+      } else if (volumeMap != null && currentDir.isDirectory()) {
+        this.dataDir = new DirScanner(currentDir, this, volumeMap).scan();
+      } else {
+        this.dataDir = new FSDir(currentDir);
+      }
       if (!tmpDir.mkdirs()) {
         if (!tmpDir.isDirectory()) {
           throw new IOException("Mkdirs failed to create " + tmpDir.toString());
@@ -336,12 +467,78 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       //this.usage = new DF(parent, conf);
       this.usage = new DiskFree(parent, conf);
       //this.dfsUsage = new DU(parent, conf);
-      this.dfsUsage = new DiskUsage(parent, conf);
+      this.dfsUsage = new DiskUsage(currentDir, conf, BLOCK_FILES);
       this.dfsUsage.start();
     }
 
-    void decDfsUsed(long value) {
-      dfsUsage.decDfsUsed(value);
+    /**
+     * @param dir the directory of the finalized files that shrank or
+     *        were removed
+     */
+    void decDfsUsed(File dir, long value) {
+      dfsUsage.decDfsUsed(dir, value);
+    }
+
+    /** Publish the write statistics of this volume under a prefix */
+    void registerMetrics(String prefix, DataNodeMetrics metrics) {
+      inFlightWritesMetric = new MetricsIntValue(prefix + "_inflight_writes",
+                                                 metrics.registry);
+      bytesWrittenMetric = new MetricsTimeVaryingLong(prefix + "_bytes_written",
+                                                      metrics.registry);
+      writeLatencyMetric = new MetricsTimeVaryingRate(prefix + "_write_latency_us",
+                                                      metrics.registry);
+      blocksChosenMetric = new MetricsTimeVaryingInt(prefix + "_blocks_chosen",
+                                                     metrics.registry);
+      syncer.registerMetrics(prefix, metrics);
+    }
+
+    /** A block file was opened for writing on this volume */
+    void startWrite() {
+      int n = inFlightWrites.incrementAndGet();
+      if (inFlightWritesMetric != null) {
+        inFlightWritesMetric.set(n);
+      }
+    }
+
+    /** A block file of this volume was closed */
+    void endWrite() {
+      int n = inFlightWrites.decrementAndGet();
+      if (inFlightWritesMetric != null) {
+        inFlightWritesMetric.set(n);
+      }
+    }
+
+    /** Account for a write of len bytes to a block file */
+    void recordWrite(int len, long nanos) {
+      if (len > 0) {
+        double sample = nanos * 1024.0 / len;
+        double avg = writeLatency;
+        writeLatency = (avg == 0) ? sample : 0.9 * avg + 0.1 * sample;
+      }
+      if (bytesWrittenMetric != null) {
+        bytesWrittenMetric.inc(len);
+        writeLatencyMetric.inc(nanos / 1000);
+      }
+    }
+
+    /** This volume was chosen for a new block */
+    void chosen() {
+      if (blocksChosenMetric != null) {
+        blocksChosenMetric.inc();
+      }
+    }
+
+    /** @return the number of block files being written */
+    int getInFlightWrites() {
+      return inFlightWrites.get();
+    }
+
+    /**
+     * @return the moving average of the time taken by recent writes,
+     *         in nanoseconds per KB, or 0 if nothing was written yet
+     */
+    double getWriteLatency() {
+      return writeLatency;
     }
     
     long getDfsUsed() throws IOException {
@@ -421,9 +618,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
       
     File addBlock(Block b, File f) throws IOException {
-      File blockFile = dataDir.addBlock(b, f);
+      File blockFile;
+      synchronized (dataDir) {
+        blockFile = dataDir.addBlock(b, f);
+      }
       File metaFile = getMetaFile( blockFile , b);
-      dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
+      dfsUsage.incDfsUsed(blockFile.getParentFile(),
+                          b.getNumBytes()+metaFile.length());
       return blockFile;
     }
       
@@ -436,12 +637,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       dataDir.getBlockInfo(blockSet);
     }
       
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
-      dataDir.getVolumeMap(volumeMap, this);
-    }
-      
     void clearPath(File f) {
-      dataDir.clearPath(f);
+      synchronized (dataDir) {
+        dataDir.clearPath(f);
+      }
     }
       
     public String toString() {
@@ -453,11 +652,12 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
      * does not exist in the original directory, then it is moved to the
      * original directory.
      */
-    private void recoverDetachedBlocks(File dataDir, File dir) 
+    private int recoverDetachedBlocks(File dataDir, File dir) 
                                            throws IOException {
+      int recovered = 0;
       File contents[] = dir.listFiles();
       if (contents == null) {
-        return;
+        return recovered;
       }
       for (int i = 0; i < contents.length; i++) {
         if (!contents[i].isFile()) {
@@ -475,6 +675,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
             throw new IOException("Unable to recover detached file " +
                                   contents[i]);
           }
+          recovered++;
           continue;
         }
         if (!contents[i].delete()) {
@@ -482,27 +683,183 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                   contents[i]);
         }
       }
+      return recovered;
+    }
+
+    /**
+     * Save the finalized replicas of this volume, along with its
+     * directory tree, to the snapshot file. The file is replaced
+     * atomically and ends with a CRC32 of its content.
+     */
+    void saveSnapshot(Map<Block, DatanodeBlockInfo> volumeMap)
+        throws IOException {
+      Map<File, List<Block>> blocksByDir = new HashMap<File, List<Block>>();
+      for (Map.Entry<Block, DatanodeBlockInfo> e : volumeMap.entrySet()) {
+        DatanodeBlockInfo info = e.getValue();
+        if (info.getVolume() == this && info.getFile() != null) {
+          File dir = info.getFile().getParentFile();
+          List<Block> blocks = blocksByDir.get(dir);
+          if (blocks == null) {
+            blocks = new ArrayList<Block>();
+            blocksByDir.put(dir, blocks);
+          }
+          blocks.add(new Block(e.getKey().getBlockId(),
+              info.getFile().length(), e.getKey().getGenerationStamp()));
+        }
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      out.writeInt(REPLICA_SNAPSHOT_VERSION);
+      out.writeInt(storageInfo.getLayoutVersion());
+      out.writeInt(storageInfo.getNamespaceID());
+      out.writeLong(storageInfo.getCTime());
+      synchronized (dataDir) {
+        writeSnapshotDir(out, dataDir, blocksByDir);
+      }
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+
+      File tmp = new File(snapshotFile.getPath() + ".tmp");
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        bytes.writeTo(fos);
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(snapshotFile)) {
+        snapshotFile.delete();
+        if (!tmp.renameTo(snapshotFile)) {
+          throw new IOException("Could not rename " + tmp + " to "
+                                + snapshotFile);
+        }
+      }
+    }
+
+    private void writeSnapshotDir(DataOutputStream out, FSDir dir,
+        Map<File, List<Block>> blocksByDir) throws IOException {
+      List<Block> blocks = blocksByDir.get(dir.dir);
+      int numBlocks = (blocks == null) ? 0 : blocks.size();
+      WritableUtils.writeVInt(out, numBlocks);
+      for (int i = 0; i < numBlocks; i++) {
+        Block b = blocks.get(i);
+        WritableUtils.writeVLong(out, b.getBlockId());
+        WritableUtils.writeVLong(out, b.getGenerationStamp());
+        WritableUtils.writeVLong(out, b.getNumBytes());
+      }
+      FSDir[] children = dir.children;
+      WritableUtils.writeVInt(out, (children == null) ? 0 : children.length);
+      if (children != null) {
+        for (FSDir child : children) {
+          out.writeUTF(child.dir.getName());
+          writeSnapshotDir(out, child, blocksByDir);
+        }
+      }
+    }
+
+    /**
+     * Load the replicas and the directory tree saved by
+     * {@link #saveSnapshot(Map)}.
+     * @return the root of the directory tree, or null if there is no
+     *         usable snapshot
+     */
+    private FSDir loadSnapshot(File currentDir,
+        Map<Block, DatanodeBlockInfo> volumeMap) {
+      if (!snapshotFile.exists()) {
+        return null;
+      }
+      try {
+        byte[] bytes = new byte[(int)snapshotFile.length()];
+        DataInputStream in =
+          new DataInputStream(new FileInputStream(snapshotFile));
+        try {
+          in.readFully(bytes);
+        } finally {
+          in.close();
+        }
+        if (bytes.length < 12) {
+          throw new IOException("truncated file");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 8);
+        if (in.readLong() != crc.getValue()) {
+          throw new IOException("checksum mismatch");
+        }
+
+        in = new DataInputStream(
+            new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        int version = in.readInt();
+        if (version != REPLICA_SNAPSHOT_VERSION) {
+          throw new IOException("unsupported version " + version);
+        }
+        // the storage may have been formatted, upgraded or rolled back
+        int layoutVersion = in.readInt();
+        int namespaceID = in.readInt();
+        long cTime = in.readLong();
+        if (layoutVersion != storageInfo.getLayoutVersion() ||
+            namespaceID != storageInfo.getNamespaceID() ||
+            cTime != storageInfo.getCTime()) {
+          throw new IOException("saved for layout version " + layoutVersion
+              + ", namespace " + namespaceID + " and ctime " + cTime
+              + ", the storage has " + storageInfo.getLayoutVersion() + ", "
+              + storageInfo.getNamespaceID() + " and "
+              + storageInfo.getCTime());
+        }
+        Map<Block, DatanodeBlockInfo> loaded =
+          new HashMap<Block, DatanodeBlockInfo>();
+        FSDir root = readSnapshotDir(in, currentDir, loaded);
+        volumeMap.putAll(loaded);
+        DataNode.LOG.info("Loaded " + loaded.size() + " blocks of " + currentDir
+                          + " from " + snapshotFile);
+        return root;
+      } catch (IOException e) {
+        DataNode.LOG.warn("Could not load replica snapshot " + snapshotFile
+                          + ", scanning " + currentDir + " instead: " + e);
+        return null;
+      }
+    }
+
+    private FSDir readSnapshotDir(DataInputStream in, File dir,
+        Map<Block, DatanodeBlockInfo> loaded) throws IOException {
+      int numBlocks = WritableUtils.readVInt(in);
+      for (int i = 0; i < numBlocks; i++) {
+        long id = WritableUtils.readVLong(in);
+        long genStamp = WritableUtils.readVLong(in);
+        long len = WritableUtils.readVLong(in);
+        Block b = new Block(id, len, genStamp);
+        loaded.put(b, new DatanodeBlockInfo(this,
+                                            new File(dir, b.getBlockName())));
+      }
+      int numChildren = WritableUtils.readVInt(in);
+      FSDir[] children = null;
+      if (numChildren > 0) {
+        children = new FSDir[numChildren];
+        for (int i = 0; i < numChildren; i++) {
+          children[i] = readSnapshotDir(in, new File(dir, in.readUTF()), loaded);
+        }
+      }
+      return new FSDir(dir, numBlocks, children);
     }
   }
     
   static class FSVolumeSet {
     FSVolume[] volumes = null;
-    int curVolume = 0;
+    private final BlockVolumeChoosingPolicy policy;
       
-    FSVolumeSet(FSVolume[] volumes) {
+    FSVolumeSet(FSVolume[] volumes, BlockVolumeChoosingPolicy policy) {
       this.volumes = volumes;
+      this.policy = policy;
     }
       
     synchronized FSVolume getNextVolume(long blockSize) throws IOException {
-      int startVolume = curVolume;
-      while (true) {
-        FSVolume volume = volumes[curVolume];
-        curVolume = (curVolume + 1) % volumes.length;
-        if (volume.getAvailable() > blockSize) { return volume; }
-        if (curVolume == startVolume) {
-          throw new DiskOutOfSpaceException("Insufficient space for an additional block");
-        }
-      }
+      FSVolume volume = policy.chooseVolume(volumes, blockSize);
+      volume.chosen();
+      return volume;
     }
       
     long getDfsUsed() throws IOException {
@@ -535,12 +892,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
       
-    synchronized void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
-      for (int idx = 0; idx < volumes.length; idx++) {
-        volumes[idx].getVolumeMap(volumeMap);
-      }
-    }
-      
     synchronized void checkDirs() throws DiskErrorException {
       for (int idx = 0; idx < volumes.length; idx++) {
         volumes[idx].checkDirs();
@@ -566,6 +917,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   //Find better place?
   public static final String METADATA_EXTENSION = ".meta";
   public static final short METADATA_VERSION = 1;
+
+  /** Name of the replica map snapshot file of a volume */
+  static final String REPLICA_SNAPSHOT_FILE = "replicas";
+  static final int REPLICA_SNAPSHOT_VERSION = 2;
+
+  /** The block and meta files, which make up the space used by dfs */
+  private static final FileFilter BLOCK_FILES = new FileFilter() {
+    public boolean accept(File f) {
+      return f.getName().startsWith(DataStorage.BLOCK_FILE_PREFIX);
+    }
+  };
     
 
   static class ActiveFile {
@@ -654,14 +1016,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   /** {@inheritDoc} */
-  public synchronized Block getStoredBlock(long blkid) throws IOException {
-    File blockfile = findBlockFile(blkid);
-    if (blockfile == null) {
-      return null;
+  public Block getStoredBlock(long blkid) throws IOException {
+    synchronized (getBlockLock(blkid)) {
+      File blockfile = findBlockFile(blkid);
+      if (blockfile == null) {
+        return null;
+      }
+      File metafile = findMetaFile(blockfile);
+      return new Block(blkid, blockfile.length(),
+          parseGenerationStamp(blockfile, metafile));
     }
-    File metafile = findMetaFile(blockfile);
-    return new Block(blkid, blockfile.length(),
-        parseGenerationStamp(blockfile, metafile));
   }
 
   public boolean metaFileExists(Block b) throws IOException {
@@ -681,24 +1045,220 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   FSVolumeSet volumes;
-  private HashMap<Block,ActiveFile> ongoingCreates = new HashMap<Block,ActiveFile>();
+  private Map<Block,ActiveFile> ongoingCreates = new ConcurrentHashMap<Block,ActiveFile>();
   private int maxBlocksPerDir = 0;
-  private HashMap<Block,DatanodeBlockInfo> volumeMap = null;
+  private final boolean syncDirs; // force the renames of finalized blocks
+  private volatile boolean syncDirFailed = false; // warned about it once
+  private final Map<Block,DatanodeBlockInfo> volumeMap;
+  private long volumeScanTime;
+  private Daemon replicaSnapshotter = null;
+  private final BlockReportDelta blockReportDelta = new BlockReportDelta();
   static  Random random = new Random();
+
+  /**
+   * Number of locks the blocks are spread over. Operations on blocks
+   * that hash to different stripes never wait for each other.
+   */
+  static final int DEFAULT_LOCK_STRIPES = 64;
+  private Object[] blockLocks;
+
+  /**
+   * Get the lock that serializes the changes to a block and its files.
+   * Both maps are concurrent, lookups do not need it.
+   */
+  Object getBlockLock(long blockId) {
+    int h = (int)(blockId ^ (blockId >>> 32));
+    h ^= (h >>> 16);
+    return blockLocks[(h & Integer.MAX_VALUE) % blockLocks.length];
+  }
+
+  Object getBlockLock(Block b) {
+    return getBlockLock(b.getBlockId());
+  }
   
   /**
    * An FSDataset has a directory where it loads its data files.
    */
-  public FSDataset(DataStorage storage, Configuration conf) throws IOException {
+  public FSDataset(DataStorage storage, final Configuration conf) throws IOException {
     this.maxBlocksPerDir = conf.getInt("dfs.datanode.numblocks", 64);
-    FSVolume[] volArray = new FSVolume[storage.getNumStorageDirs()];
-    for (int idx = 0; idx < storage.getNumStorageDirs(); idx++) {
-      volArray[idx] = new FSVolume(storage.getStorageDir(idx).getCurrentDir(), conf);
-    }
-    volumes = new FSVolumeSet(volArray);
-    volumeMap = new HashMap<Block, DatanodeBlockInfo>();
-    volumes.getVolumeMap(volumeMap);
+    this.syncDirs = DurabilityMode.get(conf) != DurabilityMode.PAGECACHE;
+    this.blockLocks = new Object[Math.max(1, conf.getInt(
+        "dfs.datanode.dataset.lock.stripes", DEFAULT_LOCK_STRIPES))];
+    for (int i = 0; i < blockLocks.length; i++) {
+      blockLocks[i] = new Object();
+    }
+    volumeMap = new ConcurrentHashMap<Block, DatanodeBlockInfo>();
+
+    // scan the volumes, and the directories within them, in parallel
+    long start = System.currentTimeMillis();
+    int numVolumes = storage.getNumStorageDirs();
+    FSVolume[] volArray = new FSVolume[numVolumes];
+    ForkJoinPool pool = new ForkJoinPool(conf.getInt(
+        "dfs.datanode.volume.scan.threads", Math.max(4, 2 * numVolumes)));
+    try {
+      List<ForkJoinTask<FSVolume>> scans =
+        new ArrayList<ForkJoinTask<FSVolume>>(numVolumes);
+      for (int idx = 0; idx < numVolumes; idx++) {
+        final File currentDir = storage.getStorageDir(idx).getCurrentDir();
+        scans.add(pool.submit(new Callable<FSVolume>() {
+          public FSVolume call() throws IOException {
+            return new FSVolume(currentDir, conf, volumeMap, storage);
+          }
+        }));
+      }
+      for (int idx = 0; idx < numVolumes; idx++) {
+        volArray[idx] = scans.get(idx).get();
+      }
+    } catch (InterruptedException e) {
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while scanning volumes").initCause(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw (IOException)new IOException("Could not scan volumes").initCause(
+          e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+    volumeScanTime = System.currentTimeMillis() - start;
+    DataNode.LOG.info("Scanned " + volumeMap.size() + " blocks on "
+                      + numVolumes + " volumes in " + volumeScanTime + " ms");
+
+    Class<? extends BlockVolumeChoosingPolicy> policyClass = conf.getClass(
+        "dfs.datanode.block.volume.choice.policy",
+        AvailableSpaceLoadVolumesPolicy.class,
+        BlockVolumeChoosingPolicy.class);
+    volumes = new FSVolumeSet(volArray,
+        ReflectionUtils.newInstance(policyClass, conf));
     registerMBean(storage.getStorageID());
+
+    if (conf.getBoolean("dfs.datanode.replica.snapshot", true)) {
+      replicaSnapshotter = new Daemon(new ReplicaSnapshotter(conf.getLong(
+          "dfs.datanode.replica.snapshot.interval", 3600000L)));
+      replicaSnapshotter.setName("ReplicaSnapshotter");
+      replicaSnapshotter.start();
+    }
+  }
+
+  /**
+   * Checks the volumes loaded from a snapshot against their directories,
+   * then saves the replica map of every volume periodically so that a
+   * restart after a crash does not need a full scan either.
+   */
+  class ReplicaSnapshotter implements Runnable {
+    private final long interval;
+
+    ReplicaSnapshotter(long interval) {
+      this.interval = interval;
+    }
+
+    public void run() {
+      for (FSVolume v : volumes.volumes) {
+        if (v.unverified && !Thread.currentThread().isInterrupted()) {
+          try {
+            verifySnapshot(v);
+          } catch (IOException e) {
+            DataNode.LOG.warn("Could not verify the replicas of " + v, e);
+          }
+        }
+      }
+      while (interval > 0) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          return;
+        }
+        saveSnapshots();
+      }
+    }
+  }
+
+  /**
+   * Scan a volume loaded from a snapshot and fix the replica map where
+   * the snapshot was stale. Blocks that are being written, or were
+   * changed since startup, are left alone.
+   */
+  void verifySnapshot(FSVolume v) throws IOException {
+    long start = System.currentTimeMillis();
+    Map<Block, DatanodeBlockInfo> onDisk =
+      new ConcurrentHashMap<Block, DatanodeBlockInfo>();
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      new DirScanner(v.dataDir.dir, v, onDisk).scan(pool);
+    } finally {
+      pool.shutdown();
+    }
+    Map<Long, Block> diskBlocks = new HashMap<Long, Block>(onDisk.size());
+    for (Block b : onDisk.keySet()) {
+      diskBlocks.put(b.getBlockId(), b);
+    }
+
+    int removed = 0, updated = 0, added = 0;
+    for (Map.Entry<Block, DatanodeBlockInfo> e : volumeMap.entrySet()) {
+      DatanodeBlockInfo info = e.getValue();
+      if (info.getVolume() != v || info.getFile() == null) {
+        continue;
+      }
+      Block b = e.getKey();
+      Block disk = diskBlocks.remove(b.getBlockId());
+      synchronized (getBlockLock(b)) {
+        if (volumeMap.get(b) != info) {
+          continue; // changed since the snapshot was loaded
+        }
+        if (disk == null) {
+          if (!info.getFile().exists()) {
+            volumeMap.remove(b);
+            blockReportDelta.removed(b);
+            removed++;
+          }
+        } else if (disk.getGenerationStamp() != b.getGenerationStamp()
+            && !ongoingCreates.containsKey(b)
+            && getMetaFile(info.getFile(), disk).exists()) {
+          volumeMap.remove(b);
+          volumeMap.put(disk, info);
+          blockReportDelta.added(disk);
+          updated++;
+        }
+      }
+    }
+    for (Block disk : diskBlocks.values()) {
+      synchronized (getBlockLock(disk)) {
+        if (!volumeMap.containsKey(new Block(disk.getBlockId()))
+            && onDisk.get(disk).getFile().exists()) {
+          volumeMap.put(disk, onDisk.get(disk));
+          blockReportDelta.added(disk);
+          added++;
+        }
+      }
+    }
+    v.unverified = false;
+    DataNode.LOG.info("Verified the replicas of " + v + " in "
+                      + (System.currentTimeMillis() - start) + " ms: "
+                      + removed + " removed, " + updated + " updated, "
+                      + added + " added");
+  }
+
+  /** Save the replica map snapshot of every volume */
+  void saveSnapshots() {
+    if (volumes == null) {
+      return;
+    }
+    for (FSVolume v : volumes.volumes) {
+      if (v == null || v.unverified) {
+        continue;
+      }
+      try {
+        v.saveSnapshot(volumeMap);
+      } catch (IOException e) {
+        DataNode.LOG.warn("Could not save the replicas of " + v, e);
+      }
+    }
+  }
+
+  /** @return the time taken to scan the volumes at startup, in ms */
+  long getVolumeScanTime() {
+    return volumeScanTime;
   }
 
   /**
@@ -732,7 +1292,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Get File name for a given block.
    */
-  public synchronized File getBlockFile(Block b) throws IOException {
+  public File getBlockFile(Block b) throws IOException {
     File f = validateBlockFile(b);
     if(f == null) {
       if (InterDatanodeProtocol.LOG.isDebugEnabled()) {
@@ -743,14 +1303,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return f;
   }
   
-  public synchronized InputStream getBlockInputStream(Block b) throws IOException {
-    return new FileInputStream(getBlockFile(b));
+  public InputStream getBlockInputStream(Block b) throws IOException {
+    synchronized (getBlockLock(b)) {
+      return new FileInputStream(getBlockFile(b));
+    }
   }
 
-  public synchronized InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
-
-    File blockFile = getBlockFile(b);
-    RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
+  public InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
+    RandomAccessFile blockInFile;
+    synchronized (getBlockLock(b)) {
+      blockInFile = new RandomAccessFile(getBlockFile(b), "r");
+    }
     if (seekOffset > 0) {
       blockInFile.seek(seekOffset);
     }
@@ -760,21 +1323,24 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Returns handles to the block file and its metadata file
    */
-  public synchronized BlockInputStreams getTmpInputStreams(Block b, 
+  public BlockInputStreams getTmpInputStreams(Block b, 
                           long blkOffset, long ckoff) throws IOException {
 
-    DatanodeBlockInfo info = volumeMap.get(b);
-    if (info == null) {
-      throw new IOException("Block " + b + " does not exist in volumeMap.");
+    RandomAccessFile blockInFile;
+    RandomAccessFile metaInFile;
+    synchronized (getBlockLock(b)) {
+      DatanodeBlockInfo info = volumeMap.get(b);
+      if (info == null) {
+        throw new IOException("Block " + b + " does not exist in volumeMap.");
+      }
+      FSVolume v = info.getVolume();
+      File blockFile = v.getTmpFile(b);
+      blockInFile = new RandomAccessFile(blockFile, "r");
+      metaInFile = new RandomAccessFile(getMetaFile(blockFile, b), "r");
     }
-    FSVolume v = info.getVolume();
-    File blockFile = v.getTmpFile(b);
-    RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
     if (blkOffset > 0) {
       blockInFile.seek(blkOffset);
     }
-    File metaFile = getMetaFile(blockFile, b);
-    RandomAccessFile metaInFile = new RandomAccessFile(metaFile, "r");
     if (ckoff > 0) {
       metaInFile.seek(ckoff);
     }
@@ -782,12 +1348,72 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                 new FileInputStream(metaInFile.getFD()));
   }
     
-  private BlockWriteStreams createBlockWriteStreams( File f , File metafile) throws IOException {
-      return new BlockWriteStreams(new FileOutputStream(new RandomAccessFile( f , "rw" ).getFD()),
+  private BlockWriteStreams createBlockWriteStreams(FSVolume v, File f,
+      File metafile) throws IOException {
+      return new BlockWriteStreams(new VolumeOutputStream(
+          new FileOutputStream(new RandomAccessFile( f , "rw" ).getFD()), v),
           new FileOutputStream( new RandomAccessFile( metafile , "rw" ).getFD() ));
 
   }
 
+  /**
+   * Output stream of a block file being written. Keeps the write
+   * statistics of the volume up to date.
+   */
+  static class VolumeOutputStream extends FilterOutputStream {
+    private final FSVolume volume;
+    private boolean closed = false;
+
+    VolumeOutputStream(FileOutputStream out, FSVolume volume) {
+      super(out);
+      this.volume = volume;
+      volume.startWrite();
+    }
+
+    FileOutputStream getFileOutputStream() {
+      return (FileOutputStream)out;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      volume.recordWrite(len, System.nanoTime() - start);
+    }
+
+    public void close() throws IOException {
+      synchronized (this) {
+        if (!closed) {
+          closed = true;
+          volume.endWrite();
+        }
+      }
+      out.close();
+    }
+  }
+
+  /** The block file stream of a set of write streams */
+  private static FileOutputStream getDataFileStream(BlockWriteStreams streams) {
+    return (streams.dataOut instanceof VolumeOutputStream) ?
+        ((VolumeOutputStream)streams.dataOut).getFileOutputStream() :
+        (FileOutputStream)streams.dataOut;
+  }
+
+  /**
+   * Publish the write statistics of every volume in the datanode metrics,
+   * as volume&lt;index&gt;_&lt;statistic&gt;.
+   */
+  void registerVolumeMetrics(DataNodeMetrics metrics) {
+    for (int idx = 0; idx < volumes.volumes.length; idx++) {
+      volumes.volumes[idx].registerMetrics("volume" + idx, metrics);
+      DataNode.LOG.info("Metrics of volume " + volumes.volumes[idx]
+                        + " are published as volume" + idx);
+    }
+  }
+
   /**
    * Make a copy of the block if this block is linked to an existing
    * snapshot. This ensures that modifying this block does not modify
@@ -798,11 +1424,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * @return - true if the specified block was detached
    */
   public boolean detachBlock(Block block, int numLinks) throws IOException {
-    DatanodeBlockInfo info = null;
-
-    synchronized (this) {
-      info = volumeMap.get(block);
-    }
+    DatanodeBlockInfo info = volumeMap.get(block);
     return info.detachBlock(block, numLinks);
   }
 
@@ -848,7 +1470,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * 
    * @return ongoing create threads if there is any. Otherwise, return null.
    */
-  private synchronized List<Thread> tryUpdateBlock(
+  private List<Thread> tryUpdateBlock(
+      Block oldblock, Block newblock) throws IOException {
+    synchronized (getBlockLock(oldblock)) {
+      return tryUpdateBlockLocked(oldblock, newblock);
+    }
+  }
+
+  private List<Thread> tryUpdateBlockLocked(
       Block oldblock, Block newblock) throws IOException {
     //check ongoing create threads
     final ActiveFile activefile = ongoingCreates.get(oldblock);
@@ -896,7 +1525,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           + ") length from " + oldblock.getNumBytes() + " to " + newblock.getNumBytes());
     }
     if (newblock.getNumBytes() < oldblock.getNumBytes()) {
+      long oldSize = blockFile.length() + tmpMetaFile.length();
       truncateBlock(blockFile, tmpMetaFile, oldblock.getNumBytes(), newblock.getNumBytes());
+      DatanodeBlockInfo info = volumeMap.get(oldblock);
+      if (info != null && info.getFile() != null) {
+        // only finalized blocks count in the used space
+        info.getVolume().decDfsUsed(blockFile.getParentFile(),
+            oldSize - blockFile.length() - tmpMetaFile.length());
+      }
     }
 
     //rename the tmp file to the new meta file (with new generation stamp)
@@ -907,6 +1543,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
     updateBlockMap(ongoingCreates, oldblock, newblock);
     updateBlockMap(volumeMap, oldblock, newblock);
+    DatanodeBlockInfo info = volumeMap.get(newblock);
+    if (info != null && info.getFile() != null) {
+      blockReportDelta.added(newblock);
+    }
 
     // paranoia! verify that the contents of the stored block 
     // matches the block file on disk.
@@ -999,11 +1639,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     long blockSize = b.getNumBytes();
 
     //
-    // Serialize access to /tmp, and check if file already there.
+    // Serialize access to the block's tmp file, and check if file
+    // already there.
     //
     File f = null;
+    FSVolume v = null;
     List<Thread> threads = null;
-    synchronized (this) {
+    synchronized (getBlockLock(b)) {
       //
       // Is it already in the create process?
       //
@@ -1025,7 +1667,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
         ongoingCreates.remove(b);
       }
-      FSVolume v = null;
       if (!isRecovery) {
         v = volumes.getNextVolume(blockSize);
         // create temporary file to hold block in the designated volume
@@ -1047,14 +1688,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
         // rename meta file to tmp directory
         DataNode.LOG.debug("Renaming " + oldmeta + " to " + newmeta);
+        long metaSize = oldmeta.length();
         if (!oldmeta.renameTo(newmeta)) {
           throw new IOException("Block " + b + " reopen failed. " +
                                 " Unable to move meta file  " + oldmeta +
                                 " to tmp dir " + newmeta);
         }
+        // counted again when the block is finalized
+        v.decDfsUsed(oldmeta.getParentFile(), metaSize);
 
         // rename block file to tmp directory
         DataNode.LOG.debug("Renaming " + blkfile + " to " + f);
+        long blkSize = blkfile.length();
         if (!blkfile.renameTo(f)) {
           if (!f.delete()) {
             throw new IOException("Block " + b + " reopen failed. " +
@@ -1066,6 +1711,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                   " to tmp dir " + f);
           }
         }
+        v.decDfsUsed(blkfile.getParentFile(), blkSize);
         volumeMap.put(b, new DatanodeBlockInfo(v));
       }
       if (f == null) {
@@ -1095,7 +1741,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     File metafile = getMetaFile(f, b);
     DataNode.LOG.debug("writeTo blockfile is " + f + " of size " + f.length());
     DataNode.LOG.debug("writeTo metafile is " + metafile + " of size " + metafile.length());
-    return createBlockWriteStreams( f , metafile);
+    return createBlockWriteStreams(v, f, metafile);
   }
 
   /**
@@ -1104,7 +1750,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    */
   public long getChannelPosition(Block b, BlockWriteStreams streams) 
                                  throws IOException {
-    FileOutputStream file = (FileOutputStream) streams.dataOut;
+    FileOutputStream file = getDataFileStream(streams);
     return file.getChannel().position();
   }
 
@@ -1115,11 +1761,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   public void setChannelPosition(Block b, BlockWriteStreams streams, 
                                  long dataOffset, long ckOffset) 
                                  throws IOException {
-    long size = 0;
-    synchronized (this) {
-      FSVolume vol = volumeMap.get(b).getVolume();
-      size = vol.getTmpFile(b).length();
-    }
+    FSVolume vol = volumeMap.get(b).getVolume();
+    long size = vol.getTmpFile(b).length();
     if (size < dataOffset) {
       String msg = "Trying to change block file offset of block " + b +
                      " to " + dataOffset +
@@ -1127,13 +1770,27 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                      size;
       throw new IOException(msg);
     }
-    FileOutputStream file = (FileOutputStream) streams.dataOut;
+    FileOutputStream file = getDataFileStream(streams);
     file.getChannel().position(dataOffset);
     file = (FileOutputStream) streams.checksumOut;
     file.getChannel().position(ckOffset);
   }
 
-  synchronized File createTmpFile( FSVolume vol, Block blk ) throws IOException {
+  /** {@inheritDoc} */
+  public void syncBlock(Block b, BlockWriteStreams streams, boolean group)
+                        throws IOException {
+    FileChannel data = getDataFileStream(streams).getChannel();
+    FileChannel meta = ((FileOutputStream)streams.checksumOut).getChannel();
+    FSVolume v = group ? getVolume(b) : null;
+    if (v != null) {
+      v.syncer.sync(data, meta);
+    } else {
+      data.force(true);
+      meta.force(true);
+    }
+  }
+
+  File createTmpFile( FSVolume vol, Block blk ) throws IOException {
     if ( vol == null ) {
       vol = volumeMap.get( blk ).getVolume();
       if ( vol == null ) {
@@ -1154,7 +1811,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Complete the block write!
    */
-  public synchronized void finalizeBlock(Block b) throws IOException {
+  public void finalizeBlock(Block b) throws IOException {
+    synchronized (getBlockLock(b)) {
+      finalizeBlockLocked(b);
+    }
+  }
+
+  private void finalizeBlockLocked(Block b) throws IOException {
     ActiveFile activeFile = ongoingCreates.get(b);
     if (activeFile == null) {
       throw new IOException("Block " + b + " is already finalized.");
@@ -1171,24 +1834,58 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         
     File dest = null;
     dest = v.addBlock(b, f);
+    if (syncDirs) {
+      // the forced files are only durable once their renames are
+      syncDir(dest.getParentFile());
+      syncDir(f.getParentFile());
+    }
     volumeMap.put(b, new DatanodeBlockInfo(v, dest));
     ongoingCreates.remove(b);
+    blockReportDelta.added(
+        new Block(b.getBlockId(), dest.length(), b.getGenerationStamp()));
   }
 
   /**
-   * Remove the temporary block file (if any)
+   * Force the entries of a directory to disk. This is best effort: some
+   * platforms, Windows among them, cannot open a directory for it.
    */
-  public synchronized void unfinalizeBlock(Block b) throws IOException {
-    // remove the block from in-memory data structure
-    ActiveFile activefile = ongoingCreates.remove(b);
-    if (activefile == null) {
-      return;
+  private void syncDir(File dir) {
+    try {
+      FileChannel channel = FileChannel.open(dir.toPath(),
+                                             StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      if (!syncDirFailed) {
+        syncDirFailed = true;
+        DataNode.LOG.warn("Could not force directory " + dir + " to disk," +
+                          " renames of finalized blocks may not survive" +
+                          " a crash: " + e);
+      } else if (DataNode.LOG.isDebugEnabled()) {
+        DataNode.LOG.debug("Could not force directory " + dir + ": " + e);
+      }
     }
-    volumeMap.remove(b);
-    
-    // delete the on-disk temp file
-    if (delBlockFromDisk(activefile.file, getMetaFile(activefile.file, b), b)) {
-      DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
+  }
+
+  /**
+   * Remove the temporary block file (if any)
+   */
+  public void unfinalizeBlock(Block b) throws IOException {
+    synchronized (getBlockLock(b)) {
+      // remove the block from in-memory data structure
+      ActiveFile activefile = ongoingCreates.remove(b);
+      if (activefile == null) {
+        return;
+      }
+      volumeMap.remove(b);
+      
+      // delete the on-disk temp file
+      if (delBlockFromDisk(activefile.file, getMetaFile(activefile.file, b), b)) {
+        DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
+      }
     }
   }
 
@@ -1232,6 +1929,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return blockTable;
   }
 
+  /** @return the volume the block is stored on, or null if unknown */
+  FSVolume getVolume(Block b) {
+    DatanodeBlockInfo info = volumeMap.get(b);
+    return (info == null) ? null : info.getVolume();
+  }
+
+  /** {@inheritDoc} */
+  public BlockReportDelta getBlockReportDelta() {
+    return blockReportDelta;
+  }
+
   /**
    * Check whether the given block is a valid one.
    */
@@ -1311,7 +2019,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
       FSVolume v;
-      synchronized (this) {
+      synchronized (getBlockLock(invalidBlks[i])) {
         f = getFile(invalidBlks[i]);
         DatanodeBlockInfo dinfo = volumeMap.get(invalidBlks[i]);
         if (dinfo == null) {
@@ -1348,6 +2056,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
         v.clearPath(parent);
         volumeMap.remove(invalidBlks[i]);
+        blockReportDelta.removed(invalidBlks[i]);
       }
       File metaFile = getMetaFile( f, invalidBlks[i] );
       long blockSize = f.length()+metaFile.length();
@@ -1357,7 +2066,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         error = true;
         continue;
       }
-      v.decDfsUsed(blockSize);
+      v.decDfsUsed(f.getParentFile(), blockSize);
       DataNode.LOG.info("Deleting block " + invalidBlks[i] + " file " + f);
       if (f.exists()) {
         //
@@ -1375,7 +2084,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Turn the block identifier into a filename.
    */
-  public synchronized File getFile(Block b) {
+  public File getFile(Block b) {
     DatanodeBlockInfo info = volumeMap.get(b);
     if (info != null) {
       return info.getFile();
@@ -1427,10 +2136,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   public void shutdown() {
     if (mbeanName != null)
       MBeanUtil.unregisterMBean(mbeanName);
+
+    if (replicaSnapshotter != null) {
+      replicaSnapshotter.interrupt();
+      try {
+        replicaSnapshotter.join();
+      } catch (InterruptedException ignored) {
+      }
+      saveSnapshots();
+    }
     
     if(volumes != null) {
       for (FSVolume volume : volumes.volumes) {
         if(volume != null) {
+          volume.syncer.shutdown();
           volume.dfsUsage.shutdown();
         }
       }
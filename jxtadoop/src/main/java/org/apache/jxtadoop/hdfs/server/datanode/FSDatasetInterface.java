@@ -19,10 +19,12 @@ package org.apache.jxtadoop.hdfs.server.datanode;
 
 
 import java.io.Closeable;
+import java.io.FileInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 
 
@@ -65,6 +67,15 @@ public interface FSDatasetInterface extends FSDatasetMBean {
     public long getLength() {
       return length;
     }
+
+    /**
+     * @return the channel of the underlying meta file, or null if the
+     *         data does not come from a file
+     */
+    public FileChannel getChannel() {
+      return (in instanceof FileInputStream) ?
+          ((FileInputStream)in).getChannel() : null;
+    }
   }
   
   /**
@@ -204,6 +215,13 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   public Block[] getBlockReport();
 
+  /**
+   * Returns the replicas added, changed or removed since the changes
+   * were last drained or cleared, for delta block reports.
+   * @return the live record of the changes
+   */
+  public BlockReportDelta getBlockReportDelta();
+
   /**
    * Is the block valid?
    * @param b
@@ -257,6 +275,18 @@ public interface FSDatasetInterface extends FSDatasetMBean {
   public void setChannelPosition(Block b, BlockWriteStreams stream, long dataOffset,
                                  long ckOffset) throws IOException;
 
+  /**
+   * Forces the data and checksum written so far to the block to disk.
+   * The streams must have been flushed.
+   * @param b
+   * @param stream The stream for the data file and checksum file
+   * @param group if true, the call may wait to share the force with the
+   *        other writers of the same volume
+   * @throws IOException
+   */
+  public void syncBlock(Block b, BlockWriteStreams stream, boolean group)
+                        throws IOException;
+
   /**
    * Validate that the contents in the Block matches
    * the file on disk. Returns true if everything is fine.
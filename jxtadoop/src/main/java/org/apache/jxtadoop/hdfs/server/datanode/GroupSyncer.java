@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingRate;
+import org.apache.jxtadoop.util.Daemon;
+
+/**
+ * Forces the files of the blocks being written to one volume to disk on
+ * behalf of their writers, for {@link DurabilityMode#GROUP}.
+ * <p>
+ * Requests that arrive while a batch is being forced are queued and
+ * served together by the next batch, in which each file is forced only
+ * once however many writers asked for it. A writer waits until the batch
+ * holding its request completes, so the cost of a force() is shared by
+ * all the packets written to the volume in the meantime.
+ */
+class GroupSyncer implements Runnable {
+  public static final Log LOG = DataNode.LOG;
+
+  /** The files one writer waits for */
+  private static class Request {
+    final FileChannel[] channels;
+    boolean done = false;
+    IOException error = null;
+
+    Request(FileChannel[] channels) {
+      this.channels = channels;
+    }
+  }
+
+  private final String name;
+  private List<Request> pending = new ArrayList<Request>();
+  private boolean running = true;
+  private Daemon thread = null;
+
+  // set once the datanode metrics exist
+  private MetricsTimeVaryingInt batchesMetric;
+  private MetricsTimeVaryingInt requestsMetric;
+  private MetricsTimeVaryingRate batchLatencyMetric;
+
+  GroupSyncer(String name) {
+    this.name = name;
+  }
+
+  /** Publish the batching statistics under a prefix */
+  void registerMetrics(String prefix, DataNodeMetrics metrics) {
+    batchesMetric = new MetricsTimeVaryingInt(prefix + "_group_syncs",
+                                              metrics.registry);
+    requestsMetric = new MetricsTimeVaryingInt(prefix + "_group_sync_requests",
+                                               metrics.registry);
+    batchLatencyMetric = new MetricsTimeVaryingRate(
+        prefix + "_group_sync_latency_us", metrics.registry);
+  }
+
+  /**
+   * Force the given files to disk, sharing the force() calls with the
+   * other writers of the volume. The thread is started on first use.
+   * @throws IOException if forcing one of the files failed
+   */
+  void sync(FileChannel... channels) throws IOException {
+    Request request = new Request(channels);
+    synchronized (this) {
+      if (!running) {
+        throw new IOException("Group sync of " + name + " is shut down");
+      }
+      if (thread == null) {
+        thread = new Daemon(this);
+        thread.start();
+      }
+      pending.add(request);
+      notifyAll();
+      while (!request.done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted waiting for group " +
+                                           "sync of " + name);
+        }
+      }
+    }
+    if (request.error != null) {
+      throw request.error;
+    }
+  }
+
+  public void run() {
+    while (true) {
+      List<Request> batch;
+      synchronized (this) {
+        while (running && pending.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException ignored) {
+          }
+        }
+        if (pending.isEmpty()) {
+          break;                        // shut down and nothing left to do
+        }
+        batch = pending;
+        pending = new ArrayList<Request>();
+      }
+
+      long start = System.nanoTime();
+      Map<FileChannel, IOException> forced =
+        new IdentityHashMap<FileChannel, IOException>();
+      for (Request request : batch) {
+        for (FileChannel channel : request.channels) {
+          if (!forced.containsKey(channel)) {
+            IOException error = null;
+            try {
+              channel.force(true);
+            } catch (IOException e) {
+              error = e;
+            }
+            forced.put(channel, error);
+          }
+          if (request.error == null) {
+            request.error = forced.get(channel);
+          }
+        }
+      }
+      if (batchesMetric != null) {
+        batchesMetric.inc();
+        requestsMetric.inc(batch.size());
+        batchLatencyMetric.inc((System.nanoTime() - start) / 1000);
+      }
+
+      synchronized (this) {
+        for (Request request : batch) {
+          request.done = true;
+        }
+        notifyAll();
+      }
+    }
+    LOG.debug(this + " exiting");
+  }
+
+  /**
+   * Stop accepting requests. The requests already queued are served
+   * before the thread exits.
+   */
+  void shutdown() {
+    Daemon t;
+    synchronized (this) {
+      running = false;
+      notifyAll();
+      t = thread;
+    }
+    if (t != null) {
+      try {
+        t.join();
+      } catch (InterruptedException ignored) {
+      }
+    }
+  }
+
+  public String toString() {
+    return "GroupSyncer for " + name;
+  }
+}
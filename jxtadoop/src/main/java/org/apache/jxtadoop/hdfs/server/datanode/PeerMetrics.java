@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.jxtadoop.conf.Configuration;
+
+/**
+ * Transfer statistics of this datanode per remote peer: the clients and
+ * datanodes reading blocks from it, writing blocks to it, and the
+ * datanodes it sends blocks on to, either as the mirror of a write
+ * pipeline or for replication.
+ * <p>
+ * For each peer and kind of transfer it keeps the throughput, as decayed
+ * sums of bytes and time that favour the recent transfers, and a
+ * histogram of the transfer times in power-of-two buckets of ms. At most
+ * <code>dfs.datanode.peer.metrics.max</code> peers are tracked; a new
+ * peer replaces the one with the least recent activity.
+ * <p>
+ * A peer is slow when the throughput of the writes to it as a mirror is
+ * <code>dfs.datanode.slowpeer.factor</code> times below the median of
+ * the mirrors that have at least
+ * <code>dfs.datanode.slowpeer.min.samples</code> such writes. At least
+ * three such mirrors are needed to tell. Only the time spent writing to
+ * the mirror is measured; the times of the other kinds of transfer also
+ * depend on this datanode, on the clients or on the replication
+ * bandwidth limit, so they are only kept for the statistics.
+ */
+class PeerMetrics {
+  /** A peer reading a block from this datanode */
+  static final int READ = 0;
+  /** A peer writing a block to this datanode */
+  static final int WRITE = 1;
+  /** This datanode sending a block on to the next peer of a pipeline */
+  static final int MIRROR = 2;
+  /** This datanode sending a block to a peer for replication */
+  static final int REPLICATE = 3;
+  static final String[] OP_NAMES = {"read", "write", "mirror", "replicate"};
+
+  /** Weight of the previous transfers in the throughput */
+  static final double DECAY = 0.8;
+  /** Half life of the activity of a peer, in ms */
+  static final long ACTIVITY_HALF_LIFE = 10 * 60 * 1000L;
+  static final int NUM_BUCKETS = 24;
+
+  /** Transfers of one kind with one peer */
+  private static class OpStats {
+    double bytes = 0;
+    double millis = 0;
+    long samples = 0;
+    final long[] buckets = new long[NUM_BUCKETS];
+
+    void add(long numBytes, long time) {
+      bytes = bytes * DECAY + numBytes;
+      millis = millis * DECAY + Math.max(time, 1);
+      samples++;
+      buckets[getBucket(time)]++;
+    }
+
+    /** @return the throughput in bytes per second */
+    long getRate() {
+      return millis == 0 ? 0 : (long)(bytes * 1000 / millis);
+    }
+
+    /** An upper bound of the given percentile of the transfer times */
+    long getPercentile(int percentile) {
+      long target = (samples * percentile + 99) / 100;
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += buckets[i];
+        if (seen >= target) {
+          return i == 0 ? 0 : (1L << i) - 1;
+        }
+      }
+      return (1L << (NUM_BUCKETS - 1)) - 1;
+    }
+  }
+
+  private static class PeerStats {
+    final OpStats[] ops = new OpStats[OP_NAMES.length];
+    double activity = 0;
+    long lastUsed;
+
+    /** The activity decayed to now */
+    double getActivity(long now) {
+      return activity * Math.pow(0.5, (double)(now - lastUsed) /
+                                      ACTIVITY_HALF_LIFE);
+    }
+  }
+
+  private final int maxPeers;
+  private final int minSamples;
+  private final float slowFactor;
+  private final Map<String, PeerStats> peers = new HashMap<String, PeerStats>();
+
+  PeerMetrics(Configuration conf) {
+    this.maxPeers = Math.max(1, conf.getInt("dfs.datanode.peer.metrics.max",
+                                            32));
+    this.minSamples = conf.getInt("dfs.datanode.slowpeer.min.samples", 5);
+    this.slowFactor = conf.getFloat("dfs.datanode.slowpeer.factor", 3.0f);
+  }
+
+  static int getBucket(long time) {
+    if (time <= 0) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(time), NUM_BUCKETS - 1);
+  }
+
+  /**
+   * Record a transfer.
+   * @param peer the id of the remote peer
+   * @param op READ, WRITE, MIRROR or REPLICATE
+   * @param bytes the bytes transferred
+   * @param millis the time it took
+   */
+  synchronized void record(String peer, int op, long bytes, long millis) {
+    if (peer == null || peer.length() == 0) {
+      return;
+    }
+    long now = DataNode.now();
+    PeerStats stats = peers.get(peer);
+    if (stats == null) {
+      if (peers.size() >= maxPeers) {
+        evict(now);
+      }
+      stats = new PeerStats();
+      peers.put(peer, stats);
+    }
+    stats.activity = stats.getActivity(now) + 1;
+    stats.lastUsed = now;
+    if (stats.ops[op] == null) {
+      stats.ops[op] = new OpStats();
+    }
+    stats.ops[op].add(bytes, millis);
+  }
+
+  /** Forget the peer with the least recent activity */
+  private void evict(long now) {
+    String victim = null;
+    double least = Double.MAX_VALUE;
+    for (Map.Entry<String, PeerStats> e : peers.entrySet()) {
+      double activity = e.getValue().getActivity(now);
+      if (activity < least) {
+        least = activity;
+        victim = e.getKey();
+      }
+    }
+    peers.remove(victim);
+  }
+
+  /** @return the ids of the slow peers, sorted */
+  synchronized String[] getSlowPeers() {
+    TreeSet<String> slow = new TreeSet<String>();
+    ArrayList<Long> rates = new ArrayList<Long>();
+    for (PeerStats stats : peers.values()) {
+      OpStats s = stats.ops[MIRROR];
+      if (s != null && s.samples >= minSamples) {
+        rates.add(s.getRate());
+      }
+    }
+    if (rates.size() < 3) {
+      return new String[0];
+    }
+    Long[] sorted = rates.toArray(new Long[rates.size()]);
+    Arrays.sort(sorted);
+    long median = sorted[sorted.length / 2];
+    for (Map.Entry<String, PeerStats> e : peers.entrySet()) {
+      OpStats s = e.getValue().ops[MIRROR];
+      if (s != null && s.samples >= minSamples &&
+          s.getRate() * slowFactor < median) {
+        slow.add(e.getKey());
+      }
+    }
+    return slow.toArray(new String[slow.size()]);
+  }
+
+  /** @return the throughput with a peer in bytes per second, 0 if none */
+  synchronized long getRate(String peer, int op) {
+    PeerStats stats = peers.get(peer);
+    return (stats == null || stats.ops[op] == null)
+           ? 0 : stats.ops[op].getRate();
+  }
+
+  /**
+   * @return an upper bound of a percentile of the transfer times with a
+   *         peer in ms, 0 if none
+   */
+  synchronized long getPercentile(String peer, int op, int percentile) {
+    PeerStats stats = peers.get(peer);
+    return (stats == null || stats.ops[op] == null)
+           ? 0 : stats.ops[op].getPercentile(percentile);
+  }
+
+  /** @return the number of peers tracked */
+  synchronized int size() {
+    return peers.size();
+  }
+
+  /** One line per peer with the throughput and times of its transfers */
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, PeerStats> e : peers.entrySet()) {
+      sb.append(e.getKey());
+      for (int op = 0; op < OP_NAMES.length; op++) {
+        OpStats s = e.getValue().ops[op];
+        if (s != null) {
+          sb.append(' ').append(OP_NAMES[op]).append('=')
+            .append(s.getRate() / 1024).append("KB/s,n=").append(s.samples)
+            .append(",p50=").append(s.getPercentile(50))
+            .append("ms,p95=").append(s.getPercentile(95)).append("ms");
+        }
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
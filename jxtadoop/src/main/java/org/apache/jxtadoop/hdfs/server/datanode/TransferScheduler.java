@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.util.Daemon;
+
+/**
+ * Runs the block transfers asked for by the namenode on a bounded pool of
+ * worker threads. Queued transfers are started most urgent first, as given
+ * by the replication priority of the namenode, where 0 is for blocks left
+ * with a single live replica, and in arrival order within a priority.
+ * <p>
+ * The transfers share one throttler. It allows
+ * <code>dfs.datanode.transfer.busy.bandwidthPerSec</code> while clients
+ * are reading or writing blocks on this datanode, so that replication
+ * yields to them, and <code>dfs.datanode.transfer.bandwidthPerSec</code>
+ * otherwise, 0 meaning no limit.
+ */
+class TransferScheduler {
+  public static final Log LOG = DataNode.LOG;
+
+  /** The priority of blocks that come without one */
+  static final int LOWEST_PRIORITY = 2;
+
+  /** A block waiting to be transferred */
+  private static class Transfer implements Comparable<Transfer> {
+    final Block block;
+    final DatanodeInfo[] targets;
+    final int priority;
+    final long seqno;
+    final long queuedAt = DataNode.now();
+
+    Transfer(Block block, DatanodeInfo[] targets, int priority, long seqno) {
+      this.block = block;
+      this.targets = targets;
+      this.priority = priority;
+      this.seqno = seqno;
+    }
+
+    public int compareTo(Transfer o) {
+      if (priority != o.priority) {
+        return priority < o.priority ? -1 : 1;
+      }
+      return seqno < o.seqno ? -1 : (seqno == o.seqno ? 0 : 1);
+    }
+  }
+
+  /**
+   * Throttles the transfers to the busy bandwidth while clients are
+   * reading or writing, and to the idle bandwidth otherwise.
+   */
+  private class ShapingThrottler extends BlockTransferThrottler {
+    private long bandwidth;
+
+    ShapingThrottler(long bandwidth) {
+      super(bandwidth);
+      this.bandwidth = bandwidth;
+    }
+
+    @Override
+    synchronized void throttle(long numOfBytes) {
+      long bw = (datanode.clientOpsInProgress.get() > 0)
+                ? busyBandwidth : idleBandwidth;
+      if (bw != bandwidth) {
+        bandwidth = bw;
+        datanode.myMetrics.transferBandwidth.set(bw);
+        if (bw > 0) {
+          setBandwidth(bw);
+        }
+      }
+      if (bw > 0) {
+        super.throttle(numOfBytes);
+      }
+    }
+  }
+
+  private final DataNode datanode;
+  private final long idleBandwidth;
+  private final long busyBandwidth;
+  private final BlockTransferThrottler throttler;
+  private final Daemon[] workers;
+  private final PriorityQueue<Transfer> queue = new PriorityQueue<Transfer>();
+  private final Set<Block> scheduled = new HashSet<Block>(); // queued or running
+  private long nextSeqno = 0;
+  private boolean running = true;
+
+  TransferScheduler(DataNode datanode, Configuration conf) {
+    this.datanode = datanode;
+    this.idleBandwidth = conf.getLong("dfs.datanode.transfer.bandwidthPerSec", 0);
+    this.busyBandwidth = conf.getLong(
+        "dfs.datanode.transfer.busy.bandwidthPerSec", 1024 * 1024);
+    long initial = (busyBandwidth > 0) ? busyBandwidth : idleBandwidth;
+    this.throttler = (initial > 0) ? new ShapingThrottler(initial) : null;
+    datanode.myMetrics.transferBandwidth.set(initial);
+
+    int threads = Math.max(1, conf.getInt("dfs.datanode.transfer.threads", 2));
+    workers = new Daemon[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Daemon(new Runnable() {
+        public void run() {
+          runTransfers();
+        }
+        public String toString() {
+          return "TransferScheduler worker";
+        }
+      });
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Queue the transfer of a block, unless it is already queued or
+   * running.
+   * @param priority the replication priority, 0 being the most urgent
+   * @return true if the transfer was queued
+   */
+  synchronized boolean schedule(Block block, DatanodeInfo[] targets,
+                                int priority) {
+    if (!running || !scheduled.add(block)) {
+      return false;
+    }
+    queue.add(new Transfer(block, targets, priority, nextSeqno++));
+    datanode.myMetrics.transferQueueLength.set(queue.size());
+    notify();
+    return true;
+  }
+
+  /** @return the number of transfers waiting for a worker */
+  synchronized int getQueueLength() {
+    return queue.size();
+  }
+
+  private synchronized Transfer take() throws InterruptedException {
+    while (running && queue.isEmpty()) {
+      wait();
+    }
+    if (!running) {
+      return null;
+    }
+    Transfer t = queue.poll();
+    datanode.myMetrics.transferQueueLength.set(queue.size());
+    return t;
+  }
+
+  private synchronized void done(Transfer t) {
+    scheduled.remove(t.block);
+  }
+
+  private void runTransfers() {
+    while (true) {
+      Transfer t;
+      try {
+        t = take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      if (t == null) {
+        break;
+      }
+      datanode.myMetrics.transferQueueWaitTime.inc(DataNode.now() - t.queuedAt);
+      try {
+        datanode.new DataTransfer(t.targets, t.block, datanode, throttler).run();
+      } catch (Throwable e) {
+        // keep the worker for the other transfers
+        LOG.warn("Failed to transfer block " + t.block, e);
+      } finally {
+        done(t);
+      }
+    }
+  }
+
+  /** Drop the queued transfers and stop the workers */
+  void shutdown() {
+    synchronized (this) {
+      running = false;
+      queue.clear();
+      notifyAll();
+    }
+    for (Daemon worker : workers) {
+      worker.interrupt();
+    }
+  }
+}
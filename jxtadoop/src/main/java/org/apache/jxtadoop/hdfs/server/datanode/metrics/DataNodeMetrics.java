@@ -24,6 +24,8 @@ import org.apache.jxtadoop.metrics.MetricsUtil;
 import org.apache.jxtadoop.metrics.Updater;
 import org.apache.jxtadoop.metrics.jvm.JvmMetrics;
 import org.apache.jxtadoop.metrics.util.MetricsBase;
+import org.apache.jxtadoop.metrics.util.MetricsIntValue;
+import org.apache.jxtadoop.metrics.util.MetricsLongValue;
 import org.apache.jxtadoop.metrics.util.MetricsRegistry;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingLong;
@@ -86,10 +88,60 @@ public class DataNodeMetrics implements Updater {
                 new MetricsTimeVaryingRate("copyBlockOp", registry);
   public MetricsTimeVaryingRate replaceBlockOp = 
                 new MetricsTimeVaryingRate("replaceBlockOp", registry);
+  public MetricsTimeVaryingRate blockReceivedCalls = 
+                    new MetricsTimeVaryingRate("blockReceivedCalls", registry);
+  /** time from the finalization of a block until the namenode knows it */
+  public MetricsTimeVaryingRate blockReceivedDelay = 
+                    new MetricsTimeVaryingRate("blockReceivedDelay", registry);
   public MetricsTimeVaryingRate heartbeats = 
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
                     new MetricsTimeVaryingRate("blockReports", registry);
+  public MetricsTimeVaryingRate blockReportDeltas = 
+                    new MetricsTimeVaryingRate("blockReportDeltas", registry);
+
+  public MetricsLongValue volumeScanTime = 
+                    new MetricsLongValue("volumeScanTime", registry);
+
+  public MetricsTimeVaryingInt blockCacheHits = 
+                    new MetricsTimeVaryingInt("blockCacheHits", registry);
+  public MetricsTimeVaryingInt blockCacheMisses = 
+                    new MetricsTimeVaryingInt("blockCacheMisses", registry);
+  public MetricsTimeVaryingInt blockCacheEvictions = 
+                    new MetricsTimeVaryingInt("blockCacheEvictions", registry);
+  public MetricsLongValue blockCacheUsed = 
+                    new MetricsLongValue("blockCacheUsed", registry);
+
+  public MetricsIntValue xceiverQueueDepth = 
+                    new MetricsIntValue("xceiverQueueDepth", registry);
+  public MetricsTimeVaryingRate xceiverQueueWaitTime = 
+                    new MetricsTimeVaryingRate("xceiverQueueWaitTime", registry);
+  public MetricsTimeVaryingInt xceiversRejected = 
+                    new MetricsTimeVaryingInt("xceivers_rejected", registry);
+
+  /** 0 for pagecache, 1 for finalize and 2 for group, see dfs.datanode.durability */
+  public MetricsIntValue durabilityMode = 
+                    new MetricsIntValue("durabilityMode", registry);
+  public MetricsTimeVaryingRate blockSyncs = 
+                    new MetricsTimeVaryingRate("blockSyncs", registry);
+
+  public MetricsIntValue transferQueueLength = 
+                    new MetricsIntValue("transferQueueLength", registry);
+  public MetricsTimeVaryingRate transferQueueWaitTime = 
+                    new MetricsTimeVaryingRate("transferQueueWaitTime", registry);
+  /** current limit of the replication transfers, 0 if none */
+  public MetricsLongValue transferBandwidth = 
+                    new MetricsLongValue("transferBandwidth", registry);
+
+  /** remote peers with transfer statistics, and how many are slow */
+  public MetricsIntValue trackedPeers = 
+                    new MetricsIntValue("trackedPeers", registry);
+  public MetricsIntValue slowPeers = 
+                    new MetricsIntValue("slowPeers", registry);
+
+  /** bytes not sent or received thanks to packet compression */
+  public MetricsTimeVaryingLong compressionBytesSaved = 
+                    new MetricsTimeVaryingLong("compressionBytesSaved", registry);
 
     
   public DataNodeMetrics(Configuration conf, String storageId) {
@@ -133,6 +185,12 @@ public class DataNodeMetrics implements Updater {
     copyBlockOp.resetMinMax();
     replaceBlockOp.resetMinMax();
     heartbeats.resetMinMax();
+    blockReceivedCalls.resetMinMax();
+    blockReceivedDelay.resetMinMax();
     blockReports.resetMinMax();
+    blockReportDeltas.resetMinMax();
+    xceiverQueueWaitTime.resetMinMax();
+    blockSyncs.resetMinMax();
+    transferQueueWaitTime.resetMinMax();
   }
 }
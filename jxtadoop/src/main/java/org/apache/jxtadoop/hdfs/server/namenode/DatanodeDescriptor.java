@@ -33,10 +33,13 @@ public class DatanodeDescriptor extends DatanodeInfo {
   public static class BlockTargetPair {
     public final Block block;
     public final DatanodeDescriptor[] targets;    
+    /** replication priority, 0 being the most urgent */
+    public final int priority;
 
-    BlockTargetPair(Block block, DatanodeDescriptor[] targets) {
+    BlockTargetPair(Block block, DatanodeDescriptor[] targets, int priority) {
       this.block = block;
       this.targets = targets;
+      this.priority = priority;
     }
   }
 
@@ -48,8 +51,9 @@ public class DatanodeDescriptor extends DatanodeInfo {
     synchronized int size() {return blockq.size();}
 
     /** Enqueue */
-    synchronized boolean offer(Block block, DatanodeDescriptor[] targets) { 
-      return blockq.offer(new BlockTargetPair(block, targets));
+    synchronized boolean offer(Block block, DatanodeDescriptor[] targets,
+                               int priority) { 
+      return blockq.offer(new BlockTargetPair(block, targets, priority));
     }
 
     /** Dequeue */
@@ -78,6 +82,12 @@ public class DatanodeDescriptor extends DatanodeInfo {
   /** A set of blocks to be invalidated by this datanode */
   private Set<Block> invalidateBlocks = new TreeSet<Block>();
 
+  /**
+   * Sequence number of the last block report processed, 0 for a full
+   * report, or -1 if no full report was received since registration.
+   */
+  private long blockReportSeq = -1;
+
   /* Variables for maintaning number of blocks scheduled to be written to
    * this datanode. This count is approximate and might be slightly higger
    * in case of errors (e.g. datanode does not report if an error occurs 
@@ -87,6 +97,9 @@ public class DatanodeDescriptor extends DatanodeInfo {
   private int prevApproxBlocksScheduled = 0;
   private long lastBlocksScheduledRollTime = 0;
   private static final int BLOCKS_SCHEDULED_ROLL_INTERVAL = 600*1000; //10min
+
+  /** When peers last reported this node slow, by reporter peer id */
+  private Map<String, Long> slowReports = null;
   
   /** Default constructor */
   public DatanodeDescriptor() {}
@@ -193,6 +206,24 @@ public class DatanodeDescriptor extends DatanodeInfo {
     this.xceiverCount = 0;
     this.blockList = null;
     this.invalidateBlocks.clear();
+    this.blockReportSeq = -1;
+  }
+
+  long getBlockReportSeq() {
+    return blockReportSeq;
+  }
+
+  void setBlockReportSeq(long seq) {
+    this.blockReportSeq = seq;
+  }
+
+  /**
+   * Check whether a delta report can be applied on top of the reports
+   * already processed: it must follow the last one, or resend it.
+   */
+  boolean isBlockReportDeltaInSequence(long seq) {
+    return blockReportSeq >= 0 &&
+           (seq == blockReportSeq || seq == blockReportSeq + 1);
   }
 
   public int numBlocks() {
@@ -244,10 +275,13 @@ public class DatanodeDescriptor extends DatanodeInfo {
   
   /**
    * Store block replication work.
+   * @param priority the priority of the block in the neededReplications
+   *        queue, 0 being the most urgent
    */
-  void addBlockToBeReplicated(Block block, DatanodeDescriptor[] targets) {
+  void addBlockToBeReplicated(Block block, DatanodeDescriptor[] targets,
+                              int priority) {
     assert(block != null && targets != null && targets.length > 0);
-    replicateBlocks.offer(block, targets);
+    replicateBlocks.offer(block, targets, priority);
   }
 
   /**
@@ -255,7 +289,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
    */
   public void addBlockToBeRecovered(Block block, DatanodeDescriptor[] targets) {
     assert(block != null && targets != null && targets.length > 0);
-    recoverBlocks.offer(block, targets);
+    recoverBlocks.offer(block, targets, 0);
   }
 
   /**
@@ -436,6 +470,36 @@ public class DatanodeDescriptor extends DatanodeInfo {
     // its ok if both counters are zero.
   }
   
+  /**
+   * Record that a peer found this datanode slow to transfer blocks with.
+   */
+  synchronized void addSlowReport(String reporter, long now) {
+    if (slowReports == null) {
+      slowReports = new HashMap<String, Long>();
+    }
+    slowReports.put(reporter, now);
+  }
+
+  /**
+   * @return whether a peer reported this datanode slow within the expiry,
+   *         the older reports are dropped
+   */
+  synchronized boolean isSlow(long now, long expiry) {
+    if (slowReports == null) {
+      return false;
+    }
+    for (Iterator<Long> it = slowReports.values().iterator(); it.hasNext();) {
+      if (now - it.next() > expiry) {
+        it.remove();
+      }
+    }
+    if (slowReports.isEmpty()) {
+      slowReports = null;
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Adjusts curr and prev number of blocks scheduled every few minutes.
    */
@@ -31,6 +31,7 @@ import org.apache.jxtadoop.metrics.MetricsUtil;
 import org.apache.jxtadoop.metrics.MetricsContext;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.QuotaExceededException;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.jxtadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
@@ -172,6 +173,66 @@ class FSDirectory implements FSConstants, Closeable {
     return newNode;
   }
 
+  /**
+   * Add the given tiny file to the fs with its content stored inline
+   * in the namespace. The file is created complete: no lease is taken
+   * and no block is allocated.
+   */
+  INodeFile addInlineFile(String path,
+                          PermissionStatus permissions,
+                          short replication,
+                          long preferredBlockSize,
+                          byte[] data) throws IOException {
+    waitForReady();
+
+    // Always do an implicit mkdirs for parent directory tree.
+    long modTime = FSNamesystem.now();
+    if (!mkdirs(new Path(path).getParent().toString(), permissions, true,
+        modTime)) {
+      return null;
+    }
+    INodeFile newNode = new INodeFile(permissions, 0, replication,
+                                      modTime, modTime, preferredBlockSize);
+    newNode.setInlineData(data);
+    synchronized (rootDir) {
+      newNode = addNode(path, newNode, -1, false);
+    }
+    if (newNode == null) {
+      NameNode.stateChangeLog.info("DIR* FSDirectory.addInlineFile: "
+                                   +"failed to add "+path
+                                   +" to the file system");
+      return null;
+    }
+    fsImage.getEditLog().logAddInlineFile(path, newNode);
+
+    NameNode.stateChangeLog.debug("DIR* FSDirectory.addInlineFile: "
+                                  +path+" is added to the file system with "
+                                  +data.length+" inline bytes");
+    return newNode;
+  }
+
+  /**
+   * Add an inline file while loading the edit log.
+   */
+  INodeFile unprotectedAddInlineFile(String path,
+                                     PermissionStatus permissions,
+                                     short replication,
+                                     long modificationTime,
+                                     long atime,
+                                     long preferredBlockSize,
+                                     byte[] data) {
+    INodeFile newNode = new INodeFile(permissions, 0, replication,
+                              modificationTime, atime, preferredBlockSize);
+    newNode.setInlineData(data);
+    synchronized (rootDir) {
+      try {
+        return addNode(path, newNode, -1, false);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+  }
+
   /**
    */
   INode unprotectedAddFile( String path, 
@@ -218,6 +279,21 @@ class FSDirectory implements FSConstants, Closeable {
                               long nsQuota,
                               long dsQuota,
                               long preferredBlockSize) {
+    return addToParent(src, parentINode, permissions, blocks, replication,
+        modificationTime, atime, nsQuota, dsQuota, preferredBlockSize, null);
+  }
+
+  INodeDirectory addToParent( String src,
+                              INodeDirectory parentINode,
+                              PermissionStatus permissions,
+                              Block[] blocks, 
+                              short replication,
+                              long modificationTime,
+                              long atime,
+                              long nsQuota,
+                              long dsQuota,
+                              long preferredBlockSize,
+                              byte[] inlineData) {
     // NOTE: This does not update space counts for parents
     // create new inode
     INode newNode;
@@ -228,9 +304,11 @@ class FSDirectory implements FSConstants, Closeable {
       } else {
         newNode = new INodeDirectory(permissions, modificationTime);
       }
-    } else 
+    } else {
       newNode = new INodeFile(permissions, blocks.length, replication,
                               modificationTime, atime, preferredBlockSize);
+      ((INodeFile)newNode).setInlineData(inlineData);
+    }
     // add new node to the parent
     INodeDirectory newParent = null;
     synchronized (rootDir) {
@@ -721,6 +799,46 @@ class FSDirectory implements FSConstants, Closeable {
     }
   }
 
+  /**
+   * Get a page of the listing of files given path 'src'.
+   * Only the entries of the page are materialized under the lock.
+   *
+   * @param src the directory name
+   * @param startAfter the name of the entry to start after, 
+   *                   null or empty to start from the beginning
+   * @param limit the maximum number of entries to return
+   * @return a page of the listing, null if src does not exist
+   */
+  DirectoryListing getListing(String src, byte[] startAfter, int limit) {
+    String srcs = normalizePath(src);
+
+    synchronized (rootDir) {
+      INode targetNode = rootDir.getNode(srcs);
+      if (targetNode == null)
+        return null;
+      if (!targetNode.isDirectory()) {
+        return new DirectoryListing(new FileStatus[]{
+            createFileStatus(srcs, targetNode)}, 0);
+      }
+      List<INode> contents = ((INodeDirectory)targetNode).getChildren();
+      int start = 0;
+      if (startAfter != null && startAfter.length > 0) {
+        start = Collections.binarySearch(contents, startAfter);
+        start = (start >= 0) ? start + 1 : -(start + 1);
+      }
+      int numOfListing = Math.min(limit, contents.size() - start);
+      FileStatus listing[] = new FileStatus[numOfListing];
+      if(! srcs.endsWith(Path.SEPARATOR))
+        srcs += Path.SEPARATOR;
+      for (int i = 0; i < numOfListing; i++) {
+        INode cur = contents.get(start + i);
+        listing[i] = createFileStatus(srcs+cur.getLocalName(), cur);
+      }
+      return new DirectoryListing(listing,
+          contents.size() - start - numOfListing);
+    }
+  }
+
   /** Get the file info for a specific file.
    * @param src The string representation of the path to the file
    * @return object containing information regarding the file
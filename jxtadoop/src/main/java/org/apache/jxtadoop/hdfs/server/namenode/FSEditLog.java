@@ -76,6 +76,7 @@ public class FSEditLog {
   private static final byte OP_CLEAR_NS_QUOTA = 12; // clear namespace quota
   private static final byte OP_TIMES = 13; // sets mod & access time on a file
   private static final byte OP_SET_QUOTA = 14; // sets name and disk quotas.
+  private static final byte OP_ADD_INLINE = 15; // create a tiny inline file
   private static int sizeFlushBuffer = 512*1024;
 
   private ArrayList<EditLogOutputStream> editStreams = null;
@@ -496,7 +497,7 @@ public class FSEditLog {
     int numOpAdd = 0, numOpClose = 0, numOpDelete = 0,
         numOpRename = 0, numOpSetRepl = 0, numOpMkDir = 0,
         numOpSetPerm = 0, numOpSetOwner = 0, numOpSetGenStamp = 0,
-        numOpTimes = 0, numOpOther = 0;
+        numOpTimes = 0, numOpAddInline = 0, numOpOther = 0;
     long startTime = FSNamesystem.now();
 
     DataInputStream in = new DataInputStream(new BufferedInputStream(edits));
@@ -784,6 +785,26 @@ public class FSEditLog {
           fsDir.unprotectedSetTimes(path, mtime, atime, true);
           break;
         }
+        case OP_ADD_INLINE: {
+          numOpAddInline++;
+          int length = in.readInt();
+          if (length != 5) {
+            throw new IOException("Incorrect data format. " 
+                                  + "inline file operation.");
+          }
+          path = FSImage.readString(in);
+          short replication = adjustReplication(readShort(in));
+          mtime = readLong(in);
+          atime = readLong(in);
+          blockSize = readLong(in);
+          PermissionStatus permissions = PermissionStatus.read(in);
+          InlineData data = new InlineData();
+          data.readFields(in);
+          fsDir.unprotectedDelete(path, mtime);
+          fsDir.unprotectedAddInlineFile(path, permissions, replication,
+                                         mtime, atime, blockSize, data.bytes);
+          break;
+        }
         default: {
           throw new IOException("Never seen opcode " + opcode);
         }
@@ -804,6 +825,7 @@ public class FSEditLog {
           + " numOpSetOwner = " + numOpSetOwner
           + " numOpSetGenStamp = " + numOpSetGenStamp 
           + " numOpTimes = " + numOpTimes
+          + " numOpAddInline = " + numOpAddInline
           + " numOpOther = " + numOpOther);
     }
 
@@ -1015,6 +1037,23 @@ public class FSEditLog {
             newNode.getPermissionStatus());
   }
   
+  /** 
+   * Add inline file creation record to edit log.
+   * The record carries the whole content of the file.
+   */
+  public void logAddInlineFile(String path, INodeFile newNode) {
+    UTF8 nameReplicationPair[] = new UTF8[] {
+      new UTF8(path),
+      FSEditLog.toLogReplication(newNode.getReplication()),
+      FSEditLog.toLogLong(newNode.getModificationTime()),
+      FSEditLog.toLogLong(newNode.getAccessTime()),
+      FSEditLog.toLogLong(newNode.getPreferredBlockSize())};
+    logEdit(OP_ADD_INLINE,
+            new ArrayWritable(UTF8.class, nameReplicationPair),
+            newNode.getPermissionStatus(),
+            new InlineData(newNode.getInlineData()));
+  }
+
   /** 
    * Add create directory record to edit log
    */
@@ -1262,6 +1301,38 @@ public class FSEditLog {
     }
   }
 
+  /**
+   * The content of an inline file, written as a length
+   * followed by the raw bytes.
+   */
+  static class InlineData implements Writable {
+    byte[] bytes;
+
+    InlineData() {
+      bytes = new byte[0];
+    }
+
+    InlineData(byte[] bytes) {
+      this.bytes = bytes;
+    }
+    /////////////////////////////////////
+    // Writable
+    /////////////////////////////////////
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      int len = in.readInt();
+      if (len < 0) {
+        throw new IOException("Incorrect inline data length " + len);
+      }
+      this.bytes = new byte[len];
+      in.readFully(this.bytes);
+    }
+  }
+
   /** This method is defined for compatibility reason. */
   static private DatanodeDescriptor[] readDatanodeDescriptorArray(DataInput in
       ) throws IOException {
@@ -890,6 +890,15 @@ public class FSImage extends Storage {
         }
         int numBlocks = in.readInt();
         Block blocks[] = null;
+        byte[] inlineData = null;
+
+        // a blocklist of size -2 indicates a file stored inline
+        if (imgVersion <= -19 && numBlocks == -2) {
+          inlineData = new byte[in.readInt()];
+          in.readFully(inlineData);
+          blocks = new Block[0];
+          numBlocks = 0;
+        }
 
         // for older versions, a blocklist of size 0
         // indicates a directory.
@@ -950,7 +959,8 @@ public class FSImage extends Storage {
         // add new inode
         parentINode = fsDir.addToParent(path, parentINode, permissions,
                                         blocks, replication, modificationTime, 
-                                        atime, nsQuota, dsQuota, blockSize);
+                                        atime, nsQuota, dsQuota, blockSize,
+                                        inlineData);
       }
       
       // load datanode info
@@ -1127,10 +1137,17 @@ public class FSImage extends Storage {
       out.writeLong(fileINode.getModificationTime());
       out.writeLong(fileINode.getAccessTime());
       out.writeLong(fileINode.getPreferredBlockSize());
-      Block[] blocks = fileINode.getBlocks();
-      out.writeInt(blocks.length);
-      for (Block blk : blocks)
-        blk.write(out);
+      if (fileINode.isInline()) {
+        byte[] data = fileINode.getInlineData();
+        out.writeInt(-2);  // # of blocks for an inline file
+        out.writeInt(data.length);
+        out.write(data);
+      } else {
+        Block[] blocks = fileINode.getBlocks();
+        out.writeInt(blocks.length);
+        for (Block blk : blocks)
+          blk.write(out);
+      }
       FILE_PERM.fromShort(fileINode.getFsPermissionShort());
       PermissionStatus.write(out, fileINode.getUserName(),
                              fileINode.getGroupName(),
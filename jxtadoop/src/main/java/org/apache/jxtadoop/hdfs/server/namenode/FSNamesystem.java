@@ -29,9 +29,13 @@ import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.protocol.LocatedDirectoryListing;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperation;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperationResult;
 import org.apache.jxtadoop.hdfs.protocol.UnregisteredDatanodeException;
 import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
@@ -51,6 +55,7 @@ import org.apache.jxtadoop.metrics.util.MBeanUtil;
 import org.apache.jxtadoop.net.CachedDNSToSwitchMapping;
 import org.apache.jxtadoop.net.DNSToSwitchMapping;
 import org.apache.jxtadoop.net.NetworkTopology;
+import org.apache.jxtadoop.net.Node;
 import org.apache.jxtadoop.net.ScriptBasedMapping;
 import org.apache.jxtadoop.hdfs.server.namenode.LeaseManager.Lease;
 import org.apache.jxtadoop.hdfs.server.namenode.UnderReplicatedBlocks.BlockIterator;
@@ -259,12 +264,21 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   // heartbeatExpireInterval is how long namenode waits for datanode to report
   // heartbeat
   private long heartbeatExpireInterval;
+  // how long a datanode reported slow by a peer is avoided
+  private long slowReportExpiry;
+  // the datanodes reported slow, some of them maybe no longer
+  private final Set<DatanodeDescriptor> slowDatanodes =
+    new HashSet<DatanodeDescriptor>();
   //replicationRecheckInterval is how often namenode checks for new replication work
   private long replicationRecheckInterval;
   // default block size of a file
   private long defaultBlockSize = 0;
   // allow appending to hdfs files
   private boolean supportAppends = true;
+  // largest file content that may be stored inline in the namespace
+  private int inlineMaxSize = 4096;
+  // largest number of entries returned by a page of directory listing
+  private int lsLimit = 1000;
 
   /**
    * Last block index used for replication work.
@@ -451,6 +465,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     //this.heartbeatExpireInterval = 2 * heartbeatRecheckInterval +
     //  10 * heartbeatInterval;
     this.heartbeatExpireInterval = 2 * heartbeatRecheckInterval + 4 * heartbeatInterval;
+    // reporters repeat their reports with every heartbeat
+    this.slowReportExpiry = 3 * heartbeatInterval;
     this.replicationRecheckInterval = 
       conf.getInt("dfs.replication.interval", P2PConstants.DEFAULT_DFS_REPLICATION) * 1000L;
     this.defaultBlockSize = conf.getLong("dfs.block.size", P2PConstants.DEFAULT_BLOCK_SIZE);
@@ -459,6 +475,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
                                          20*(int)(heartbeatInterval/1000));
     this.accessTimePrecision = conf.getLong("dfs.access.time.precision", 0);
     this.supportAppends = conf.getBoolean("dfs.support.append", false);
+    this.inlineMaxSize = conf.getInt("dfs.namenode.inline.max.size", 4096);
+    this.lsLimit = Math.max(1, conf.getInt("dfs.ls.limit", 1000));
   }
 
   /**
@@ -700,8 +718,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    */
   public synchronized void setPermission(String src, FsPermission permission
       ) throws IOException {
-    checkOwner(src);
-    dir.setPermission(src, permission);
+    setPermissionInternal(src, permission);
     getEditLog().logSync();
     if (auditLog.isInfoEnabled()) {
       final FileStatus stat = dir.getFileInfo(src);
@@ -717,6 +734,24 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    */
   public synchronized void setOwner(String src, String username, String group
       ) throws IOException {
+    setOwnerInternal(src, username, group);
+    getEditLog().logSync();
+    if (auditLog.isInfoEnabled()) {
+      final FileStatus stat = dir.getFileInfo(src);
+      logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                    Server.getRemotePeerID(),
+                    "setOwner", src, null, stat);
+    }
+  }
+
+  private synchronized void setPermissionInternal(String src,
+      FsPermission permission) throws IOException {
+    checkOwner(src);
+    dir.setPermission(src, permission);
+  }
+
+  private synchronized void setOwnerInternal(String src, String username,
+      String group) throws IOException {
     PermissionChecker pc = checkOwner(src);
     if (!pc.isSuper) {
       if (username != null && !pc.user.equals(username)) {
@@ -728,12 +763,78 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       }
     }
     dir.setOwner(src, username, group);
-    getEditLog().logSync();
+  }
+
+  /**
+   * Run a batch of namespace operations under a single acquisition
+   * of the namesystem lock, then sync the edit log once.
+   * 
+   * @see ClientProtocol#batch(NamespaceOperation[])
+   */
+  NamespaceOperationResult[] batch(NamespaceOperation[] ops)
+      throws IOException {
+    NamespaceOperationResult[] results = new NamespaceOperationResult[ops.length];
+    boolean mutated = false;
+    synchronized (this) {
+      for (int i = 0; i < ops.length; i++) {
+        NamespaceOperation op = ops[i];
+        try {
+          results[i] = new NamespaceOperationResult(applyOperation(op));
+          mutated |= op.isMutation();
+        } catch (IOException e) {
+          results[i] = new NamespaceOperationResult(e);
+        }
+      }
+    }
+    if (mutated) {
+      getEditLog().logSync();
+    }
     if (auditLog.isInfoEnabled()) {
-      final FileStatus stat = dir.getFileInfo(src);
-      logAuditEvent(UserGroupInformation.getCurrentUGI(),
-                    Server.getRemotePeerID(),
-                    "setOwner", src, null, stat);
+      for (int i = 0; i < ops.length; i++) {
+        if (ops[i].isMutation() && !results[i].isError()) {
+          final FileStatus stat = dir.getFileInfo(ops[i].getSrc());
+          logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                        Server.getRemotePeerID(),
+                        auditCommand(ops[i]), ops[i].getSrc(), null, stat);
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Apply one operation of a batch without syncing the edit log.
+   * @return the file status for {@link NamespaceOperation.Type#GET_FILE_INFO},
+   *         null otherwise
+   */
+  private FileStatus applyOperation(NamespaceOperation op) throws IOException {
+    String src = op.getSrc();
+    switch (op.getType()) {
+    case GET_FILE_INFO:
+      return getFileInfo(src);
+    case SET_PERMISSION:
+      setPermissionInternal(src, op.getPermission());
+      return null;
+    case SET_OWNER:
+      if (op.getUsername() == null && op.getGroupname() == null) {
+        throw new IOException("username == null && groupname == null");
+      }
+      setOwnerInternal(src, op.getUsername(), op.getGroupname());
+      return null;
+    case SET_TIMES:
+      setTimesInternal(src, op.getModificationTime(), op.getAccessTime());
+      return null;
+    default:
+      throw new IOException("Unsupported namespace operation " + op);
+    }
+  }
+
+  private static String auditCommand(NamespaceOperation op) {
+    switch (op.getType()) {
+    case SET_PERMISSION: return "setPermission";
+    case SET_OWNER:      return "setOwner";
+    case SET_TIMES:      return "setTimes";
+    default:             return "getfileinfo";
     }
   }
 
@@ -753,13 +854,64 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       //sort the blocks
       DatanodeDescriptor client = host2DataNodeMap.getDatanodeByHost(
           clientMachine);
+      long now = now();
       for (LocatedBlock b : blocks.getLocatedBlocks()) {
         clusterMap.pseudoSortByDistance(client, b.getLocations());
+        moveSlowNodesLast(b.getLocations(), now);
       }
     }
     return blocks;
   }
 
+  /**
+   * Move the datanodes that peers reported slow to the end of the list,
+   * keeping the order of the others, so that clients try them last.
+   */
+  private void moveSlowNodesLast(DatanodeInfo[] nodes, long now) {
+    synchronized (slowDatanodes) {
+      if (slowDatanodes.isEmpty()) {
+        return;
+      }
+    }
+    int fast = 0;
+    DatanodeInfo[] slow = null;
+    int numSlow = 0;
+    for (DatanodeInfo node : nodes) {
+      if (node instanceof DatanodeDescriptor &&
+          ((DatanodeDescriptor)node).isSlow(now, slowReportExpiry)) {
+        if (slow == null) {
+          slow = new DatanodeInfo[nodes.length];
+        }
+        slow[numSlow++] = node;
+      } else {
+        nodes[fast++] = node;
+      }
+    }
+    if (numSlow > 0) {
+      System.arraycopy(slow, 0, nodes, fast, numSlow);
+    }
+  }
+
+  /**
+   * @return the datanodes that peers reported slow recently
+   */
+  List<DatanodeDescriptor> getSlowDatanodes() {
+    List<DatanodeDescriptor> slow = new ArrayList<DatanodeDescriptor>();
+    long now = now();
+    synchronized (slowDatanodes) {
+      for (Iterator<DatanodeDescriptor> it = slowDatanodes.iterator();
+           it.hasNext();) {
+        DatanodeDescriptor node = it.next();
+        if (node.isSlow(now, slowReportExpiry)) {
+          slow.add(node);
+        } else {
+          it.remove();
+        }
+      }
+    }
+    return slow;
+  }
+
   /**
    * Get block locations within the specified range.
    * @see ClientProtocol#getBlockLocations(String, long, long)
@@ -872,6 +1024,17 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * written to the edits log but is not flushed.
    */
   public synchronized void setTimes(String src, long mtime, long atime) throws IOException {
+    setTimesInternal(src, mtime, atime);
+    if (auditLog.isInfoEnabled()) {
+      final FileStatus stat = dir.getFileInfo(src);
+      logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                    Server.getRemotePeerID(),
+                    "setTimes", src, null, stat);
+    }
+  }
+
+  private synchronized void setTimesInternal(String src, long mtime, long atime)
+      throws IOException {
     if (!isAccessTimeSupported() && atime != -1) {
       throw new IOException("Access time for hdfs is not configured. " +
                             " Please set dfs.support.accessTime configuration parameter.");
@@ -884,12 +1047,6 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     INodeFile inode = dir.getFileINode(src);
     if (inode != null) {
       dir.setTimes(src, inode, mtime, atime, true);
-      if (auditLog.isInfoEnabled()) {
-        final FileStatus stat = dir.getFileInfo(src);
-        logAuditEvent(UserGroupInformation.getCurrentUGI(),
-                      Server.getRemotePeerID(),
-                      "setTimes", src, null, stat);
-      }
     } else {
       throw new FileNotFoundException("File " + src + " does not exist.");
     }
@@ -1007,6 +1164,45 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     }
   }
 
+  /**
+   * Create a complete tiny file whose content is stored inline in the
+   * namespace rather than in a block on the datanodes.
+   * 
+   * @see ClientProtocol#createInline(String, FsPermission, String, boolean, short, long, byte[])
+   */
+  void createInlineFile(String src, PermissionStatus permissions,
+                        String holder, String clientMachine,
+                        boolean overwrite, short replication, long blockSize,
+                        byte[] data) throws IOException {
+    if (data == null || data.length > inlineMaxSize) {
+      throw new IOException("failed to create inline file " + src
+                            + ": content size must not exceed "
+                            + inlineMaxSize + " bytes");
+    }
+    startFileInternal(src, permissions, holder, clientMachine, overwrite, false,
+                      replication, blockSize, data);
+    getEditLog().logSync();
+    if (auditLog.isInfoEnabled()) {
+      final FileStatus stat = dir.getFileInfo(src);
+      logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                    Server.getRemotePeerID(),
+                    "create", src, null, stat);
+    }
+  }
+
+  private void startFileInternal(String src,
+                                 PermissionStatus permissions,
+                                 String holder, 
+                                 String clientMachine, 
+                                 boolean overwrite,
+                                 boolean append,
+                                 short replication,
+                                 long blockSize
+                                 ) throws IOException {
+    startFileInternal(src, permissions, holder, clientMachine, overwrite,
+                      append, replication, blockSize, null);
+  }
+
   private synchronized void startFileInternal(String src,
                                               PermissionStatus permissions,
                                               String holder, 
@@ -1014,7 +1210,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
                                               boolean overwrite,
                                               boolean append,
                                               short replication,
-                                              long blockSize
+                                              long blockSize,
+                                              byte[] inlineData
                                               ) throws IOException {
     if (NameNode.stateChangeLog.isDebugEnabled()) {
       NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: src=" + src
@@ -1102,6 +1299,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
         } else if (myFile.isDirectory()) {
           throw new IOException("failed to append to directory " + src 
                                 +" on client " + clientMachine);
+        } else if (((INodeFile)myFile).isInline()) {
+          throw new IOException("failed to append to inline file " + src
+                                +" on client " + clientMachine);
         }
       } else if (!dir.isValidToCreate(src)) {
         if (overwrite) {
@@ -1141,6 +1341,17 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
        //
        checkFsObjectLimit();
 
+        if (inlineData != null) {
+          // An inline file is complete as soon as it is created,
+          // so it needs neither a generation stamp nor a lease.
+          if (dir.addInlineFile(src, permissions, replication, blockSize,
+                                inlineData) == null) {
+            throw new IOException("DIR* NameSystem.startFile: " +
+                                  "Unable to add inline file to namespace.");
+          }
+          return;
+        }
+
         // increment global generation stamp
         long genstamp = nextGenerationStamp();
         INodeFileUnderConstruction newNode = dir.addFile(src, permissions,
@@ -1255,6 +1466,17 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   public LocatedBlock getAdditionalBlock(String src, 
                                          String clientName, String localDatanode
                                          ) throws IOException {
+    return getAdditionalBlock(src, clientName, localDatanode, null);
+  }
+
+  /**
+   * Same as {@link #getAdditionalBlock(String, String, String)}, the targets
+   * are chosen outside of <i>excludedNodes</i>.
+   */
+  public LocatedBlock getAdditionalBlock(String src, 
+                                         String clientName, String localDatanode,
+                                         List<Node> excludedNodes
+                                         ) throws IOException {
     long fileLength, blockSize;
     int replication;
     DatanodeDescriptor clientNode = null;
@@ -1288,7 +1510,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     // choose targets for the new block tobe allocated.
     DatanodeDescriptor targets[] = replicator.chooseTarget(replication,
                                                            clientNode,
-                                                           null,
+                                                           excludedNodes,
                                                            blockSize, localDatanode);
     if (targets.length < this.minReplication) {
       throw new IOException("File " + src + " could only be replicated to " +
@@ -2021,6 +2243,78 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return dir.getListing(src);
   }
 
+  /**
+   * Get a page of the listing of all files at 'src', starting after
+   * the entry named <code>startAfter</code>.
+   */
+  public DirectoryListing getListing(String src, byte[] startAfter, int limit)
+      throws IOException {
+    if (isPermissionEnabled) {
+      if (dir.isDir(src)) {
+        checkPathAccess(src, FsAction.READ_EXECUTE);
+      }
+      else {
+        checkTraverse(src);
+      }
+    }
+    if (auditLog.isInfoEnabled() && (startAfter == null || startAfter.length == 0)) {
+      logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                    Server.getRemotePeerID(),
+                    "listStatus", src, null, null);
+    }
+    if (limit <= 0 || limit > lsLimit) {
+      limit = lsLimit;
+    }
+    return dir.getListing(src, startAfter, limit);
+  }
+
+  /**
+   * Get a page of the listing of all files at 'src' along with the
+   * block locations of each file, sorted by distance to the client.
+   * The page and its locations are built under one acquisition of the
+   * namesystem lock so that they are consistent with each other.
+   */
+  LocatedDirectoryListing getLocatedListing(String clientMachine, String src,
+      byte[] startAfter, int limit) throws IOException {
+    if (limit <= 0 || limit > lsLimit) {
+      limit = lsLimit;
+    }
+    LocatedDirectoryListing located;
+    synchronized (this) {
+      DirectoryListing listing = getListing(src, startAfter, limit);
+      if (listing == null) {
+        return null;
+      }
+      FileStatus[] stats = listing.getPartialListing();
+      LocatedBlocks[] blocks = new LocatedBlocks[stats.length];
+      DatanodeDescriptor client = host2DataNodeMap.getDatanodeByHost(
+          clientMachine);
+      for (int i = 0; i < stats.length; i++) {
+        if (stats[i].isDir()) {
+          continue;
+        }
+        String path = stats[i].getPath().toString();
+        if (isPermissionEnabled) {
+          try {
+            checkPathAccess(path, FsAction.READ);
+          } catch (AccessControlException e) {
+            continue; // list the file without its locations
+          }
+        }
+        blocks[i] = getBlockLocationsInternal(path, dir.getFileINode(path),
+            0, stats[i].getLen(), Integer.MAX_VALUE, false);
+        if (blocks[i] != null) {
+          for (LocatedBlock b : blocks[i].getLocatedBlocks()) {
+            clusterMap.pseudoSortByDistance(client, b.getLocations());
+          }
+        }
+      }
+      located = new LocatedDirectoryListing(stats, blocks,
+                                            listing.getRemainingEntries());
+    }
+    return located;
+  }
+
   /////////////////////////////////////////////////////////
   //
   // These methods are called by datanodes
@@ -2117,6 +2411,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       clusterMap.remove(nodeS);
       nodeS.updateRegInfo(nodeReg);
       nodeS.setHostName(nodeReg.getPeerId());
+      // the datanode starts over with a full block report
+      nodeS.setBlockReportSeq(-1);
       
       // resolve network location
       resolveNetworkLocation(nodeS);
@@ -2239,7 +2535,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    */
   DatanodeCommand[] handleHeartbeat(DatanodeRegistration nodeReg,
       long capacity, long dfsUsed, long remaining,
-      int xceiverCount, int xmitsInProgress) throws IOException {
+      int xceiverCount, int xmitsInProgress, String[] slowPeers)
+      throws IOException {
     DatanodeCommand cmd = null;
     synchronized (heartbeats) {
       synchronized (datanodeMap) {
@@ -2263,6 +2560,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
         updateStats(nodeinfo, false);
         nodeinfo.updateHeartbeat(capacity, dfsUsed, remaining, xceiverCount);
         updateStats(nodeinfo, true);
+        addSlowReports(nodeinfo, slowPeers);
         
         //check lease recovery
         cmd = nodeinfo.getLeaseRecoveryCommand(Integer.MAX_VALUE);
@@ -2296,6 +2594,26 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return null;
   }
 
+  /**
+   * Record the datanodes a datanode found slow. Peers that are not
+   * datanodes, such as clients, are ignored.
+   */
+  private void addSlowReports(DatanodeDescriptor reporter, String[] slowPeers) {
+    if (slowPeers == null || slowPeers.length == 0) {
+      return;
+    }
+    long now = now();
+    for (String peerId : slowPeers) {
+      DatanodeDescriptor node = host2DataNodeMap.getDatanodeByHost(peerId);
+      if (node != null && node != reporter) {
+        node.addSlowReport(reporter.getPeerId(), now);
+        synchronized (slowDatanodes) {
+          slowDatanodes.add(node);
+        }
+      }
+    }
+  }
+
   private void updateStats(DatanodeDescriptor node, boolean isAdded) {
     //
     // The statistics are protected by the heartbeat lock
@@ -2578,7 +2896,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
         }
 
         // Add block to the to be replicated list
-        srcNode.addBlockToBeReplicated(block, targets);
+        srcNode.addBlockToBeReplicated(block, targets, priority);
 
         for (DatanodeDescriptor dn : targets) {
           dn.incBlocksScheduled();
@@ -2800,6 +3118,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     }
     unprotectedRemoveDatanode(nodeInfo);
     clusterMap.remove(nodeInfo);
+    synchronized (slowDatanodes) {
+      slowDatanodes.remove(nodeInfo);
+    }
   }
 
   void unprotectedRemoveDatanode(DatanodeDescriptor nodeDescr) {
@@ -2942,9 +3263,82 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
           + " does not belong to any file.");
       addToInvalidates(b, node);
     }
+    node.setBlockReportSeq(0);
     NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
   }
 
+  /**
+   * The given node is reporting the blocks it added, changed or removed
+   * since its last block report. Only these blocks are looked up, the
+   * rest of the node's blocks are left as they are.
+   * @return false if the delta does not follow the last report processed,
+   *         in which case nothing is changed and a full report is needed
+   */
+  public synchronized boolean processDeltaReport(DatanodeID nodeID, long seq,
+                                                 BlockListAsLongs added,
+                                                 BlockListAsLongs removed
+                                                ) throws IOException {
+    long startTime = now();
+    if (NameNode.stateChangeLog.isDebugEnabled()) {
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.processDeltaReport: "
+                             + "from " + nodeID.getPeerId() + " seq " + seq
+                             + ", " + added.getNumberOfBlocks() + " added, "
+                             + removed.getNumberOfBlocks() + " removed");
+    }
+    DatanodeDescriptor node = getDatanode(nodeID);
+    if (node == null) {
+      throw new IOException("ProcessDeltaReport from unregisterted node: "
+                            + nodeID.getPeerId());
+    }
+
+    // Check if this datanode should actually be shutdown instead.
+    if (shouldNodeShutdown(node)) {
+      setDatanodeDead(node);
+      throw new DisallowedDatanodeException(node);
+    }
+
+    if (!node.isBlockReportDeltaInSequence(seq)) {
+      NameNode.stateChangeLog.info("BLOCK* NameSystem.processDeltaReport: "
+          + "delta " + seq + " from " + node.getName() + " does not follow "
+          + "report " + node.getBlockReportSeq() + ", asking for a full report");
+      NameNode.getNameNodeMetrics().blockReportDeltaRejected.inc();
+      return false;
+    }
+
+    Block iblk = new Block();
+    for (int i = 0; i < removed.getNumberOfBlocks(); i++) {
+      iblk.set(removed.getBlockId(i), removed.getBlockLen(i),
+               removed.getBlockGenStamp(i));
+      BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+      if (storedBlock != null) {
+        removeStoredBlock(storedBlock, node);
+      }
+    }
+    for (int i = 0; i < added.getNumberOfBlocks(); i++) {
+      iblk.set(added.getBlockId(i), added.getBlockLen(i),
+               added.getBlockGenStamp(i));
+      BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+      if (storedBlock == null) {
+        // If block is not in blocksMap it does not belong to any file
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.processDeltaReport: "
+            + "block " + iblk + " on " + node.getName() + " size "
+            + iblk.getNumBytes() + " does not belong to any file.");
+        addToInvalidates(new Block(iblk), node);
+      } else if (storedBlock.findDatanode(node) < 0) {
+        // same as in a full report, see DatanodeDescriptor.reportDiff
+        addStoredBlock(storedBlock.getNumBytes() != iblk.getNumBytes() ?
+                       new Block(iblk) : storedBlock, node, null);
+      } else if (storedBlock.getNumBytes() != iblk.getNumBytes()) {
+        // a changed replica, let addStoredBlock reconcile the length
+        addStoredBlock(new Block(iblk), node, null);
+      }
+    }
+    node.setBlockReportSeq(seq);
+    NameNode.getNameNodeMetrics().blockReportDelta.inc(
+        (int) (now() - startTime));
+    return true;
+  }
+
   /**
    * Modify (block-->datanode) map.  Remove block from set of 
    * needed replications if this takes care of the problem.
@@ -24,6 +24,8 @@ import org.apache.jxtadoop.fs.permission.FsAction;
 import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.fs.permission.PermissionStatus;
 import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
+import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.jxtadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
 
 class INodeFile extends INode {
@@ -32,6 +34,8 @@ class INodeFile extends INode {
   protected BlockInfo blocks[] = null;
   protected short blockReplication;
   protected long preferredBlockSize;
+  /** File content kept in the namespace for tiny files, null otherwise */
+  protected byte[] inlineData = null;
 
   INodeFile(PermissionStatus permissions,
             int nrBlocks, short replication, long modificationTime,
@@ -80,6 +84,25 @@ class INodeFile extends INode {
     this.blockReplication = replication;
   }
 
+  /**
+   * Is the content of this file stored inline in the namespace?
+   */
+  boolean isInline() {
+    return inlineData != null;
+  }
+
+  /**
+   * Get the inline content of this file, or null if the file
+   * is stored in blocks.
+   */
+  byte[] getInlineData() {
+    return inlineData;
+  }
+
+  void setInlineData(byte[] data) {
+    this.inlineData = data;
+  }
+
   /**
    * Get file blocks 
    * @return file blocks
@@ -117,6 +140,7 @@ class INodeFile extends INode {
       v.add(blk);
     }
     blocks = null;
+    inlineData = null;
     return 1;
   }
 
@@ -126,6 +150,9 @@ class INodeFile extends INode {
     for(Block blk : blocks) {
       bytes += blk.getNumBytes();
     }
+    if (inlineData != null) {
+      bytes += inlineData.length;
+    }
     summary[0] += bytes;
     summary[1]++;
     summary[3] += diskspaceConsumed();
@@ -159,9 +186,19 @@ class INodeFile extends INode {
         isUnderConstruction()) {
       size += preferredBlockSize - blocks[blocks.length-1].getNumBytes();
     }
+    if (inlineData != null) {
+      size += inlineData.length;
+    }
     return size * blockReplication;
   }
   
+  @Override
+  LocatedBlocks createLocatedBlocks(List<LocatedBlock> blocks) {
+    LocatedBlocks located = super.createLocatedBlocks(blocks);
+    located.setInlineData(inlineData);
+    return located;
+  }
+
   /**
    * Get the preferred block size of the file.
    * @return the number of bytes
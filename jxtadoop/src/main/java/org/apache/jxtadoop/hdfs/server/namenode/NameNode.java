@@ -40,9 +40,13 @@ import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.jxtadoop.hdfs.protocol.ClientProtocol;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.protocol.LocatedDirectoryListing;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperation;
+import org.apache.jxtadoop.hdfs.protocol.NamespaceOperationResult;
 import org.apache.jxtadoop.hdfs.protocol.UnregisteredDatanodeException;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.jxtadoop.hdfs.server.common.IncorrectVersionException;
@@ -61,6 +65,7 @@ import org.apache.jxtadoop.ipc.Server;
 import org.apache.jxtadoop.util.ReflectionUtils;
 import org.apache.jxtadoop.util.StringUtils;
 import org.apache.jxtadoop.net.NetworkTopology;
+import org.apache.jxtadoop.net.Node;
 import org.apache.jxtadoop.security.SecurityUtil;
 import org.apache.jxtadoop.security.UserGroupInformation;
 import org.apache.jxtadoop.security.authorize.AuthorizationException;
@@ -71,9 +76,12 @@ import org.apache.jxtadoop.security.authorize.ServiceAuthorizationManager;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EventObject;
 import java.util.Iterator;
+import java.util.List;
 
 /**********************************************************
  * NameNode serves as both directory namespace manager and
@@ -371,6 +379,32 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     myMetrics.numCreateFileOps.inc();
   }
 
+  /** {@inheritDoc} */
+  public void createInline(String src, 
+                           FsPermission masked,
+                           String clientName, 
+                           boolean overwrite,
+                           short replication,
+                           long blockSize,
+                           byte[] data
+                           ) throws IOException {
+    String clientMachine = getClientMachine();
+    if (stateChangeLog.isDebugEnabled()) {
+      stateChangeLog.debug("*DIR* NameNode.createInline: file "
+                         +src+" for "+clientName+" at "+clientMachine);
+    }
+    if (!checkPathLength(src)) {
+      throw new IOException("createInline: Pathname too long.  Limit " 
+                            + MAX_PATH_LENGTH + " characters, " + MAX_PATH_DEPTH + " levels.");
+    }
+    namesystem.createInlineFile(src,
+        new PermissionStatus(UserGroupInformation.getCurrentUGI().getUserName(),
+            null, masked),
+        clientName, clientMachine, overwrite, replication, blockSize, data);
+    myMetrics.numFilesCreated.inc();
+    myMetrics.numCreateFileOps.inc();
+  }
+
   /** {@inheritDoc} */
   public LocatedBlock append(String src, String clientName) throws IOException {
     String clientMachine = getClientMachine();
@@ -411,10 +445,20 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
   
   public LocatedBlock addBlock(String src, 
           String clientName, String localDatanode) throws IOException {
+    return addBlock(src, clientName, localDatanode, null);
+  }
+
+  public LocatedBlock addBlock(String src, String clientName,
+          String localDatanode, DatanodeInfo[] excludedNodes) throws IOException {
 			stateChangeLog.debug("*BLOCK* NameNode.addBlock: file "
 			    +src+" for "+clientName);
 			
-			LocatedBlock locatedBlock = namesystem.getAdditionalBlock(src, clientName,localDatanode);
+			List<Node> excludedNodeList = null;
+			if (excludedNodes != null && excludedNodes.length > 0) {
+			  excludedNodeList = new ArrayList<Node>(Arrays.asList(excludedNodes));
+			}
+			LocatedBlock locatedBlock = namesystem.getAdditionalBlock(src, clientName,
+			    localDatanode, excludedNodeList);
 			if (locatedBlock != null)
 			myMetrics.numAddBlockOps.inc();
 			
@@ -556,6 +600,28 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return files;
   }
 
+  /** {@inheritDoc} */
+  public DirectoryListing getListing(String src, byte[] startAfter, int limit)
+      throws IOException {
+    DirectoryListing files = namesystem.getListing(src, startAfter, limit);
+    if (files != null) {
+      myMetrics.numGetListingOps.inc();
+    }
+    return files;
+  }
+
+  /** {@inheritDoc} */
+  public LocatedDirectoryListing getLocatedListing(String src,
+      byte[] startAfter, int limit) throws IOException {
+    LocatedDirectoryListing files = namesystem.getLocatedListing(
+        getClientMachine(), src, startAfter, limit);
+    if (files != null) {
+      myMetrics.numGetListingOps.inc();
+      myMetrics.numGetBlockLocations.inc(files.getPartialListing().length);
+    }
+    return files;
+  }
+
   /**
    * Get the file info for a specific file.
    * @param src The string representation of the path to the file
@@ -672,6 +738,24 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     namesystem.setTimes(src, mtime, atime);
   }
 
+  /** {@inheritDoc} */
+  public NamespaceOperationResult[] batch(NamespaceOperation[] ops)
+      throws IOException {
+    if (stateChangeLog.isDebugEnabled()) {
+      stateChangeLog.debug("*DIR* NameNode.batch: " + ops.length
+                           + " operations");
+    }
+    for (NamespaceOperation op : ops) {
+      if (!checkPathLength(op.getSrc())) {
+        throw new IOException("batch: Pathname too long.  Limit " 
+            + MAX_PATH_LENGTH + " characters, " + MAX_PATH_DEPTH + " levels.");
+      }
+    }
+    myMetrics.numBatchOps.inc();
+    myMetrics.numBatchedOperations.inc(ops.length);
+    return namesystem.batch(ops);
+  }
+
   ////////////////////////////////////////////////////////////////
   // DatanodeProtocol
   ////////////////////////////////////////////////////////////////
@@ -695,16 +779,16 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
                                        long dfsUsed,
                                        long remaining,
                                        int xmitsInProgress,
-                                       int xceiverCount) throws IOException {
+                                       int xceiverCount,
+                                       String[] slowPeers) throws IOException {
     verifyRequest(nodeReg);
     return namesystem.handleHeartbeat(nodeReg, capacity, dfsUsed, remaining,
-        xceiverCount, xmitsInProgress);
+        xceiverCount, xmitsInProgress, slowPeers);
   }
 
   public DatanodeCommand blockReport(DatanodeRegistration nodeReg,
-                                     long[] blocks) throws IOException {
+                                     BlockListAsLongs blist) throws IOException {
     verifyRequest(nodeReg);
-    BlockListAsLongs blist = new BlockListAsLongs(blocks);
     stateChangeLog.debug("*BLOCK* NameNode.blockReport: "
            +"from "+nodeReg.getPeerId()+" "+blist.getNumberOfBlocks() +" blocks");
 
@@ -714,6 +798,22 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return null;
   }
 
+  public DatanodeCommand blockReportDelta(DatanodeRegistration nodeReg,
+                                          long seq, BlockListAsLongs addedList,
+                                          BlockListAsLongs removedList) throws IOException {
+    verifyRequest(nodeReg);
+    stateChangeLog.debug("*BLOCK* NameNode.blockReportDelta: "
+           +"from "+nodeReg.getPeerId()+" seq "+seq+", "
+           +addedList.getNumberOfBlocks()+" added, "
+           +removedList.getNumberOfBlocks()+" removed");
+
+    if (!namesystem.processDeltaReport(nodeReg, seq, addedList, removedList))
+      return DatanodeCommand.BLOCKREPORT;
+    if (getFSImage().isUpgradeFinalized())
+      return DatanodeCommand.FINALIZE;
+    return null;
+  }
+
   public void blockReceived(DatanodeRegistration nodeReg, 
                             Block blocks[],
                             String delHints[]) throws IOException {
@@ -92,7 +92,7 @@ class ReplicationTargetChooser {
     	Host2NodesMap map = fs.getHost2DataNodeMap();
     	DatanodeDescriptor localdn = map.getDatanodeByHost(localDatanode);
     	
-    	if(localdn != null) {
+    	if(localdn != null && !excludedNodes.contains(localdn)) {
     		LOG.debug("Local datanode has been found in the map and is added to the choosen list");
     		choosenDns.add(localdn);
     		return choosenDns.toArray(new DatanodeDescriptor[choosenDns.size()]);
@@ -152,9 +152,32 @@ class ReplicationTargetChooser {
     if (!clusterMap.contains(writer)) {
       writer=null;
     }
+
+    // avoid the datanodes that peers reported slow, but the writer
+    List<Node> avoided = new ArrayList<Node>();
+    for (DatanodeDescriptor node : getSlowDatanodes()) {
+      if (node != writer && !excludedNodes.contains(node)) {
+        excludedNodes.add(node);
+        avoided.add(node);
+      }
+    }
       
     DatanodeDescriptor localNode = chooseTarget(numOfReplicas, writer, 
                                                 excludedNodes, blocksize, maxNodesPerRack, results);
+
+    // rather place the missing replicas on slow datanodes than not at all
+    int missing = totalNumOfReplicas - results.size();
+    if (missing > 0 && !avoided.isEmpty()) {
+      FSNamesystem.LOG.debug("Choosing " + missing + " targets among the " +
+                             avoided.size() + " datanodes reported slow");
+      excludedNodes.removeAll(avoided);
+      DatanodeDescriptor node = chooseTarget(missing, writer, excludedNodes,
+                                             blocksize, maxNodesPerRack,
+                                             results);
+      if (localNode == null) {
+        localNode = node;
+      }
+    }
       
     results.removeAll(choosenNodes);
       
@@ -163,6 +186,11 @@ class ReplicationTargetChooser {
                        results.toArray(new DatanodeDescriptor[results.size()]));
   }
     
+  /** @return the datanodes that peers reported slow recently */
+  List<DatanodeDescriptor> getSlowDatanodes() {
+    return fs.getSlowDatanodes();
+  }
+    
   /* choose <i>numOfReplicas</i> from all data nodes */
   private DatanodeDescriptor chooseTarget(int numOfReplicas,
                                           DatanodeDescriptor writer,
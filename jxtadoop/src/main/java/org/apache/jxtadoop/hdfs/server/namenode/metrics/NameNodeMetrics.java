@@ -69,6 +69,10 @@ public class NameNodeMetrics implements Updater {
                           new MetricsTimeVaryingInt("FileInfoOps", registry);
     public MetricsTimeVaryingInt numAddBlockOps = 
                           new MetricsTimeVaryingInt("AddBlockOps", registry);
+    public MetricsTimeVaryingInt numBatchOps = 
+                          new MetricsTimeVaryingInt("BatchOps", registry);
+    public MetricsTimeVaryingInt numBatchedOperations = 
+                          new MetricsTimeVaryingInt("BatchedOperations", registry);
 
     public MetricsTimeVaryingRate transactions =
                     new MetricsTimeVaryingRate("Transactions", registry, "Journal Transaction");
@@ -78,6 +82,10 @@ public class NameNodeMetrics implements Updater {
                     new MetricsTimeVaryingInt("JournalTransactionsBatchedInSync", registry, "Journal Transactions Batched In Sync");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsTimeVaryingRate blockReportDelta =
+                    new MetricsTimeVaryingRate("blockReportDelta", registry, "Delta Block Report");
+    public MetricsTimeVaryingInt blockReportDeltaRejected =
+                    new MetricsTimeVaryingInt("blockReportDeltaRejected", registry, "Delta Block Reports Needing A Full Report");
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
@@ -128,5 +136,6 @@ public class NameNodeMetrics implements Updater {
       transactions.resetMinMax();
       syncs.resetMinMax();
       blockReport.resetMinMax();
+      blockReportDelta.resetMinMax();
     }
 }
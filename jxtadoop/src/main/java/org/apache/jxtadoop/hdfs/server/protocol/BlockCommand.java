@@ -39,6 +39,7 @@ import org.apache.jxtadoop.io.WritableFactory;
 public class BlockCommand extends DatanodeCommand {
   Block blocks[];
   DatanodeInfo targets[][];
+  int priorities[];
 
   public BlockCommand() {}
 
@@ -51,14 +52,17 @@ public class BlockCommand extends DatanodeCommand {
 
     blocks = new Block[blocktargetlist.size()]; 
     targets = new DatanodeInfo[blocks.length][];
+    priorities = new int[blocks.length];
     for(int i = 0; i < blocks.length; i++) {
       BlockTargetPair p = blocktargetlist.get(i);
       blocks[i] = p.block;
       targets[i] = p.targets;
+      priorities[i] = p.priority;
     }
   }
 
   private static final DatanodeInfo[][] EMPTY_TARGET = {};
+  private static final int[] EMPTY_PRIORITIES = {};
 
   /**
    * Create BlockCommand for the given action
@@ -68,6 +72,7 @@ public class BlockCommand extends DatanodeCommand {
     super(action);
     this.blocks = blocks;
     this.targets = EMPTY_TARGET;
+    this.priorities = EMPTY_PRIORITIES;
   }
 
   public Block[] getBlocks() {
@@ -78,6 +83,14 @@ public class BlockCommand extends DatanodeCommand {
     return targets;
   }
 
+  /**
+   * @return the replication priority of each block, 0 being the most
+   *         urgent, or an empty array if the action has none
+   */
+  public int[] getPriorities() {
+    return priorities;
+  }
+
   ///////////////////////////////////////////
   // Writable
   ///////////////////////////////////////////
@@ -102,6 +115,10 @@ public class BlockCommand extends DatanodeCommand {
         targets[i][j].write(out);
       }
     }
+    out.writeInt(priorities.length);
+    for (int i = 0; i < priorities.length; i++) {
+      out.writeInt(priorities[i]);
+    }
   }
 
   public void readFields(DataInput in) throws IOException {
@@ -120,5 +137,10 @@ public class BlockCommand extends DatanodeCommand {
         targets[i][j].readFields(in);
       }
     }
+
+    this.priorities = new int[in.readInt()];
+    for (int i = 0; i < priorities.length; i++) {
+      priorities[i] = in.readInt();
+    }
   }
 }
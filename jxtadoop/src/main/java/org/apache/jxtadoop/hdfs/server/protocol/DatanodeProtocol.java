@@ -21,6 +21,7 @@ package org.apache.jxtadoop.hdfs.server.protocol;
 import java.io.*;
 
 import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.ipc.VersionedProtocol;
@@ -35,10 +36,15 @@ import org.apache.jxtadoop.ipc.VersionedProtocol;
  **********************************************************************/
 public interface DatanodeProtocol extends VersionedProtocol {
   /**
-   * 19: SendHeartbeat returns an array of DatanodeCommand objects
-   *     in stead of a DatanodeCommand object.
+   * 20: blockReportDelta() sends the changes since the last report,
+   *     DNA_BLOCKREPORT asks for a full block report.
+   * 21: block reports are sent as BlockListAsLongs, in its compact
+   *     encoding.
+   * 22: DNA_TRANSFER commands carry the replication priority of each
+   *     block.
+   * 23: sendHeartbeat() reports the peers the datanode found slow.
    */
-  public static final long versionID = 19L;
+  public static final long versionID = 23L;
   
   // error code
   final static int NOTIFY = 0;
@@ -56,6 +62,7 @@ public interface DatanodeProtocol extends VersionedProtocol {
   final static int DNA_REGISTER = 4;   // re-register
   final static int DNA_FINALIZE = 5;   // finalize previous upgrade
   final static int DNA_RECOVERBLOCK = 6;  // request a block recovery
+  final static int DNA_BLOCKREPORT = 7;   // send a full block report
 
   /** 
    * Register Datanode.
@@ -76,12 +83,15 @@ public interface DatanodeProtocol extends VersionedProtocol {
    * an array of "DatanodeCommand" objects.
    * A DatanodeCommand tells the DataNode to invalidate local block(s), 
    * or to copy them to other DataNodes, etc.
+   * @param slowPeers the peer ids of the clients and datanodes that the
+   *        DataNode found much slower to transfer blocks with than others
    */
   public DatanodeCommand[] sendHeartbeat(DatanodeRegistration registration,
                                        long capacity,
                                        long dfsUsed, long remaining,
                                        int xmitsInProgress,
-                                       int xceiverCount) throws IOException;
+                                       int xceiverCount,
+                                       String[] slowPeers) throws IOException;
 
   /**
    * blockReport() tells the NameNode about all the locally-stored blocks.
@@ -91,14 +101,34 @@ public interface DatanodeProtocol extends VersionedProtocol {
    * infrequently afterwards.
    * @param registration
    * @param blocks - the block list as an array of longs.
-   *     Each block is represented as 2 longs.
+   *     Each block is represented as 3 longs.
    *     This is done instead of Block[] to reduce memory used by block reports.
+   *     It is sent in the compact encoding of BlockListAsLongs.
    *     
    * @return - the next command for DN to process.
    * @throws IOException
    */
   public DatanodeCommand blockReport(DatanodeRegistration registration,
-                                     long[] blocks) throws IOException;
+                                     BlockListAsLongs blocks) throws IOException;
+
+  /**
+   * blockReportDelta() tells the NameNode about the blocks added, changed
+   * or removed since the last acknowledged block report. A full report
+   * has sequence number 0 and every delta report the next one. A delta
+   * may be resent with the same sequence number, with the changes made
+   * since merged in, if the previous call failed.
+   * @param registration
+   * @param seq - the sequence number of this report
+   * @param added - the blocks added or changed, as in blockReport()
+   * @param removed - the blocks removed, as in blockReport()
+   *
+   * @return - the next command for DN to process, DNA_BLOCKREPORT if
+   *     the delta could not be applied and a full report is needed.
+   * @throws IOException
+   */
+  public DatanodeCommand blockReportDelta(DatanodeRegistration registration,
+                                          long seq, BlockListAsLongs added,
+                                          BlockListAsLongs removed) throws IOException;
     
   /**
    * blockReceived() allows the DataNode to tell the NameNode about
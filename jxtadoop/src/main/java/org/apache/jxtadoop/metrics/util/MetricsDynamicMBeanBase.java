@@ -57,6 +57,9 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
   private final static String MIN_TIME = "MinTime";
   private final static String MAX_TIME = "MaxTime";
   private final static String NUM_OPS = "NumOps";
+  private final static String P50_TIME = "P50Time";
+  private final static String P95_TIME = "P95Time";
+  private final static String P99_TIME = "P99Time";
   private final static String RESET_ALL_MIN_MAX_OP = "resetAllMinMax";
   private MetricsRegistry metricsRegistry;
   private MBeanInfo mbeanInfo;
@@ -103,6 +106,13 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         metricsRateAttributeMod.put(o.getName() + MIN_TIME, o);
         metricsRateAttributeMod.put(o.getName() + MAX_TIME, o);
         
+        if (MetricsHistogram.class.isInstance(o)) {
+          for (String suffix : new String[] {P50_TIME, P95_TIME, P99_TIME}) {
+            attributesInfo.add(new MBeanAttributeInfo(o.getName() + suffix, "java.lang.Long",
+                o.getDescription(), true, false, false));
+            metricsRateAttributeMod.put(o.getName() + suffix, o);
+          }
+        }
       }  else if ( MetricsIntValue.class.isInstance(o) || MetricsTimeVaryingInt.class.isInstance(o) ) {
         attributesInfo.add(new MBeanAttributeInfo(o.getName(), "java.lang.Integer",
             o.getDescription(), true, false, false)); 
@@ -156,6 +166,12 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         return or.getMinTime();
       else if (attributeName.endsWith(MAX_TIME))
         return or.getMaxTime();
+      else if (o instanceof MetricsHistogram && attributeName.endsWith(P50_TIME))
+        return ((MetricsHistogram) o).getPreviousIntervalPercentile(50);
+      else if (o instanceof MetricsHistogram && attributeName.endsWith(P95_TIME))
+        return ((MetricsHistogram) o).getPreviousIntervalPercentile(95);
+      else if (o instanceof MetricsHistogram && attributeName.endsWith(P99_TIME))
+        return ((MetricsHistogram) o).getPreviousIntervalPercentile(99);
       else {
         MetricsUtil.LOG.error("Unexpected attrubute suffix");
         throw new AttributeNotFoundException();
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.metrics.util;
+
+import java.util.Arrays;
+
+import org.apache.jxtadoop.metrics.MetricsRecord;
+import org.apache.jxtadoop.util.StringUtils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The MetricsHistogram class is a {@link MetricsTimeVaryingRate} that
+ * also keeps the distribution of the operation times of the current
+ * interval, so that percentiles can be published along with the average.
+ * <p>
+ * Times are bucketed in power-of-two buckets (0, 1, 2-3, 4-7, ... ms),
+ * which keeps the memory footprint fixed and the update cheap; the
+ * published percentiles are the upper bound of the matching bucket.
+ */
+public class MetricsHistogram extends MetricsTimeVaryingRate {
+
+  private static final Log LOG =
+    LogFactory.getLog("org.apache.jxtadoop.metrics.util");
+
+  /** Bucket i holds times t with 2^(i-1) <= t < 2^i, bucket 0 holds t <= 0 */
+  static final int NUM_BUCKETS = 32;
+
+  private long[] currentBuckets = new long[NUM_BUCKETS];
+  private long[] previousIntervalBuckets = new long[NUM_BUCKETS];
+  private long previousIntervalCount = 0;
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry,
+                          final String description) {
+    super(nam, registry, description);
+  }
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   * A description of {@link #NO_DESCRIPTION} is used
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry) {
+    this(nam, registry, NO_DESCRIPTION);
+  }
+
+  static int getBucket(final long time) {
+    if (time <= 0) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(time), NUM_BUCKETS - 1);
+  }
+
+  /**
+   * Increment the metrics for numOps operations
+   * @param numOps - number of operations
+   * @param time - time for numOps operations
+   */
+  public synchronized void inc(final int numOps, final long time) {
+    super.inc(numOps, time);
+    currentBuckets[getBucket(time/numOps)] += numOps;
+  }
+
+  /**
+   * Increment the metrics for one operation
+   * @param time for one operation
+   */
+  public synchronized void inc(final long time) {
+    super.inc(time);
+    currentBuckets[getBucket(time)]++;
+  }
+
+  private synchronized void intervalHeartBeat() {
+    long[] tmp = previousIntervalBuckets;
+    previousIntervalBuckets = currentBuckets;
+    currentBuckets = tmp;
+    Arrays.fill(currentBuckets, 0);
+    previousIntervalCount = 0;
+    for (long count : previousIntervalBuckets) {
+      previousIntervalCount += count;
+    }
+  }
+
+  /**
+   * Push the delta metrics, including the percentiles, to the mr.
+   * The delta is since the last push/interval.
+   *
+   * @param mr
+   */
+  public synchronized void pushMetric(final MetricsRecord mr) {
+    super.pushMetric(mr);
+    intervalHeartBeat();
+    try {
+      mr.setMetric(getName() + "_p50_time", getPreviousIntervalPercentile(50));
+      mr.setMetric(getName() + "_p95_time", getPreviousIntervalPercentile(95));
+      mr.setMetric(getName() + "_p99_time", getPreviousIntervalPercentile(99));
+    } catch (Exception e) {
+      LOG.info("pushMetric failed for " + getName() + "\n" +
+          StringUtils.stringifyException(e));
+    }
+  }
+
+  /**
+   * An upper bound of the given percentile of the operation times
+   * in the previous interval
+   * @param percentile - between 0 and 100
+   * @return - the time, 0 if there was no operation
+   */
+  public synchronized long getPreviousIntervalPercentile(final int percentile) {
+    if (previousIntervalCount == 0) {
+      return 0;
+    }
+    long target = (previousIntervalCount * percentile + 99) / 100;
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += previousIntervalBuckets[i];
+      if (seen >= target) {
+        return i == 0 ? 0 : Math.min((1L << i) - 1, getMaxTime());
+      }
+    }
+    return getMaxTime();
+  }
+}
@@ -20,8 +20,12 @@ package org.apache.jxtadoop.util;
 
 import java.util.zip.Checksum;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.apache.jxtadoop.fs.ChecksumException;
 
 /**
  * This class provides inteface and utilities for processing checksums for
@@ -36,9 +40,26 @@ public class DataChecksum implements Checksum {
   // checksum types
   public static final int CHECKSUM_NULL    = 0;
   public static final int CHECKSUM_CRC32   = 1;
+  public static final int CHECKSUM_CRC32C  = 2;
   
   private static final int CHECKSUM_NULL_SIZE  = 0;
   private static final int CHECKSUM_CRC32_SIZE = 4;
+  private static final int CHECKSUM_CRC32C_SIZE = 4;
+  
+  /**
+   * @return the checksum type of the given name, "NULL", "CRC32" or
+   *         "CRC32C", or -1 if the name is not known.
+   */
+  public static int getChecksumType( String name ) {
+    if ( "NULL".equalsIgnoreCase( name ) ) {
+      return CHECKSUM_NULL;
+    } else if ( "CRC32".equalsIgnoreCase( name ) ) {
+      return CHECKSUM_CRC32;
+    } else if ( "CRC32C".equalsIgnoreCase( name ) ) {
+      return CHECKSUM_CRC32C;
+    }
+    return -1;
+  }
   
   
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum ) {
@@ -53,6 +74,9 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, new CRC32(), 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, new CRC32C(), 
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
@@ -122,7 +146,7 @@ public class DataChecksum implements Checksum {
        return 0;
      }
 
-     if ( type == CHECKSUM_CRC32 ) {
+     if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
        out.writeInt( (int) summer.getValue() );
      } else {
        throw new IOException( "Unknown Checksum " + type );
@@ -146,7 +170,7 @@ public class DataChecksum implements Checksum {
         return 0;
       }
 
-      if ( type == CHECKSUM_CRC32 ) {
+      if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
         int checksum = (int) summer.getValue();
         buf[offset+0] = (byte) ((checksum >>> 24) & 0xff);
         buf[offset+1] = (byte) ((checksum >>> 16) & 0xff);
@@ -168,7 +192,8 @@ public class DataChecksum implements Checksum {
     * @return true if the checksum matches and false otherwise.
     */
    public boolean compare( byte buf[], int offset ) {
-     if ( size > 0 && type == CHECKSUM_CRC32 ) {
+     if ( size > 0 &&
+          ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) ) {
        int checksum = ( (buf[offset+0] & 0xff) << 24 ) | 
                       ( (buf[offset+1] & 0xff) << 16 ) |
                       ( (buf[offset+2] & 0xff) << 8 )  |
@@ -178,6 +203,145 @@ public class DataChecksum implements Checksum {
      return size == 0;
    }
    
+  /**
+   * Verifies the checksums of a run of chunks in one pass. The data and
+   * the checksums are read from the position to the limit of each buffer,
+   * and the positions are left unchanged. Each chunk is bytesPerChecksum
+   * long except for the last one, which may be shorter.
+   * The current checksum is reset.
+   * 
+   * @param data the chunks to verify
+   * @param checksums one checksum per chunk
+   * @param fileName the name of the file, used in the exception message
+   * @param basePos the position of the first chunk in the file
+   * @throws ChecksumException for the first chunk that does not match
+   */
+  public void verifyChunkedSums( ByteBuffer data, ByteBuffer checksums,
+                                 String fileName, long basePos )
+                                 throws ChecksumException {
+    if ( size <= 0 ) {
+      return;
+    }
+    if ( data.hasArray() && checksums.hasArray() ) {
+      verifyChunkedSums( data.array(), data.arrayOffset() + data.position(),
+                         data.remaining(), checksums.array(),
+                         checksums.arrayOffset() + checksums.position(),
+                         fileName, basePos );
+      return;
+    }
+    
+    ByteBuffer chunk = data.duplicate();
+    int sumPos = checksums.position();
+    try {
+      for ( int off = data.position(); off < data.limit();
+            off += bytesPerChecksum, sumPos += size ) {
+        chunk.limit( Math.min( off + bytesPerChecksum, data.limit() ) );
+        chunk.position( off );
+        summer.reset();
+        summer.update( chunk );
+        if ( (int) summer.getValue() != checksums.getInt( sumPos ) ) {
+          long errPos = basePos + off - data.position();
+          throw new ChecksumException( "Checksum error: " + fileName +
+                                       " at " + errPos, errPos );
+        }
+      }
+    } finally {
+      reset();
+    }
+  }
+  
+  /**
+   * Verifies the checksums of <i>dataLen</i> bytes of chunks at
+   * data[dataOff] against the checksums at checksums[checksumsOff].
+   * @see #verifyChunkedSums(ByteBuffer, ByteBuffer, String, long)
+   */
+  public void verifyChunkedSums( byte[] data, int dataOff, int dataLen,
+                                 byte[] checksums, int checksumsOff,
+                                 String fileName, long basePos )
+                                 throws ChecksumException {
+    if ( size <= 0 ) {
+      return;
+    }
+    
+    try {
+      int end = dataOff + dataLen;
+      for ( int off = dataOff, sumOff = checksumsOff; off < end;
+            off += bytesPerChecksum, sumOff += size ) {
+        summer.reset();
+        summer.update( data, off, Math.min( bytesPerChecksum, end - off ) );
+        int stored = ( (checksums[sumOff+0] & 0xff) << 24 ) | 
+                     ( (checksums[sumOff+1] & 0xff) << 16 ) |
+                     ( (checksums[sumOff+2] & 0xff) << 8 )  |
+                     ( (checksums[sumOff+3] & 0xff) );
+        if ( (int) summer.getValue() != stored ) {
+          long errPos = basePos + off - dataOff;
+          throw new ChecksumException( "Checksum error: " + fileName +
+                                       " at " + errPos, errPos );
+        }
+      }
+    } finally {
+      reset();
+    }
+  }
+  
+  /**
+   * Calculates the checksums of a run of chunks in one pass. The data is
+   * read from its position to its limit, and one checksum per chunk is
+   * written to <i>checksums</i> starting at its position. The positions
+   * of both buffers are left unchanged. The current checksum is reset.
+   * 
+   * @param data the chunks to checksum
+   * @param checksums the buffer to store the checksums in
+   */
+  public void calculateChunkedSums( ByteBuffer data, ByteBuffer checksums ) {
+    if ( size <= 0 ) {
+      return;
+    }
+    if ( data.hasArray() && checksums.hasArray() ) {
+      calculateChunkedSums( data.array(), data.arrayOffset() + data.position(),
+                            data.remaining(), checksums.array(),
+                            checksums.arrayOffset() + checksums.position() );
+      return;
+    }
+    
+    ByteBuffer chunk = data.duplicate();
+    int sumPos = checksums.position();
+    for ( int off = data.position(); off < data.limit();
+          off += bytesPerChecksum, sumPos += size ) {
+      chunk.limit( Math.min( off + bytesPerChecksum, data.limit() ) );
+      chunk.position( off );
+      summer.reset();
+      summer.update( chunk );
+      checksums.putInt( sumPos, (int) summer.getValue() );
+    }
+    reset();
+  }
+  
+  /**
+   * Calculates the checksums of <i>dataLen</i> bytes of chunks at
+   * data[dataOff] into checksums[checksumsOff].
+   * @see #calculateChunkedSums(ByteBuffer, ByteBuffer)
+   */
+  public void calculateChunkedSums( byte[] data, int dataOff, int dataLen,
+                                    byte[] checksums, int checksumsOff ) {
+    if ( size <= 0 ) {
+      return;
+    }
+    
+    int end = dataOff + dataLen;
+    for ( int off = dataOff, sumOff = checksumsOff; off < end;
+          off += bytesPerChecksum, sumOff += size ) {
+      summer.reset();
+      summer.update( data, off, Math.min( bytesPerChecksum, end - off ) );
+      int checksum = (int) summer.getValue();
+      checksums[sumOff+0] = (byte) ((checksum >>> 24) & 0xff);
+      checksums[sumOff+1] = (byte) ((checksum >>> 16) & 0xff);
+      checksums[sumOff+2] = (byte) ((checksum >>> 8) & 0xff);
+      checksums[sumOff+3] = (byte) (checksum & 0xff);
+    }
+    reset();
+  }
+  
   private final int type;
   private final int size;
   private final Checksum summer;
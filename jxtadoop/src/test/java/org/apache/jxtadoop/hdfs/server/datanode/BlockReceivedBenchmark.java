@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+
+/**
+ * Benchmark of the delay between the finalization of a block and its
+ * report to the namenode, which a client closing a file waits for. Blocks
+ * are finalized in bursts, as by the datanodes of a pipeline, and the
+ * namenode calls take a fixed time.
+ * <p>
+ * {@link BlockReceivedNotifier} is compared with reporting the blocks
+ * from a loop that also sends the heartbeats, as the datanode did before.
+ * 
+ * <pre>
+ * Usage: BlockReceivedBenchmark [-bursts n] [-burstSize blocks]
+ *                               [-interval ms] [-rpcCost ms]
+ *                               [-heartbeat ms] [-delay ms]
+ * </pre>
+ */
+public class BlockReceivedBenchmark {
+
+  /** Reports blocks as a namenode call would, recording the delays */
+  static class Stats {
+    long calls = 0;
+    long blocks = 0;
+    long totalDelay = 0;
+    long maxDelay = 0;
+
+    synchronized void record(int n, long oldest, long rpcCost) {
+      pause(rpcCost);
+      long d = System.currentTimeMillis() - oldest;
+      calls++;
+      blocks += n;
+      totalDelay += d * n;
+      maxDelay = Math.max(maxDelay, d);
+    }
+
+    public String toString() {
+      return blocks + " blocks in " + calls + " calls, "
+          + (blocks == 0 ? 0 : totalDelay / blocks) + " ms mean delay, "
+          + maxDelay + " ms max delay";
+    }
+  }
+
+  static void pause(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException ignored) {
+    }
+  }
+
+  /**
+   * Reports received blocks between heartbeats, waking up when one is
+   * received as the old DataNode.offerService() loop did.
+   */
+  static class HeartbeatLoop extends Thread {
+    final Object lock = new Object();
+    final java.util.List<Long> received = new java.util.ArrayList<Long>();
+    final Stats stats;
+    final long rpcCost;
+    final long heartbeat;
+    volatile boolean running = true;
+
+    HeartbeatLoop(Stats stats, long rpcCost, long heartbeat) {
+      this.stats = stats;
+      this.rpcCost = rpcCost;
+      this.heartbeat = heartbeat;
+    }
+
+    void add() {
+      synchronized (lock) {
+        received.add(System.currentTimeMillis());
+        lock.notifyAll();
+      }
+    }
+
+    public void run() {
+      long lastHeartbeat = 0;
+      while (running) {
+        if (System.currentTimeMillis() - lastHeartbeat > heartbeat) {
+          lastHeartbeat = System.currentTimeMillis();
+          pause(rpcCost); // sendHeartbeat()
+        }
+        int n;
+        long oldest;
+        synchronized (lock) {
+          n = received.size();
+          oldest = (n > 0) ? received.get(0) : 0;
+          received.clear();
+        }
+        if (n > 0) {
+          stats.record(n, oldest, rpcCost);
+        }
+        synchronized (lock) {
+          long wait = heartbeat - (System.currentTimeMillis() - lastHeartbeat);
+          if (wait > 0 && received.isEmpty() && running) {
+            try {
+              lock.wait(wait);
+            } catch (InterruptedException ignored) {
+            }
+          }
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int bursts = 100;
+    int burstSize = 3;
+    long interval = 50;
+    long rpcCost = 20;
+    long heartbeat = 300;
+    long delay = 5;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-bursts".equals(args[i])) {
+        bursts = Integer.parseInt(args[++i]);
+      } else if ("-burstSize".equals(args[i])) {
+        burstSize = Integer.parseInt(args[++i]);
+      } else if ("-interval".equals(args[i])) {
+        interval = Long.parseLong(args[++i]);
+      } else if ("-rpcCost".equals(args[i])) {
+        rpcCost = Long.parseLong(args[++i]);
+      } else if ("-heartbeat".equals(args[i])) {
+        heartbeat = Long.parseLong(args[++i]);
+      } else if ("-delay".equals(args[i])) {
+        delay = Long.parseLong(args[++i]);
+      } else {
+        System.err.println("Usage: BlockReceivedBenchmark [-bursts n] "
+            + "[-burstSize blocks] [-interval ms] [-rpcCost ms] "
+            + "[-heartbeat ms] [-delay ms]");
+        System.exit(-1);
+      }
+    }
+
+    final long cost = rpcCost;
+    Stats loopStats = new Stats();
+    HeartbeatLoop loop = new HeartbeatLoop(loopStats, rpcCost, heartbeat);
+    loop.start();
+    final Stats notifierStats = new Stats();
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.datanode.blockreceived.delay", delay);
+    BlockReceivedNotifier notifier = new BlockReceivedNotifier(null, conf) {
+      @Override
+      void send(Block[] blocks, String[] delHints, long queuedAt)
+          throws IOException {
+        notifierStats.record(blocks.length, queuedAt, cost);
+      }
+    };
+    notifier.start();
+
+    Random r = new Random(0);
+    for (int i = 0; i < bursts; i++) {
+      for (int j = 0; j < burstSize; j++) {
+        Block b = new Block(i * burstSize + j, 0, 0);
+        loop.add();
+        notifier.add(b, DataNode.EMPTY_DEL_HINT);
+        pause(r.nextInt(3));
+      }
+      pause(r.nextInt((int)(2 * interval) + 1));
+    }
+    pause(heartbeat + 2 * rpcCost + delay);
+    loop.running = false;
+    loop.interrupt();
+    loop.join();
+    notifier.shutdown();
+
+    System.out.println("heartbeat loop : " + loopStats);
+    System.out.println("notifier       : " + notifierStats);
+  }
+}
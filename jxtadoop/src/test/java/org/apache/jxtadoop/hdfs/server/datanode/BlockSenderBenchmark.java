@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.jxtadoop.util.DataChecksum;
+
+/**
+ * Benchmark of {@link BlockSender} sending whole blocks to a stream that
+ * does not support transferTo(), as JXTA sockets do not. The sink counts
+ * write() calls, each of which becomes at least one JXTA message, and can
+ * charge a fixed cost per call.
+ * 
+ * <pre>
+ * Usage: BlockSenderBenchmark [-dir dir] [-blockSize bytes] [-blocks n]
+ *                             [-packetSize bytes] [-writeCost micros]
+ * </pre>
+ * 
+ * A packet size of 0 uses the stream based path with packets of
+ * io.file.buffer.size bytes.
+ */
+public class BlockSenderBenchmark {
+
+  /** Discards the data, counting and optionally delaying each write */
+  static class MessageSink extends OutputStream {
+    final long writeCostNanos;
+    long writes = 0;
+    long bytes = 0;
+
+    MessageSink(long writeCostNanos) {
+      this.writeCostNanos = writeCostNanos;
+    }
+
+    public void write(int b) {
+      write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) {
+      writes++;
+      bytes += len;
+      if (writeCostNanos > 0) {
+        long end = System.nanoTime() + writeCostNanos;
+        while (System.nanoTime() < end);
+      }
+    }
+  }
+
+  /** Write a block with valid CRC32 checksums */
+  static Block writeBlock(FSDataset dataset, long id, int size)
+      throws IOException {
+    byte[] data = new byte[size];
+    new Random(id).nextBytes(data);
+    return writeBlock(dataset, id, data);
+  }
+
+  /** Write a block of the given data with valid CRC32 checksums */
+  static Block writeBlock(FSDataset dataset, long id, byte[] data)
+      throws IOException {
+    Block b = new Block(id, 0, GenerationStamp.FIRST_VALID_STAMP);
+    int size = data.length;
+    DataChecksum sum =
+      DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512);
+    BlockWriteStreams streams = dataset.writeToBlock(b, false);
+    try {
+      streams.dataOut.write(data);
+      DataOutputStream checksumOut = new DataOutputStream(
+          new BufferedOutputStream(streams.checksumOut));
+      BlockMetadataHeader.writeHeader(checksumOut, sum);
+      byte[] crc = new byte[sum.getChecksumSize()];
+      for (int off = 0; off < size; off += sum.getBytesPerChecksum()) {
+        sum.reset();
+        sum.update(data, off, Math.min(sum.getBytesPerChecksum(), size - off));
+        sum.writeValue(crc, 0, true);
+        checksumOut.write(crc);
+      }
+      checksumOut.flush();
+    } finally {
+      streams.dataOut.close();
+      streams.checksumOut.close();
+    }
+    b.setNumBytes(size);
+    dataset.finalizeBlock(b);
+    return b;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+                        "blocksender-bench");
+    int blockSize = 4 * 1024 * 1024;
+    int blocks = 50;
+    int packetSize = 64 * 1024;
+    long writeCost = 0;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-dir".equals(args[i])) {
+        dir = new File(args[++i]);
+      } else if ("-blockSize".equals(args[i])) {
+        blockSize = Integer.parseInt(args[++i]);
+      } else if ("-blocks".equals(args[i])) {
+        blocks = Integer.parseInt(args[++i]);
+      } else if ("-packetSize".equals(args[i])) {
+        packetSize = Integer.parseInt(args[++i]);
+      } else if ("-writeCost".equals(args[i])) {
+        writeCost = Long.parseLong(args[++i]);
+      } else {
+        System.err.println("Usage: BlockSenderBenchmark [-dir dir] "
+            + "[-blockSize bytes] [-blocks n] [-packetSize bytes] "
+            + "[-writeCost micros]");
+        System.exit(-1);
+      }
+    }
+
+    FileUtil.fullyDelete(dir);
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.datanode.du.refresh.interval", 0);
+    FSDataset dataset = new FSDataset(
+        new FSDatasetBenchmark.BenchmarkStorage(dir), conf);
+    try {
+      Block b = writeBlock(dataset, 1, blockSize);
+      MessageSink sink = new MessageSink(writeCost * 1000);
+      // one round to warm up, then the measured rounds
+      for (int round = 0; round < 2; round++) {
+        int n = (round == 0) ? Math.max(1, blocks / 10) : blocks;
+        sink.writes = 0;
+        sink.bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          BlockSender sender = new BlockSender(b, 0, -1, false, true, false,
+                                               dataset, null, packetSize, null);
+          DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(sink));
+          sender.sendBlock(out, sink, null);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (round == 1) {
+          System.out.println("blockSize=" + blockSize + " packetSize="
+              + packetSize + " : "
+              + (long)((double)sink.bytes * 1e9 / elapsed / (1024 * 1024))
+              + " MB/s, " + sink.writes / n + " writes per block");
+        }
+      }
+    } finally {
+      dataset.shutdown();
+      FileUtil.fullyDelete(dir);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.jxtadoop.util.DataChecksum;
+
+/**
+ * Multi-threaded benchmark of the {@link FSDatasetInterface} calls made by
+ * the xceivers. Each thread runs a mix of block reads and writes against a
+ * dataset in a scratch directory, and the aggregate throughput is printed.
+ * 
+ * <pre>
+ * Usage: FSDatasetBenchmark [-dir dir] [-threads n] [-blocks n]
+ *                           [-ops n] [-writes percent] [-blockSize bytes]
+ *                           [-stripes n]
+ * </pre>
+ * 
+ * Running it with -stripes 1 gives the behaviour of a single dataset lock.
+ */
+public class FSDatasetBenchmark {
+  private final FSDataset dataset;
+  private final int numBlocks;
+  private final int blockSize;
+  private final int writePercent;
+  private final AtomicLong nextBlockId = new AtomicLong(1);
+  private final byte[] data;
+
+  /** A storage with one directory and no version file */
+  static class BenchmarkStorage extends DataStorage {
+    BenchmarkStorage(File dir) {
+      super();
+      addStorageDir(new StorageDirectory(dir));
+    }
+  }
+
+  FSDatasetBenchmark(File dir, Configuration conf, int numBlocks,
+      int blockSize, int writePercent) throws IOException {
+    this.dataset = new FSDataset(new BenchmarkStorage(dir), conf);
+    this.numBlocks = numBlocks;
+    this.blockSize = blockSize;
+    this.writePercent = writePercent;
+    this.data = new byte[blockSize];
+    new Random(0).nextBytes(data);
+  }
+
+  /** Write and finalize a new block */
+  long writeBlock() throws IOException {
+    Block b = new Block(nextBlockId.getAndIncrement(), 0,
+                        GenerationStamp.FIRST_VALID_STAMP);
+    BlockWriteStreams streams = dataset.writeToBlock(b, false);
+    try {
+      streams.dataOut.write(data);
+      BlockMetadataHeader.writeHeader(
+          new DataOutputStream(streams.checksumOut),
+          DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512));
+    } finally {
+      streams.dataOut.close();
+      streams.checksumOut.close();
+    }
+    b.setNumBytes(blockSize);
+    dataset.finalizeBlock(b);
+    return b.getBlockId();
+  }
+
+  /** Look up and read the start of a random block */
+  void readBlock(Random r, byte[] buf) throws IOException {
+    long id = 1 + r.nextInt(numBlocks);
+    Block b = dataset.getStoredBlock(id);
+    if (b == null) {
+      throw new IOException("Block " + id + " not found");
+    }
+    dataset.getLength(b);
+    dataset.getMetaDataLength(b);
+    InputStream in = dataset.getBlockInputStream(b, 0);
+    try {
+      in.read(buf);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Run the workload.
+   * @return the number of operations per second
+   */
+  double run(int numThreads, final int opsPerThread) throws Exception {
+    for (int i = 0; i < numBlocks; i++) {
+      writeBlock();
+    }
+    final Exception[] failure = new Exception[1];
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final long seed = t;
+      threads[t] = new Thread("bench-" + t) {
+        public void run() {
+          Random r = new Random(seed);
+          byte[] buf = new byte[Math.min(blockSize, 4096)];
+          try {
+            for (int i = 0; i < opsPerThread; i++) {
+              if (r.nextInt(100) < writePercent) {
+                writeBlock();
+              } else {
+                readBlock(r, buf);
+              }
+            }
+          } catch (Exception e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    return (double)numThreads * opsPerThread * 1e9 / elapsed;
+  }
+
+  void close() {
+    dataset.shutdown();
+  }
+
+  public static void main(String[] args) throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+                        "fsdataset-bench");
+    int threads = 16;
+    int blocks = 1000;
+    int ops = 10000;
+    int writes = 10;
+    int blockSize = 4096;
+    int stripes = FSDataset.DEFAULT_LOCK_STRIPES;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-dir".equals(args[i])) {
+        dir = new File(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-blocks".equals(args[i])) {
+        blocks = Integer.parseInt(args[++i]);
+      } else if ("-ops".equals(args[i])) {
+        ops = Integer.parseInt(args[++i]);
+      } else if ("-writes".equals(args[i])) {
+        writes = Integer.parseInt(args[++i]);
+      } else if ("-blockSize".equals(args[i])) {
+        blockSize = Integer.parseInt(args[++i]);
+      } else if ("-stripes".equals(args[i])) {
+        stripes = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: FSDatasetBenchmark [-dir dir] "
+            + "[-threads n] [-blocks n] [-ops n] [-writes percent] "
+            + "[-blockSize bytes] [-stripes n]");
+        System.exit(-1);
+      }
+    }
+
+    FileUtil.fullyDelete(dir);
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.dataset.lock.stripes", stripes);
+    conf.setLong("dfs.datanode.du.refresh.interval", 0);
+    FSDatasetBenchmark bench =
+      new FSDatasetBenchmark(dir, conf, blocks, blockSize, writes);
+    try {
+      double opsPerSec = bench.run(threads, ops);
+      System.out.println("threads=" + threads + " stripes=" + stripes
+          + " writes=" + writes + "% blockSize=" + blockSize
+          + " : " + (long)opsPerSec + " ops/s");
+    } finally {
+      bench.close();
+      FileUtil.fullyDelete(dir);
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.PacketCompressor;
+import org.apache.jxtadoop.util.DataChecksum;
+
+/**
+ * Benchmark of the effective throughput of {@link BlockSender} over a
+ * bandwidth limited link, with and without packet compression. The link
+ * keeps what is sent and makes the sender wait as a slow uplink would.
+ * The receiving end then decompresses the packets and verifies their
+ * checksums, on the same CPU, and the block has to come out unchanged.
+ * 
+ * <pre>
+ * Usage: PacketCompressionBenchmark [-dir dir] [-blockSize bytes]
+ *                                   [-blocks n] [-bandwidth bytesPerSec]
+ * </pre>
+ * 
+ * Each block is sent once as CSV like text, which compresses well, and
+ * once as random bytes, which does not compress.
+ */
+public class PacketCompressionBenchmark {
+
+  /** Keeps the data, limiting the rate at which it can be written */
+  static class SlowLink extends ByteArrayOutputStream {
+    final long bandwidth;
+    long start;
+    long bytes;
+
+    SlowLink(long bandwidth) {
+      this.bandwidth = bandwidth;
+    }
+
+    void open() {
+      reset();
+      start = System.nanoTime();
+      bytes = 0;
+    }
+
+    public synchronized void write(byte[] b, int off, int len) {
+      super.write(b, off, len);
+      bytes += len;
+      long due = start + bytes * 1000000000L / bandwidth;
+      long now;
+      while ((now = System.nanoTime()) < due) {
+        try {
+          Thread.sleep((due - now) / 1000000, (int)((due - now) % 1000000));
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }
+  }
+
+  /** Lines of a web server log in CSV */
+  static byte[] textData(int size, long seed) {
+    Random r = new Random(seed);
+    String[] methods = {"GET", "GET", "GET", "POST", "PUT", "DELETE"};
+    int[] codes = {200, 200, 200, 200, 304, 404, 500};
+    StringBuilder sb = new StringBuilder(size + 128);
+    while (sb.length() < size) {
+      sb.append("2026-10-").append(10 + r.nextInt(20)).append('T')
+        .append(10 + r.nextInt(14)).append(':').append(10 + r.nextInt(50))
+        .append(':').append(10 + r.nextInt(50)).append(",peer-")
+        .append(r.nextInt(64)).append(',').append(methods[r.nextInt(6)])
+        .append(",/api/items/").append(r.nextInt(100000)).append(',')
+        .append(codes[r.nextInt(7)]).append(',').append(r.nextInt(65536))
+        .append('\n');
+    }
+    return Arrays.copyOf(sb.toString().getBytes(), size);
+  }
+
+  /**
+   * Read what was sent the way a datanode or client does, and check that
+   * it is the block.
+   */
+  static void receive(byte[] sent, byte[] block) throws IOException {
+    DataInputStream in =
+      new DataInputStream(new ByteArrayInputStream(sent));
+    DataChecksum sum = DataChecksum.newDataChecksum(in);
+    int bpc = sum.getBytesPerChecksum();
+    PacketCompressor decompressor = new PacketCompressor();
+    byte[] received = new byte[block.length];
+    byte[] pkt = new byte[0];
+    byte[] unpacked = new byte[0];
+    int pos = 0;
+    int payloadLen;
+    while ((payloadLen = in.readInt()) > 0) {
+      in.readLong(); // offset in block
+      in.readLong(); // seqno
+      byte flags = in.readByte();
+      int dataLen = in.readInt();
+      int checksumLen = (dataLen + bpc - 1) / bpc * sum.getChecksumSize();
+      int len = payloadLen - 4;
+      if (pkt.length < len) {
+        pkt = new byte[len];
+      }
+      in.readFully(pkt, 0, len);
+      if (PacketCompressor.isCompressed(flags)) {
+        if (unpacked.length < checksumLen + dataLen) {
+          unpacked = new byte[checksumLen + dataLen];
+        }
+        decompressor.decompress(pkt, 0, len,
+                                unpacked, 0, checksumLen + dataLen);
+        sum.verifyChunkedSums(unpacked, checksumLen, dataLen,
+                              unpacked, 0, "block", pos);
+        System.arraycopy(unpacked, checksumLen, received, pos, dataLen);
+      } else {
+        sum.verifyChunkedSums(pkt, checksumLen, dataLen,
+                              pkt, 0, "block", pos);
+        System.arraycopy(pkt, checksumLen, received, pos, dataLen);
+      }
+      pos += dataLen;
+    }
+    decompressor.end();
+    if (pos != block.length || !Arrays.equals(received, block)) {
+      throw new IOException("Received block differs from the one sent");
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+                        "compression-bench");
+    int blockSize = 4 * 1024 * 1024;
+    int blocks = 2;
+    long bandwidth = 4 * 1024 * 1024;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-dir".equals(args[i])) {
+        dir = new File(args[++i]);
+      } else if ("-blockSize".equals(args[i])) {
+        blockSize = Integer.parseInt(args[++i]);
+      } else if ("-blocks".equals(args[i])) {
+        blocks = Integer.parseInt(args[++i]);
+      } else if ("-bandwidth".equals(args[i])) {
+        bandwidth = Long.parseLong(args[++i]);
+      } else {
+        System.err.println("Usage: PacketCompressionBenchmark [-dir dir] "
+            + "[-blockSize bytes] [-blocks n] [-bandwidth bytesPerSec]");
+        System.exit(-1);
+      }
+    }
+
+    FileUtil.fullyDelete(dir);
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.datanode.du.refresh.interval", 0);
+    FSDataset dataset = new FSDataset(
+        new FSDatasetBenchmark.BenchmarkStorage(dir), conf);
+    try {
+      String[] names = {"text", "random"};
+      byte[][] data = {textData(blockSize, 1), new byte[blockSize]};
+      new Random(2).nextBytes(data[1]);
+      for (int d = 0; d < data.length; d++) {
+        Block b = BlockSenderBenchmark.writeBlock(dataset, d + 1, data[d]);
+        for (int compress = 0; compress < 2; compress++) {
+          SlowLink link = new SlowLink(bandwidth);
+          long wire = 0;
+          long start = System.nanoTime();
+          for (int i = 0; i < blocks; i++) {
+            BlockSender sender = new BlockSender(b, 0, -1, false, false,
+                false, dataset, null, 64 * 1024, null);
+            PacketCompressor compressor = null;
+            if (compress == 1) {
+              compressor = new PacketCompressor();
+              sender.setCompressor(compressor);
+            }
+            link.open();
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(link));
+            sender.sendBlock(out, link, null);
+            sender.close();
+            if (compressor != null) {
+              compressor.end();
+            }
+            wire += link.bytes;
+            receive(link.toByteArray(), data[d]);
+          }
+          long elapsed = System.nanoTime() - start;
+          System.out.println(names[d] + (compress == 1 ? " compressed" : "")
+              + " : " + (long)((double)blockSize * blocks * 1e9 / elapsed
+                               / 1024) + " KB/s effective, "
+              + wire / blocks + " bytes on the wire per block");
+        }
+      }
+    } finally {
+      dataset.shutdown();
+      FileUtil.fullyDelete(dir);
+    }
+  }
+}
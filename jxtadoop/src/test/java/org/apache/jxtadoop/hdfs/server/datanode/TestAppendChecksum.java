@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.jxtadoop.util.DataChecksum;
+
+/**
+ * Checks that an append must use the checksum recorded in the meta file of
+ * the existing replica, both while it is finalized and once it has been
+ * reopened in the tmp directory.
+ */
+public class TestAppendChecksum extends TestCase {
+  private File dir;
+  private FSDataset dataset;
+
+  static class TestStorage extends DataStorage {
+    TestStorage(File dir) {
+      super();
+      addStorageDir(new StorageDirectory(dir));
+    }
+  }
+
+  protected void setUp() throws Exception {
+    dir = new File(System.getProperty("java.io.tmpdir"),
+                   "append-checksum-test");
+    FileUtil.fullyDelete(dir);
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.datanode.du.refresh.interval", 0);
+    dataset = new FSDataset(new TestStorage(dir), conf);
+  }
+
+  protected void tearDown() throws Exception {
+    dataset.shutdown();
+    FileUtil.fullyDelete(dir);
+  }
+
+  /** Write and finalize a block with CRC32 and 512 bytes per checksum */
+  private Block writeBlock(long id, int size) throws IOException {
+    Block b = new Block(id, 0, GenerationStamp.FIRST_VALID_STAMP);
+    byte[] data = new byte[size];
+    DataChecksum sum =
+      DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512);
+    BlockWriteStreams streams = dataset.writeToBlock(b, false);
+    try {
+      streams.dataOut.write(data);
+      DataOutputStream checksumOut = new DataOutputStream(
+          new BufferedOutputStream(streams.checksumOut));
+      BlockMetadataHeader.writeHeader(checksumOut, sum);
+      byte[] crc = new byte[sum.getChecksumSize()];
+      for (int off = 0; off < size; off += sum.getBytesPerChecksum()) {
+        sum.reset();
+        sum.update(data, off, Math.min(sum.getBytesPerChecksum(), size - off));
+        sum.writeValue(crc, 0, true);
+        checksumOut.write(crc);
+      }
+      checksumOut.flush();
+    } finally {
+      streams.dataOut.close();
+      streams.checksumOut.close();
+    }
+    b.setNumBytes(size);
+    dataset.finalizeBlock(b);
+    return b;
+  }
+
+  private static void assertChecksum(DataChecksum sum, int type,
+      int bytesPerChecksum) {
+    assertNotNull(sum);
+    assertEquals(type, sum.getChecksumType());
+    assertEquals(bytesPerChecksum, sum.getBytesPerChecksum());
+  }
+
+  private static void assertRejected(Block b, DataChecksum existing,
+      int type, int bytesPerChecksum) {
+    try {
+      BlockReceiver.checkAppendChecksum(b, existing,
+          DataChecksum.newDataChecksum(type, bytesPerChecksum));
+      fail("Append to " + b + " with checksum type " + type + " and " +
+           bytesPerChecksum + " bytes per checksum accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testFinalizedReplica() throws IOException {
+    Block b = writeBlock(1, 1000);
+    DataChecksum existing = BlockReceiver.readReplicaChecksum(dataset, b);
+    assertChecksum(existing, DataChecksum.CHECKSUM_CRC32, 512);
+    BlockReceiver.checkAppendChecksum(b, existing,
+        DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512));
+    assertRejected(b, existing, DataChecksum.CHECKSUM_CRC32C, 512);
+    assertRejected(b, existing, DataChecksum.CHECKSUM_CRC32, 1024);
+  }
+
+  public void testReopenedReplica() throws IOException {
+    Block b = writeBlock(1, 1000);
+    // reopening it for append moves it to the tmp directory
+    BlockWriteStreams streams = dataset.writeToBlock(b, true);
+    streams.dataOut.close();
+    streams.checksumOut.close();
+    assertFalse(dataset.isValidBlock(b));
+    DataChecksum existing = BlockReceiver.readReplicaChecksum(dataset, b);
+    assertChecksum(existing, DataChecksum.CHECKSUM_CRC32, 512);
+    assertRejected(b, existing, DataChecksum.CHECKSUM_CRC32C, 512);
+  }
+
+  public void testMissingReplica() throws IOException {
+    // a block with no replica has nothing to match
+    Block missing = new Block(2, 0, GenerationStamp.FIRST_VALID_STAMP);
+    DataChecksum existing =
+      BlockReceiver.readReplicaChecksum(dataset, missing);
+    assertNull(existing);
+    BlockReceiver.checkAppendChecksum(missing, existing,
+        DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32C, 512));
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+
+/**
+ * Checks that {@link BlockReceivedNotifier} reports a burst of blocks in
+ * one call, retries the calls that fail with the blocks queued since, and
+ * does not hang shutdown on a call that never returns.
+ */
+public class TestBlockReceivedNotifier extends TestCase {
+
+  /** Records the calls instead of making them, failing some first */
+  static class Notifier extends BlockReceivedNotifier {
+    final List<Block[]> calls = new ArrayList<Block[]>();
+    final List<Exception> failures = new ArrayList<Exception>();
+    volatile boolean hang = false;
+
+    Notifier(Configuration conf) {
+      super(null, conf);
+    }
+
+    void send(Block[] blocks, String[] delHints, long queuedAt)
+        throws IOException {
+      while (hang) {
+        try {
+          Thread.sleep(100000);
+        } catch (InterruptedException e) {
+          // like an rpc that ignores interrupts
+        }
+      }
+      synchronized (this) {
+        if (!failures.isEmpty()) {
+          Exception e = failures.remove(0);
+          if (e instanceof IOException) {
+            throw (IOException)e;
+          }
+          throw (RuntimeException)e;
+        }
+        calls.add(blocks);
+        notifyAll();
+      }
+    }
+
+    /** Wait for the given number of successful calls */
+    synchronized void await(int n, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (calls.size() < n && System.currentTimeMillis() < end) {
+        wait(100);
+      }
+      assertEquals("successful calls", n, calls.size());
+    }
+  }
+
+  private static Configuration newConf() {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.datanode.blockreceived.delay", 200);
+    conf.setLong("dfs.heartbeat.interval", 1);
+    return conf;
+  }
+
+  private static void assertBlocks(Block[] blocks, long... ids) {
+    assertEquals("blocks", ids.length, blocks.length);
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], blocks[i].getBlockId());
+    }
+  }
+
+  public void testCoalescing() throws Exception {
+    Notifier notifier = new Notifier(newConf());
+    notifier.start();
+    try {
+      for (long id = 1; id <= 5; id++) {
+        notifier.add(new Block(id), "");
+      }
+      notifier.await(1, 5000);
+      assertBlocks(notifier.calls.get(0), 1, 2, 3, 4, 5);
+      notifier.add(new Block(6), "");
+      notifier.await(2, 5000);
+      assertBlocks(notifier.calls.get(1), 6);
+    } finally {
+      notifier.shutdown();
+    }
+  }
+
+  public void testRetry() throws Exception {
+    Notifier notifier = new Notifier(newConf());
+    notifier.failures.add(new IOException("namenode down"));
+    notifier.failures.add(new IllegalStateException("unexpected"));
+    notifier.start();
+    try {
+      notifier.add(new Block(1), "");
+      Thread.sleep(500);
+      notifier.add(new Block(2), "");
+      // retried after 1s and then 2s, with the block queued meanwhile
+      notifier.await(1, 10000);
+      assertBlocks(notifier.calls.get(0), 1, 2);
+      assertTrue("not all failures happened", notifier.failures.isEmpty());
+    } finally {
+      notifier.shutdown();
+    }
+  }
+
+  public void testShutdown() throws Exception {
+    Notifier notifier = new Notifier(newConf());
+    notifier.hang = true;
+    notifier.start();
+    notifier.add(new Block(1), "");
+    Thread.sleep(500);
+    long start = System.currentTimeMillis();
+    notifier.shutdown();
+    long elapsed = System.currentTimeMillis() - start;
+    notifier.hang = false;
+    assertTrue("shutdown took " + elapsed + " ms", elapsed <= 5000);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+
+/**
+ * Checks which peers {@link PeerMetrics} finds slow, and that it forgets
+ * the least active peer when it tracks too many.
+ */
+public class TestPeerMetrics extends TestCase {
+
+  private static void assertSlow(PeerMetrics metrics, String... expected) {
+    assertEquals(metrics.toString(), Arrays.asList(expected),
+                 Arrays.asList(metrics.getSlowPeers()));
+  }
+
+  /** Record n transfers of 1MB taking the given time each */
+  private static void record(PeerMetrics metrics, String peer, int op, int n,
+      long millis) {
+    for (int i = 0; i < n; i++) {
+      metrics.record(peer, op, 1024 * 1024, millis);
+    }
+  }
+
+  public void testSlowPeers() {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.slowpeer.min.samples", 5);
+    conf.setFloat("dfs.datanode.slowpeer.factor", 3.0f);
+    PeerMetrics metrics = new PeerMetrics(conf);
+
+    // two mirrors are not enough to tell
+    record(metrics, "a", PeerMetrics.MIRROR, 5, 100);
+    record(metrics, "c", PeerMetrics.MIRROR, 5, 1000);
+    assertSlow(metrics);
+
+    // a third one is, but only with enough samples
+    record(metrics, "b", PeerMetrics.MIRROR, 4, 120);
+    assertSlow(metrics);
+    record(metrics, "b", PeerMetrics.MIRROR, 1, 120);
+    assertSlow(metrics, "c");
+
+    // slow enough, but not by the factor
+    record(metrics, "d", PeerMetrics.MIRROR, 5, 250);
+    assertSlow(metrics, "c");
+
+    // the other kinds of transfer depend on more than the peer
+    record(metrics, "a", PeerMetrics.WRITE, 5, 100);
+    record(metrics, "b", PeerMetrics.WRITE, 5, 100);
+    record(metrics, "e", PeerMetrics.WRITE, 5, 5000);
+    record(metrics, "a", PeerMetrics.READ, 5, 100);
+    record(metrics, "b", PeerMetrics.READ, 5, 100);
+    record(metrics, "e", PeerMetrics.READ, 5, 5000);
+    record(metrics, "a", PeerMetrics.REPLICATE, 5, 100);
+    record(metrics, "b", PeerMetrics.REPLICATE, 5, 100);
+    record(metrics, "e", PeerMetrics.REPLICATE, 5, 5000);
+    assertSlow(metrics, "c");
+
+    // recent transfers weigh more, so a peer can recover
+    record(metrics, "c", PeerMetrics.MIRROR, 20, 100);
+    assertSlow(metrics);
+  }
+
+  public void testRateAndPercentile() {
+    PeerMetrics metrics = new PeerMetrics(new Configuration());
+    record(metrics, "a", PeerMetrics.MIRROR, 5, 100);
+    record(metrics, "e", PeerMetrics.WRITE, 5, 5000);
+
+    long rate = metrics.getRate("a", PeerMetrics.MIRROR);
+    assertTrue("10MB/s expected, got " + rate,
+               Math.abs(rate - 1024 * 1024 * 10) <= 1024);
+    long p50 = metrics.getPercentile("e", PeerMetrics.WRITE, 50);
+    assertTrue("a median of 5000ms expected, got " + p50,
+               p50 >= 5000 && p50 < 10000);
+  }
+
+  public void testEviction() {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.peer.metrics.max", 3);
+    PeerMetrics metrics = new PeerMetrics(conf);
+    record(metrics, "busy", PeerMetrics.READ, 10, 10);
+    record(metrics, "idle", PeerMetrics.READ, 1, 10);
+    record(metrics, "other", PeerMetrics.READ, 5, 10);
+    record(metrics, "new", PeerMetrics.READ, 1, 10);
+    assertEquals(3, metrics.size());
+    assertEquals("the least active peer was kept", 0,
+                 metrics.getRate("idle", PeerMetrics.READ));
+    for (String peer : new String[] {"busy", "other", "new"}) {
+      assertTrue("peer " + peer + " was evicted",
+                 metrics.getRate(peer, PeerMetrics.READ) != 0);
+    }
+  }
+}
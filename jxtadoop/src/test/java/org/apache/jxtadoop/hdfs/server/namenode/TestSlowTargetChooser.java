@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
+import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.net.NetworkTopology;
+import org.apache.jxtadoop.net.Node;
+
+/**
+ * Checks that {@link ReplicationTargetChooser} avoids the datanodes
+ * reported slow, but still places the replicas on them when there are
+ * not enough other datanodes.
+ */
+public class TestSlowTargetChooser extends TestCase {
+  static final long BLOCK_SIZE = 1024 * 1024;
+
+  /** A chooser with a fixed list of slow datanodes */
+  static class Chooser extends ReplicationTargetChooser {
+    final List<DatanodeDescriptor> slow = new ArrayList<DatanodeDescriptor>();
+
+    Chooser(NetworkTopology clusterMap) {
+      super(false, null, clusterMap);
+    }
+
+    List<DatanodeDescriptor> getSlowDatanodes() {
+      return slow;
+    }
+  }
+
+  private DatanodeDescriptor fast;
+  private DatanodeDescriptor slow1;
+  private DatanodeDescriptor slow2;
+  private Chooser chooser;
+
+  private static DatanodeDescriptor newNode(String id) {
+    long capacity = 100 * FSConstants.MIN_BLOCKS_FOR_WRITE * BLOCK_SIZE;
+    return new DatanodeDescriptor(new DatanodeID(id),
+        NetworkTopology.DEFAULT_RACK, id, capacity, 0, capacity, 0);
+  }
+
+  private static void assertTargets(DatanodeDescriptor[] targets,
+      DatanodeDescriptor... expected) {
+    assertEquals(new HashSet<DatanodeDescriptor>(Arrays.asList(expected)),
+                 new HashSet<DatanodeDescriptor>(Arrays.asList(targets)));
+    assertEquals(expected.length, targets.length);
+  }
+
+  protected void setUp() {
+    NetworkTopology clusterMap = new NetworkTopology();
+    fast = newNode("fast");
+    slow1 = newNode("slow1");
+    slow2 = newNode("slow2");
+    clusterMap.add(fast);
+    clusterMap.add(slow1);
+    clusterMap.add(slow2);
+    chooser = new Chooser(clusterMap);
+    chooser.slow.add(slow1);
+    chooser.slow.add(slow2);
+  }
+
+  public void testSlowAvoided() {
+    for (int i = 0; i < 10; i++) {
+      assertTargets(chooser.chooseTarget(1, null, null, BLOCK_SIZE), fast);
+    }
+  }
+
+  public void testSlowUsedForEnoughReplicas() {
+    assertTargets(chooser.chooseTarget(3, null, null, BLOCK_SIZE),
+                  fast, slow1, slow2);
+  }
+
+  public void testAllSlow() {
+    chooser.slow.add(fast);
+    assertEquals(2, chooser.chooseTarget(2, null, null, BLOCK_SIZE).length);
+  }
+
+  public void testExcludedNeverUsed() {
+    List<Node> excluded = new ArrayList<Node>();
+    excluded.add(slow2);
+    assertTargets(chooser.chooseTarget(3, null, excluded, BLOCK_SIZE),
+                  fast, slow1);
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Benchmark of {@link DataChecksum} computing and verifying the checksums
+ * of a buffer for each checksum type and chunk size, either chunk by chunk
+ * through the Checksum interface or a packet at a time through
+ * {@link DataChecksum#calculateChunkedSums(ByteBuffer, ByteBuffer)} and
+ * {@link DataChecksum#verifyChunkedSums(ByteBuffer, ByteBuffer, String, long)}
+ * on heap and direct buffers.
+ * 
+ * <pre>
+ * Usage: DataChecksumBenchmark [-size bytes] [-rounds n]
+ *                              [-chunkSizes size,size,...]
+ *                              [-packetSize bytes]
+ * </pre>
+ */
+public class DataChecksumBenchmark {
+
+  /** Compute the checksums of all the chunks of data into sums */
+  static void compute(DataChecksum sum, byte[] data, byte[] sums)
+      throws IOException {
+    int bpc = sum.getBytesPerChecksum();
+    int sumOff = 0;
+    for (int off = 0; off < data.length; off += bpc) {
+      sum.reset();
+      sum.update(data, off, Math.min(bpc, data.length - off));
+      sumOff += sum.writeValue(sums, sumOff, true);
+    }
+  }
+
+  /** Verify all the chunks of data against sums */
+  static void verify(DataChecksum sum, byte[] data, byte[] sums)
+      throws IOException {
+    int bpc = sum.getBytesPerChecksum();
+    int sumOff = 0;
+    for (int off = 0; off < data.length; off += bpc) {
+      sum.reset();
+      sum.update(data, off, Math.min(bpc, data.length - off));
+      if (!sum.compare(sums, sumOff)) {
+        throw new IOException("Checksum mismatch at " + off);
+      }
+      sumOff += sum.getChecksumSize();
+    }
+  }
+
+  /** Compute the checksums of data into sums a packet at a time */
+  static void computeBulk(DataChecksum sum, ByteBuffer data, ByteBuffer sums,
+                          int packetSize) {
+    int bpc = sum.getBytesPerChecksum();
+    int size = data.capacity();
+    for (int off = 0; off < size; off += packetSize) {
+      data.limit(Math.min(off + packetSize, size)).position(off);
+      sums.position(off / bpc * sum.getChecksumSize());
+      sum.calculateChunkedSums(data, sums);
+    }
+    data.clear();
+    sums.clear();
+  }
+
+  /** Verify data against sums a packet at a time */
+  static void verifyBulk(DataChecksum sum, ByteBuffer data, ByteBuffer sums,
+                         int packetSize) throws IOException {
+    int bpc = sum.getBytesPerChecksum();
+    int size = data.capacity();
+    for (int off = 0; off < size; off += packetSize) {
+      data.limit(Math.min(off + packetSize, size)).position(off);
+      sums.position(off / bpc * sum.getChecksumSize());
+      sum.verifyChunkedSums(data, sums, "benchmark", off);
+    }
+    data.clear();
+    sums.clear();
+  }
+
+  static double mbPerSec(long bytes, long nanos) {
+    return (double)bytes * 1e9 / nanos / (1024 * 1024);
+  }
+
+  static void report(String name, int bpc, String mode, int size, int rounds,
+                     long computeNanos, long verifyNanos) {
+    long bytes = (long)size * rounds;
+    System.out.println(String.format(
+        "%-6s bytesPerChecksum=%-6d %-7s compute %8.0f MB/s (%.3f ns/byte)"
+        + "  verify %8.0f MB/s (%.3f ns/byte)",
+        name, bpc, mode, mbPerSec(bytes, computeNanos),
+        (double)computeNanos / bytes, mbPerSec(bytes, verifyNanos),
+        (double)verifyNanos / bytes));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = 16 * 1024 * 1024;
+    int rounds = 10;
+    String chunkSizes = "512,4096,65536";
+    int packetSize = 64 * 1024;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-size".equals(args[i])) {
+        size = Integer.parseInt(args[++i]);
+      } else if ("-rounds".equals(args[i])) {
+        rounds = Integer.parseInt(args[++i]);
+      } else if ("-chunkSizes".equals(args[i])) {
+        chunkSizes = args[++i];
+      } else if ("-packetSize".equals(args[i])) {
+        packetSize = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: DataChecksumBenchmark [-size bytes] "
+            + "[-rounds n] [-chunkSizes size,size,...] [-packetSize bytes]");
+        System.exit(-1);
+      }
+    }
+
+    byte[] data = new byte[size];
+    new Random(0).nextBytes(data);
+    ByteBuffer heapData = ByteBuffer.wrap(data);
+    ByteBuffer directData = ByteBuffer.allocateDirect(size);
+    directData.put(data).clear();
+    int[] types = { DataChecksum.CHECKSUM_CRC32, DataChecksum.CHECKSUM_CRC32C };
+    String[] names = { "CRC32", "CRC32C" };
+
+    for (String chunkSize : chunkSizes.split(",")) {
+      int bpc = Integer.parseInt(chunkSize.trim());
+      for (int t = 0; t < types.length; t++) {
+        DataChecksum sum = DataChecksum.newDataChecksum(types[t], bpc);
+        byte[] sums =
+          new byte[(size + bpc - 1) / bpc * sum.getChecksumSize()];
+        // warm up, then measure
+        compute(sum, data, sums);
+        verify(sum, data, sums);
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+          compute(sum, data, sums);
+        }
+        long computeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+          verify(sum, data, sums);
+        }
+        long verifyNanos = System.nanoTime() - start;
+        report(names[t], bpc, "chunked", size, rounds, computeNanos,
+               verifyNanos);
+
+        // packet at a time, once on heap and once on direct buffers
+        int pkt = Math.max(bpc, packetSize / bpc * bpc);
+        ByteBuffer[] dataBufs = { heapData, directData };
+        ByteBuffer[] sumBufs = { ByteBuffer.wrap(sums),
+                                 ByteBuffer.allocateDirect(sums.length) };
+        String[] modes = { "bulk", "direct" };
+        for (int m = 0; m < modes.length; m++) {
+          computeBulk(sum, dataBufs[m], sumBufs[m], pkt);
+          verifyBulk(sum, dataBufs[m], sumBufs[m], pkt);
+          start = System.nanoTime();
+          for (int r = 0; r < rounds; r++) {
+            computeBulk(sum, dataBufs[m], sumBufs[m], pkt);
+          }
+          computeNanos = System.nanoTime() - start;
+          start = System.nanoTime();
+          for (int r = 0; r < rounds; r++) {
+            verifyBulk(sum, dataBufs[m], sumBufs[m], pkt);
+          }
+          verifyNanos = System.nanoTime() - start;
+          report(names[t], bpc, modes[m], size, rounds, computeNanos,
+                 verifyNanos);
+        }
+      }
+    }
+  }
+}